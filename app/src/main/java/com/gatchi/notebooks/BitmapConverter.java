@@ -2,6 +2,9 @@ package com.gatchi.notebooks;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 
 import java.io.ByteArrayOutputStream;
 
@@ -27,4 +30,64 @@ public final class BitmapConverter {
 		return BitmapFactory.decodeByteArray(image, 0, image.length);
 	}
 
+	/**
+	 * Shrinks a sketch to a square thumbnail of given size, centered on
+	 * white.  Uses RGB_565, half the memory of ARGB_8888, since the white
+	 * background leaves no transparency to keep.
+	 */
+	public static Bitmap getThumbnail(Bitmap bitmap, int size) {
+		Bitmap thumbnail = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+		Canvas canvas = startThumbnail(thumbnail, bitmap.getWidth(), bitmap.getHeight());
+		canvas.drawBitmap(bitmap, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
+		return thumbnail;
+	}
+
+	/**
+	 * Shrinks a tiled drawing to a thumbnail, like getThumbnail(Bitmap, int),
+	 * drawing only the tiles it has.
+	 */
+	public static Bitmap getThumbnail(TiledCanvas drawing, int size) {
+		Bitmap thumbnail = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+		Canvas canvas = startThumbnail(thumbnail, drawing.getWidth(), drawing.getHeight());
+		drawing.draw(canvas, new Paint(Paint.FILTER_BITMAP_FLAG));
+		return thumbnail;
+	}
+
+	/**
+	 * Fills a thumbnail with white and returns a canvas on it scaled to fit
+	 * an image of given size in its center.
+	 */
+	private static Canvas startThumbnail(Bitmap thumbnail, int width, int height) {
+		int size = thumbnail.getWidth();
+		Canvas canvas = new Canvas(thumbnail);
+		canvas.drawColor(Color.WHITE);
+		float scale = Math.min((float) size / Math.max(1, width), (float) size / Math.max(1, height));
+		canvas.translate((size - width * scale) / 2, (size - height * scale) / 2);
+		canvas.scale(scale, scale);
+		return canvas;
+	}
+
+	/**
+	 * Checks if anything has been drawn on the bitmap.
+	 * Scans one row at a time and stops at the first visible pixel,
+	 * so a drawn-on canvas is usually detected quickly.
+	 */
+	public static boolean hasContent(Bitmap bitmap) {
+		if (bitmap == null) {
+			return false;
+		}
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			bitmap.getPixels(row, 0, width, 0, y, width, 1);
+			for (int x = 0; x < width; x++) {
+				if ((row[x] >>> 24) != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 }
@@ -0,0 +1,63 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Keeps bitmaps nobody uses anymore so their memory can be decoded into
+ * again (BitmapFactory.Options.inBitmap), instead of being left to the
+ * garbage collector and allocated anew.
+ *
+ * Bitmaps are only handed out for the exact size and config they were
+ * made with, which is what inBitmap needs before KitKat.  Holds at most
+ * maxBytes; anything put in past that is let go (see SizedPool).
+ * Thread-safe.
+ */
+public class BitmapPool {
+	private final SizedPool<Bitmap> mBitmaps;
+
+	public BitmapPool(int maxBytes) {
+		mBitmaps = new SizedPool<>(maxBytes);
+	}
+
+	private static String key(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	/**
+	 * Hands a bitmap over to the pool. The caller must not touch it afterwards.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		mBitmaps.put(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap, bitmap.getByteCount());
+	}
+
+	/**
+	 * Takes a pooled bitmap of given size and config out of the pool, or returns null.
+	 * Its pixels are left as they were.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		return mBitmaps.get(key(width, height, config));
+	}
+
+	/**
+	 * Sets up options to decode into a pooled bitmap, if there is one of the right size.
+	 * Decoding may still fail with IllegalArgumentException if the image
+	 * turns out not to fit; callers should then decode again without it.
+	 */
+	public void prepare(BitmapFactory.Options options, int width, int height, Bitmap.Config config) {
+		options.inPreferredConfig = config;
+		options.inMutable = true;
+		options.inSampleSize = 1;
+		options.inBitmap = get(width, height, config);
+	}
+
+	/**
+	 * Lets go of every pooled bitmap.
+	 */
+	public synchronized void clear() {
+		mBitmaps.clear();
+	}
+}
@@ -0,0 +1,143 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Typeface;
+import android.text.Html;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares saving and loading note bodies with SpanCodec against the HTML
+ * that older versions stored.
+ *
+ * Large notes are made up with a span every few words, as heavy formatting
+ * is where HTML is slowest.  Each is saved and loaded both ways, and the
+ * time taken and bytes written are averaged per format.  The loaded text
+ * is compared with the original, so a format that loses text shows up too.
+ * Slow; run it in the background, on a debug build.
+ * Should not be instantiated.
+ */
+public final class BodyBenchmark {
+	private static final String TAG = "BodyBenchmark";
+
+	private static final String[] WORDS = {
+			"note", "draw", "sketch", "page", "ink", "line", "quick", "brown", "fox", "über", "日本語"
+	};
+	private static final int[] COLORS = {0xffff0000, 0xff00aa00, 0xff0000ff, 0xff333333};
+
+	private BodyBenchmark() throws InstantiationException {
+		throw new InstantiationException("This class is not for instantiation");
+	}
+
+	/**
+	 * Saves and loads the given number of made-up notes in both formats,
+	 * logs the results and returns them.
+	 * @param words length of each note, in words
+	 */
+	public static String run(int notes, int words) {
+		List<Spanned> bodies = new ArrayList<>(notes);
+		Random random = new Random(notes * 31 + words);  // same notes every run
+		int spans = 0;
+		for (int i = 0; i < notes; i++) {
+			Spanned body = makeNote(random, words);
+			spans += body.getSpans(0, body.length(), Object.class).length;
+			bodies.add(body);
+		}
+		int count = Math.max(1, notes);
+		StringBuilder report = new StringBuilder(String.format(Locale.US,
+				"%d notes, %d words and %d spans each on average%n", notes, words, spans / count));
+
+		long saveNanos = 0;
+		long loadNanos = 0;
+		long bytes = 0;
+		int inexact = 0;
+		for (Spanned body : bodies) {
+			long start = System.nanoTime();
+			byte[] data = SpanCodec.encode(body);
+			saveNanos += System.nanoTime() - start;
+			bytes += data.length;
+
+			start = System.nanoTime();
+			Spanned loaded = SpanCodec.decode(data);
+			loadNanos += System.nanoTime() - start;
+			if (!loaded.toString().equals(body.toString())) {
+				inexact++;
+			}
+		}
+		append(report, "binary", saveNanos, loadNanos, bytes, inexact, count);
+
+		saveNanos = 0;
+		loadNanos = 0;
+		bytes = 0;
+		inexact = 0;
+		for (Spanned body : bodies) {
+			long start = System.nanoTime();
+			String html = Html.toHtml(body);
+			saveNanos += System.nanoTime() - start;
+			bytes += html.length() * 2L;  // stored as a UTF-16 string column
+
+			start = System.nanoTime();
+			Spannable loaded = DatabaseHandler.fromLegacyHtml(html);
+			loadNanos += System.nanoTime() - start;
+			if (!loaded.toString().equals(body.toString())) {
+				inexact++;
+			}
+		}
+		append(report, "html", saveNanos, loadNanos, bytes, inexact, count);
+
+		String result = report.toString();
+		Log.i(TAG, result);
+		return result;
+	}
+
+	private static void append(StringBuilder report, String format, long saveNanos, long loadNanos,
+			long bytes, int inexact, int count) {
+		report.append(String.format(Locale.US,
+				"%s: save %.1fms, load %.1fms, %d bytes (averages), %d not exact%n",
+				format, saveNanos / 1e6 / count, loadNanos / 1e6 / count, bytes / count, inexact));
+	}
+
+	/**
+	 * Makes a note of paragraphs of random words, with bold, italic,
+	 * underline and color spans scattered over it.
+	 */
+	private static Spanned makeNote(Random random, int words) {
+		SpannableStringBuilder text = new SpannableStringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				text.append(i % 40 == 0 ? '\n' : ' ');
+			}
+			int start = text.length();
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+			if (random.nextInt(3) != 0) {
+				continue;
+			}
+			Object span;
+			switch (random.nextInt(4)) {
+				case 0:
+					span = new StyleSpan(Typeface.BOLD);
+					break;
+				case 1:
+					span = new StyleSpan(Typeface.ITALIC);
+					break;
+				case 2:
+					span = new UnderlineSpan();
+					break;
+				default:
+					span = new ForegroundColorSpan(COLORS[random.nextInt(COLORS.length)]);
+					break;
+			}
+			text.setSpan(span, start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+		}
+		return text;
+	}
+}
@@ -0,0 +1,82 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the image codecs on real sketches.
+ *
+ * Each sketch is encoded and decoded with every available codec, and the
+ * time taken and bytes written are totalled per codec.  Decoded pixels are
+ * compared with the original, so a codec that loses detail shows up too.
+ * Slow; run it in the background, on a debug build.
+ * Should not be instantiated.
+ */
+public final class CodecBenchmark {
+	private static final String TAG = "CodecBenchmark";
+
+	private CodecBenchmark() throws InstantiationException {
+		throw new InstantiationException("This class is not for instantiation");
+	}
+
+	/**
+	 * Runs every available codec over the given sketches, logs the results and returns them.
+	 */
+	public static String run(List<Bitmap> sketches) {
+		StringBuilder report = new StringBuilder(String.format(Locale.US,
+				"%d sketches, %d pixels each on average%n", sketches.size(), averagePixels(sketches)));
+		for (ImageCodec codec : ImageCodecs.getAll()) {
+			if (!codec.isAvailable()) {
+				report.append(codec.getName()).append(": not available\n");
+				continue;
+			}
+			long encodeNanos = 0;
+			long decodeNanos = 0;
+			long bytes = 0;
+			int inexact = 0;
+			for (Bitmap sketch : sketches) {
+				long start = System.nanoTime();
+				byte[] data = codec.encode(sketch);
+				encodeNanos += System.nanoTime() - start;
+				bytes += data.length;
+
+				start = System.nanoTime();
+				Bitmap decoded;
+				try {
+					decoded = codec.decode(new ByteArrayInputStream(data), null);
+				} catch (IOException e) {
+					Log.e(TAG, codec.getName() + " can't decode what it encoded", e);
+					inexact++;
+					continue;
+				}
+				decodeNanos += System.nanoTime() - start;
+				if (!decoded.sameAs(sketch)) {
+					inexact++;
+				}
+			}
+			int count = Math.max(1, sketches.size());
+			report.append(String.format(Locale.US,
+					"%s: encode %.1fms, decode %.1fms, %d bytes (averages), %d not exact%n",
+					codec.getName(), encodeNanos / 1e6 / count, decodeNanos / 1e6 / count, bytes / count, inexact));
+		}
+		String result = report.toString();
+		Log.i(TAG, result);
+		return result;
+	}
+
+	private static long averagePixels(List<Bitmap> sketches) {
+		if (sketches.isEmpty()) {
+			return 0;
+		}
+		long pixels = 0;
+		for (Bitmap sketch : sketches) {
+			pixels += (long) sketch.getWidth() * sketch.getHeight();
+		}
+		return pixels / sketches.size();
+	}
+}
@@ -0,0 +1,200 @@
+package com.gatchi.notebooks;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the latency of single note operations done the way older
+ * versions did them against how DatabaseHandler does them now.
+ *
+ * "before" opens the database for every operation, writes through
+ * ContentValues and closes it again, with the default rollback journal.
+ * "after" keeps one connection open with write-ahead logging and reuses
+ * compiled statements.  Both run the same inserts, loads by ID, updates
+ * and deletes on a scratch database of their own, so the user's notes
+ * are never touched, and each operation is timed by a LatencyRecorder.
+ * Slow; run it in the background, on a debug build.
+ * Should not be instantiated.
+ */
+public final class DatabaseBenchmark {
+	private static final String TAG = "DatabaseBenchmark";
+	private static final String[] OPERATIONS = {"insert", "get", "update", "delete"};
+	// About the size of the body of a short formatted note
+	private static final int BODY_BYTES = 4096;
+
+	private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS notes("
+			+ "id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, body BLOB, updatedAt INTEGER)";
+	private static final String SQL_INSERT = "INSERT INTO notes (title, body, updatedAt) VALUES (?, ?, ?)";
+	private static final String SQL_GET = "SELECT title, body, updatedAt FROM notes WHERE id=?";
+	private static final String SQL_UPDATE = "UPDATE notes SET title=?, body=?, updatedAt=? WHERE id=?";
+	private static final String SQL_DELETE = "DELETE FROM notes WHERE id=?";
+
+	private DatabaseBenchmark() throws InstantiationException {
+		throw new InstantiationException("This class is not for instantiation");
+	}
+
+	/**
+	 * Inserts, loads, updates and deletes the given number of made-up
+	 * notes both ways, logs the average latency of each operation and
+	 * returns it.
+	 */
+	public static String run(Context context, int notes) {
+		byte[][] bodies = new byte[notes][BODY_BYTES];
+		Random random = new Random(notes);  // same notes every run
+		for (byte[] body : bodies) {
+			random.nextBytes(body);
+		}
+
+		LatencyRecorder before = new LatencyRecorder(TAG + " before");
+		LatencyRecorder after = new LatencyRecorder(TAG + " after");
+		String beforeName = "benchmark-before.db";
+		String afterName = "benchmark-after.db";
+		context.deleteDatabase(beforeName);
+		context.deleteDatabase(afterName);
+		try {
+			runOpenPerOperation(context, beforeName, bodies, before);
+			runSharedConnection(context, afterName, bodies, after);
+		} finally {
+			context.deleteDatabase(beforeName);
+			context.deleteDatabase(afterName);
+		}
+
+		StringBuilder report = new StringBuilder(String.format(Locale.US,
+				"%d notes of %d bytes%n", notes, BODY_BYTES));
+		for (String operation : OPERATIONS) {
+			report.append(String.format(Locale.US, "%s: before %.2fms, after %.2fms (averages)%n",
+					operation, before.getAverageMillis(operation), after.getAverageMillis(operation)));
+		}
+		String result = report.toString();
+		Log.i(TAG, result + before + "\n" + after);
+		return result;
+	}
+
+	/**
+	 * Opens and closes the database around every operation, as older versions did.
+	 */
+	private static void runOpenPerOperation(Context context, String name, byte[][] bodies,
+			LatencyRecorder latency) {
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null);
+		db.execSQL(CREATE_TABLE);
+		db.close();
+
+		long[] ids = new long[bodies.length];
+		for (int i = 0; i < bodies.length; i++) {
+			long start = LatencyRecorder.start();
+			db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null);
+			ContentValues values = new ContentValues();
+			values.put("title", "Note " + i);
+			values.put("body", bodies[i]);
+			values.put("updatedAt", System.currentTimeMillis());
+			ids[i] = db.insert("notes", null, values);
+			db.close();
+			latency.record("insert", start);
+		}
+		for (long id : ids) {
+			long start = LatencyRecorder.start();
+			db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null);
+			Cursor cursor = db.query("notes", new String[]{"title", "body", "updatedAt"}, "id=?",
+					new String[]{String.valueOf(id)}, null, null, null);
+			try {
+				readNote(cursor);
+			} finally {
+				cursor.close();
+				db.close();
+			}
+			latency.record("get", start);
+		}
+		for (int i = 0; i < ids.length; i++) {
+			long start = LatencyRecorder.start();
+			db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null);
+			ContentValues values = new ContentValues();
+			values.put("title", "Note " + i + " edited");
+			values.put("body", bodies[bodies.length - 1 - i]);
+			values.put("updatedAt", System.currentTimeMillis());
+			db.update("notes", values, "id=?", new String[]{String.valueOf(ids[i])});
+			db.close();
+			latency.record("update", start);
+		}
+		for (long id : ids) {
+			long start = LatencyRecorder.start();
+			db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null);
+			db.delete("notes", "id=?", new String[]{String.valueOf(id)});
+			db.close();
+			latency.record("delete", start);
+		}
+	}
+
+	/**
+	 * Keeps one connection with write-ahead logging and compiled statements, as DatabaseHandler does.
+	 */
+	private static void runSharedConnection(Context context, String name, byte[][] bodies,
+			LatencyRecorder latency) {
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null);
+		try {
+			db.enableWriteAheadLogging();
+			db.execSQL(CREATE_TABLE);
+			SQLiteStatement insert = db.compileStatement(SQL_INSERT);
+			SQLiteStatement update = db.compileStatement(SQL_UPDATE);
+			SQLiteStatement delete = db.compileStatement(SQL_DELETE);
+
+			long[] ids = new long[bodies.length];
+			for (int i = 0; i < bodies.length; i++) {
+				long start = LatencyRecorder.start();
+				insert.bindString(1, "Note " + i);
+				insert.bindBlob(2, bodies[i]);
+				insert.bindLong(3, System.currentTimeMillis());
+				ids[i] = insert.executeInsert();
+				latency.record("insert", start);
+			}
+			for (long id : ids) {
+				long start = LatencyRecorder.start();
+				Cursor cursor = db.rawQuery(SQL_GET, new String[]{String.valueOf(id)});
+				try {
+					readNote(cursor);
+				} finally {
+					cursor.close();
+				}
+				latency.record("get", start);
+			}
+			for (int i = 0; i < ids.length; i++) {
+				long start = LatencyRecorder.start();
+				update.bindString(1, "Note " + i + " edited");
+				update.bindBlob(2, bodies[bodies.length - 1 - i]);
+				update.bindLong(3, System.currentTimeMillis());
+				update.bindLong(4, ids[i]);
+				update.executeUpdateDelete();
+				latency.record("update", start);
+			}
+			for (long id : ids) {
+				long start = LatencyRecorder.start();
+				delete.bindLong(1, id);
+				delete.executeUpdateDelete();
+				latency.record("delete", start);
+			}
+			insert.close();
+			update.close();
+			delete.close();
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Reads every column of the note, so both ways pay for the same data.
+	 */
+	private static void readNote(Cursor cursor) {
+		if (!cursor.moveToFirst()) {
+			throw new IllegalStateException("Benchmark note missing");
+		}
+		cursor.getString(0);
+		cursor.getBlob(1);
+		cursor.getLong(2);
+	}
+}
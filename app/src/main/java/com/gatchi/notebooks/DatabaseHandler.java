@@ -3,27 +3,55 @@ package com.gatchi.notebooks;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
 import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Used for creating, accessing, and modifying storage
+ *
+ * There is one instance per process (see getInstance()) and its database
+ * connection stays open for the life of the process.  Write-ahead logging
+ * is on, so reads carry on while a save is being written.
  */
 public class DatabaseHandler extends SQLiteOpenHelper {
 	/// @todo Consider re-ordering methods so getters and setters are together, and/or alpha order.
 	
-	private static final int DATABASE_VERSION = 3;
+	private static final String TAG = "DatabaseHandler";
+	private static final int DATABASE_VERSION = 11;
 	private static final String DATABASE_NAME = "notepadDatabase";
 	private static final String TABLE_NOTES = "notes";
 	private static final String KEY_ID = "id";
@@ -31,10 +59,233 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	private static final String KEY_SPANNABLE_NOTE = "serializedSpannableNote";
 	private static final String KEY_IMAGE = "image";
 	private static final String KEY_DATE_UPDATED = "dateUpdated";
-	private static final DateFormat dt = new SimpleDateFormat("dd.MM.yyyy, hh:mm:ss", Locale.getDefault());
+	private static final String KEY_PLAIN_TEXT = "plainText";
+	private static final String KEY_HAS_DRAWING = "hasDrawing";
+	private static final String KEY_IMAGE_FILE = "imageFile";
+	private static final String KEY_BODY = "body";
+	private static final String KEY_CREATED_AT = "createdAt";  // epoch milliseconds
+	private static final String KEY_UPDATED_AT = "updatedAt";  // epoch milliseconds
+	private static final String INDEX_UPDATED_AT = "notesUpdatedAtIndex";
+	private static final String KEY_THUMBNAIL = "thumbnail";
+	private static final String KEY_IMAGE_CODEC = "imageCodec";  // ImageCodec ID of KEY_IMAGE_FILE
+	private static final String KEY_STROKES = "strokes";  // StrokeCodec; if set there's no KEY_IMAGE_FILE
+	private static final String INDEX_IMAGE_FILE = "notesImageFileIndex";
+	private static final int MIGRATION_CHUNK_SIZE = 16;
 
-	public DatabaseHandler(Context context) {
+	// Full-text index over title and plain text, kept in sync by triggers
+	private static final String TABLE_SEARCH = "notesSearch";
+	private static final String TRIGGER_SEARCH_INSERT = "notesSearchInsert";
+	private static final String TRIGGER_SEARCH_UPDATE = "notesSearchUpdate";
+	private static final String TRIGGER_SEARCH_DELETE = "notesSearchDelete";
+	private static final char SNIPPET_START = '\u0001';
+	private static final char SNIPPET_END = '\u0002';
+	private static final int SNIPPET_TOKENS = 12;
+	// How much more a hit in the title counts than a hit in the body
+	private static final double TITLE_WEIGHT = 2.0;
+	private static final int PREVIEW_LENGTH = 200;
+	// Width and height of sketch thumbnails, in pixels
+	public static final int THUMBNAIL_SIZE = 128;
+	// Order of the note list; also the keyset used to page through it.
+	// KEY_ID breaks ties between notes updated in the same millisecond.
+	private static final String ORDER_NEWEST_FIRST = KEY_UPDATED_AT + " DESC, " + KEY_ID + " DESC";
+	private static final String ORDER_OLDEST_FIRST = KEY_UPDATED_AT + " ASC, " + KEY_ID + " ASC";
+	private static final String SELECTION_AFTER = KEY_UPDATED_AT + "<=? AND (" + KEY_UPDATED_AT + "<? OR " + KEY_ID + "<?)";
+	private static final String SELECTION_BEFORE = KEY_UPDATED_AT + ">=? AND (" + KEY_UPDATED_AT + ">? OR " + KEY_ID + ">?)";
+	// Format of KEY_DATE_UPDATED, which only older versions wrote
+	private static final String LEGACY_DATE_FORMAT = "dd.MM.yyyy, hh:mm:ss";
+
+	// Statements run on every save/load, compiled once and kept in mStatements
+	private static final String SQL_INSERT_NOTE = "INSERT INTO " + TABLE_NOTES + "("
+			+ KEY_BODY + ", " + KEY_PLAIN_TEXT + ", " + KEY_NOTE_TITLE + ", "
+			+ KEY_IMAGE_FILE + ", " + KEY_IMAGE_CODEC + ", " + KEY_STROKES + ", " + KEY_HAS_DRAWING + ", "
+			+ KEY_THUMBNAIL + ", " + KEY_CREATED_AT + ", " + KEY_UPDATED_AT + ") "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SQL_CONVERT_BODY = "UPDATE " + TABLE_NOTES + " SET "
+			+ KEY_BODY + "=?, " + KEY_SPANNABLE_NOTE + "=NULL WHERE " + KEY_ID + "=? AND " + KEY_BODY + " IS NULL";
+	private static final String SQL_DELETE_NOTE = "DELETE FROM " + TABLE_NOTES + " WHERE " + KEY_ID + "=?";
+	private static final String SQL_GET_IMAGE_REF = "SELECT " + KEY_IMAGE_FILE + " FROM " + TABLE_NOTES + " WHERE " + KEY_ID + "=?";
+	private static final String SQL_COUNT_IMAGE_REF = "SELECT COUNT(*) FROM " + TABLE_NOTES + " WHERE " + KEY_IMAGE_FILE + "=?";
+	private static final String SQL_COUNT_NOTES = "SELECT COUNT(*) FROM " + TABLE_NOTES;
+	private static final String SQL_COUNT_CREATED_AT = "SELECT COUNT(*) FROM " + TABLE_NOTES + " WHERE " + KEY_CREATED_AT + "=?";
+	private static final String SQL_SET_THUMBNAIL = "UPDATE " + TABLE_NOTES + " SET " + KEY_THUMBNAIL + "=? WHERE " + KEY_ID + "=?"
+			+ " AND " + KEY_THUMBNAIL + " IS NULL AND " + KEY_IMAGE_FILE + "=?";
+
+	// UPDATE statements for each combination of Note.CHANGED_* flags, built on first use
+	private static final String[] sUpdateSql = new String[Note.CHANGED_ALL + 1];
+
+	private static DatabaseHandler sInstance;
+
+	// Where the sketches are kept
+	private final ImageStore mImageStore;
+
+	// Compiled statements by their SQL
+	private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+	// Timings of every public operation
+	private final LatencyRecorder mLatency = new LatencyRecorder(TAG);
+
+	// Recently loaded notes, so reopening one doesn't decode it again
+	private final NoteCache mNoteCache = new NoteCache();
+
+	// Who to tell about changes, and the main thread to tell them on
+	private final List<OnNoteChangeListener> mListeners = new CopyOnWriteArrayList<>();
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	// Changes made inside runInTransaction(), held back until it commits
+	private final ThreadLocal<List<NoteChange>> mHeldChanges = new ThreadLocal<>();
+	// Images let go of inside runInTransaction(), deleted once it commits
+	private final ThreadLocal<List<String>> mHeldReleases = new ThreadLocal<>();
+
+	/**
+	 * Gets told about every change made to the stored notes.
+	 */
+	public interface OnNoteChangeListener {
+		/**
+		 * Called on the main thread after a change is written.
+		 */
+		void onNoteChanged(NoteChange change);
+	}
+
+	/**
+	 * Returns the process-wide handler, creating it on first use.
+	 */
+	public static synchronized DatabaseHandler getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new DatabaseHandler(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private DatabaseHandler(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		mImageStore = new ImageStore(context);
+		context.registerComponentCallbacks(mNoteCache);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			setWriteAheadLoggingEnabled(true);
+		}
+	}
+
+	/**
+	 * Turns on write-ahead logging where the helper can't do it for us.
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
+
+	/**
+	 * Registers a listener to be told about changes to the notes.
+	 */
+	public void addOnNoteChangeListener(OnNoteChangeListener listener) {
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener added by addOnNoteChangeListener().
+	 */
+	public void removeOnNoteChangeListener(OnNoteChangeListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Hands a change to the listeners on the main thread, or holds it
+	 * back until the transaction of runInTransaction() has committed.
+	 */
+	private void publish(final NoteChange change) {
+		List<NoteChange> held = mHeldChanges.get();
+		if (held != null) {
+			held.add(change);
+			return;
+		}
+		if (mListeners.isEmpty()) {
+			return;
+		}
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (OnNoteChangeListener listener : mListeners) {
+					listener.onNoteChanged(change);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs several writes in one transaction, so they share a single
+	 * commit (and sync to disk).  Listeners hear of the changes only once
+	 * the transaction has committed, and not at all if it fails; images
+	 * the writes let go of are deleted then too.  Methods like updateNote() are fine to call from writes; their own
+	 * transactions nest inside this one.
+	 */
+	public void runInTransaction(Runnable writes) {
+		SQLiteDatabase db = getWritableDatabase();
+		List<NoteChange> held = new ArrayList<>();
+		List<String> releases = new ArrayList<>();
+		mHeldChanges.set(held);
+		mHeldReleases.set(releases);
+		db.beginTransactionNonExclusive();
+		try {
+			writes.run();
+			db.setTransactionSuccessful();
+		} finally {
+			mHeldChanges.remove();
+			mHeldReleases.remove();
+			db.endTransaction();
+		}
+		for (String ref : releases) {
+			releaseImage(ref);
+		}
+		for (NoteChange change : held) {
+			publish(change);
+		}
+	}
+
+	/**
+	 * Returns the cache of loaded notes, for its counters.
+	 */
+	public NoteCache getNoteCache() {
+		return mNoteCache;
+	}
+
+	/**
+	 * Returns the timings of database operations.
+	 */
+	public LatencyRecorder getLatencyRecorder() {
+		return mLatency;
+	}
+
+	/**
+	 * Returns the compiled statement for given SQL, compiling it on first use.
+	 * Statements keep their bindings between uses, so callers must hold the
+	 * statement's lock from binding to execution.
+	 */
+	private SQLiteStatement getStatement(String sql) {
+		synchronized (mStatements) {
+			SQLiteStatement statement = mStatements.get(sql);
+			if (statement == null) {
+				statement = getWritableDatabase().compileStatement(sql);
+				mStatements.put(sql, statement);
+			}
+			return statement;
+		}
+	}
+
+	private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+
+	private static void bindBlobOrNull(SQLiteStatement statement, int index, byte[] value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindBlob(index, value);
+		}
 	}
 
 	/**
@@ -47,8 +298,39 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 				+ KEY_SPANNABLE_NOTE + " TEXT, "
 				+ KEY_IMAGE + " BLOB, "
 				+ KEY_DATE_UPDATED + " TEXT, "
-				+ KEY_NOTE_TITLE + " VARCHAR(100))" //We don't want a super long title...
+				+ KEY_NOTE_TITLE + " VARCHAR(100), " //We don't want a super long title...
+				+ KEY_PLAIN_TEXT + " TEXT, "
+				+ KEY_HAS_DRAWING + " INTEGER NOT NULL DEFAULT 0, "
+				+ KEY_IMAGE_FILE + " TEXT, "
+				+ KEY_BODY + " BLOB, "
+				+ KEY_CREATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+				+ KEY_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+				+ KEY_THUMBNAIL + " BLOB, "
+				+ KEY_IMAGE_CODEC + " INTEGER NOT NULL DEFAULT 0, "
+				+ KEY_STROKES + " BLOB)"
 				);
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_IMAGE_FILE + " ON " + TABLE_NOTES + "(" + KEY_IMAGE_FILE + ")");
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_UPDATED_AT + " ON " + TABLE_NOTES + "(" + KEY_UPDATED_AT + ", " + KEY_ID + ")");
+		createSearchIndex(db);
+	}
+
+	/**
+	 * Creates the full-text search table and the triggers keeping it in
+	 * step with the notes table.
+	 * The search table's docid is the note's KEY_ID.
+	 */
+	private static void createSearchIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE VIRTUAL TABLE " + TABLE_SEARCH + " USING fts4("
+				+ KEY_NOTE_TITLE + ", " + KEY_PLAIN_TEXT + ")");
+		db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_INSERT + " AFTER INSERT ON " + TABLE_NOTES + " BEGIN "
+				+ "INSERT INTO " + TABLE_SEARCH + "(docid, " + KEY_NOTE_TITLE + ", " + KEY_PLAIN_TEXT + ") "
+				+ "VALUES (new." + KEY_ID + ", new." + KEY_NOTE_TITLE + ", new." + KEY_PLAIN_TEXT + "); END");
+		db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_UPDATE + " AFTER UPDATE OF "
+				+ KEY_NOTE_TITLE + ", " + KEY_PLAIN_TEXT + " ON " + TABLE_NOTES + " BEGIN "
+				+ "UPDATE " + TABLE_SEARCH + " SET " + KEY_NOTE_TITLE + " = new." + KEY_NOTE_TITLE + ", "
+				+ KEY_PLAIN_TEXT + " = new." + KEY_PLAIN_TEXT + " WHERE docid = new." + KEY_ID + "; END");
+		db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_DELETE + " AFTER DELETE ON " + TABLE_NOTES + " BEGIN "
+				+ "DELETE FROM " + TABLE_SEARCH + " WHERE docid = old." + KEY_ID + "; END");
 	}
 
 	/**
@@ -67,6 +349,44 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_NOTE_TITLE + " VARCHAR(100);");
 			case 3:
 				//upgrade from version 3 to 4
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_PLAIN_TEXT + " TEXT;");
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_HAS_DRAWING + " INTEGER NOT NULL DEFAULT 0;");
+				db.execSQL("UPDATE " + TABLE_NOTES + " SET " + KEY_HAS_DRAWING + " = 1 WHERE " + KEY_IMAGE + " IS NOT NULL;");
+				fillPlainText(db);
+			case 4:
+				//upgrade from version 4 to 5
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_IMAGE_FILE + " TEXT;");
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_IMAGE_FILE + " ON " + TABLE_NOTES + "(" + KEY_IMAGE_FILE + ")");
+				moveImagesToStore(db);
+			case 5:
+				//upgrade from version 5 to 6
+				createSearchIndex(db);
+				db.execSQL("INSERT INTO " + TABLE_SEARCH + "(docid, " + KEY_NOTE_TITLE + ", " + KEY_PLAIN_TEXT + ") "
+						+ "SELECT " + KEY_ID + ", " + KEY_NOTE_TITLE + ", " + KEY_PLAIN_TEXT + " FROM " + TABLE_NOTES);
+			case 6:
+				//upgrade from version 6 to 7
+				//HTML bodies are converted to KEY_BODY one by one, as getNote() reads them
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_BODY + " BLOB;");
+			case 7:
+				//upgrade from version 7 to 8
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_CREATED_AT + " INTEGER NOT NULL DEFAULT 0;");
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0;");
+				fillTimestamps(db);
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_UPDATED_AT + " ON " + TABLE_NOTES + "(" + KEY_UPDATED_AT + ", " + KEY_ID + ")");
+			case 8:
+				//upgrade from version 8 to 9
+				//Thumbnails of older notes are made by getThumbnail(), as the list shows them
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_THUMBNAIL + " BLOB;");
+			case 9:
+				//upgrade from version 9 to 10
+				//Every image so far is PNG, which is codec 0
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_IMAGE_CODEC + " INTEGER NOT NULL DEFAULT 0;");
+			case 10:
+				//upgrade from version 10 to 11
+				//Older drawings stay as pixels until they are wiped
+				db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + KEY_STROKES + " BLOB;");
+			case 11:
+				//upgrade from version 11 to 12
 				//db.execSQL();
 
 				//and so on.. do not add breaks so that switch will
@@ -75,82 +395,520 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		}
 	}
 
+	/**
+	 * Fills in the plain text column from the stored HTML of every note.
+	 * Only reads the id and text columns, so the images are never loaded.
+	 */
+	private static void fillPlainText(SQLiteDatabase db) {
+		Cursor cursor = db.query(TABLE_NOTES, new String[]{KEY_ID, KEY_SPANNABLE_NOTE},
+				null, null, null, null, null);
+		try {
+			ContentValues values = new ContentValues();
+			while (cursor.moveToNext()) {
+				String html = cursor.getString(1);
+				values.put(KEY_PLAIN_TEXT, fromLegacyHtml(html).toString());
+				db.update(TABLE_NOTES, values, KEY_ID + "=?", new String[]{String.valueOf(cursor.getInt(0))});
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Fills in the numeric timestamps from the old text dates.
+	 * Creation time was never stored, so the last update stands in for it.
+	 * Dates that can't be parsed are left at 0 and sort last.
+	 */
+	private static void fillTimestamps(SQLiteDatabase db) {
+		// Only used here, on one thread, so a local formatter is safe
+		DateFormat format = new SimpleDateFormat(LEGACY_DATE_FORMAT, Locale.getDefault());
+		Cursor cursor = db.query(TABLE_NOTES, new String[]{KEY_ID, KEY_DATE_UPDATED},
+				KEY_DATE_UPDATED + " IS NOT NULL", null, null, null, null);
+		try {
+			ContentValues values = new ContentValues();
+			while (cursor.moveToNext()) {
+				long time;
+				try {
+					time = format.parse(cursor.getString(1)).getTime();
+				} catch (ParseException e) {
+					continue;
+				}
+				values.put(KEY_CREATED_AT, time);
+				values.put(KEY_UPDATED_AT, time);
+				db.update(TABLE_NOTES, values, KEY_ID + "=?", new String[]{String.valueOf(cursor.getInt(0))});
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Moves the image blobs out of the notes table into the image store.
+	 *
+	 * Works through the table in small chunks, reading one blob at a time,
+	 * so no single query comes near the CursorWindow limit.  If the process
+	 * dies half way, the upgrade is rolled back but the files written so far
+	 * stay in the store; the next attempt finds them and skips the writing.
+	 */
+	private void moveImagesToStore(SQLiteDatabase db) {
+		ContentValues values = new ContentValues();
+		int lastId = -1;
+		while (true) {
+			Cursor ids = db.query(TABLE_NOTES, new String[]{KEY_ID},
+					KEY_ID + ">? AND " + KEY_IMAGE + " IS NOT NULL", new String[]{String.valueOf(lastId)},
+					null, null, KEY_ID, String.valueOf(MIGRATION_CHUNK_SIZE));
+			if (ids.getCount() == 0) {
+				ids.close();
+				return;
+			}
+			while (ids.moveToNext()) {
+				lastId = ids.getInt(0);
+				String[] idArgs = new String[]{String.valueOf(lastId)};
+				Cursor blob = db.query(TABLE_NOTES, new String[]{KEY_IMAGE}, KEY_ID + "=?", idArgs,
+						null, null, null);
+				try {
+					if (blob.moveToFirst()) {
+						values.put(KEY_IMAGE_FILE, mImageStore.put(blob.getBlob(0)));
+						values.putNull(KEY_IMAGE);
+						db.update(TABLE_NOTES, values, KEY_ID + "=?", idArgs);
+					}
+				} catch (IOException e) {
+					throw new SQLiteException("Can't move image of note " + lastId, e);
+				} catch (IllegalStateException | SQLiteException e) {
+					// Blob too big for the CursorWindow; it never loaded before either, so leave it
+					e.printStackTrace();
+				} finally {
+					blob.close();
+				}
+			}
+			ids.close();
+		}
+	}
+
+	/**
+	 * Encodes a note's drawing, ready for createNote() or updateNote() to
+	 * write.  Drawings made of strokes are stored as strokes, others as
+	 * tiles.  Doesn't touch the database, so may run on any thread, but the
+	 * drawing must not change meanwhile; see TiledCanvas.snapshot().
+	 */
+	public EncodedDrawing encodeDrawing(Note note) {
+		byte[] strokes = encodeStrokes(note);
+		byte[] tiles = null;
+		TiledCanvas drawing = note.getDrawing();
+		if (strokes == null && drawing != null && !drawing.isEmpty()) {
+			long start = LatencyRecorder.start();
+			tiles = ImageCodecs.TILED.encode(drawing);
+			mLatency.record("encodeDrawing", start);
+		}
+		return new EncodedDrawing(strokes, tiles, makeThumbnail(drawing));
+	}
+
+	/**
+	 * Puts the tiles of an encoded drawing into the image store.
+	 * @return reference to the stored image, or null if stored as strokes or blank
+	 */
+	private String storeDrawing(EncodedDrawing drawing) {
+		if (drawing.getTiles() == null) {
+			return null;
+		}
+		try {
+			return mImageStore.put(drawing.getTiles());
+		} catch (IOException e) {
+			throw new SQLiteException("Can't store image", e);
+		}
+	}
+
+	/**
+	 * Encodes the strokes of a note's drawing for KEY_STROKES, or returns
+	 * null if nothing is drawn or the drawing is only known as pixels.
+	 */
+	private byte[] encodeStrokes(Note note) {
+		TiledCanvas drawing = note.getDrawing();
+		if (note.getStrokes() == null || drawing == null || drawing.isEmpty()) {
+			return null;
+		}
+		long start = LatencyRecorder.start();
+		byte[] strokes = StrokeCodec.encode(drawing.getWidth(), drawing.getHeight(), note.getStrokes());
+		mLatency.record("encodeStrokes", start);
+		return strokes;
+	}
+
+	/**
+	 * Decodes a stored drawing.  Drawings stored whole by older versions
+	 * are split into tiles.  See getNoteDrawing() for store.
+	 * @return decoded drawing, or null if it can't be read
+	 */
+	private TiledCanvas decodeDrawing(String ref, int codecId, TileStore store, int maxResidentBytes) {
+		if (codecId != ImageCodecs.TILED.getId()) {
+			Bitmap image = decodeImage(ref, codecId, null);
+			return image == null ? null : TiledCanvas.fromBitmap(image);
+		}
+		long start = LatencyRecorder.start();
+		try {
+			InputStream in = new BufferedInputStream(mImageStore.open(ref));
+			try {
+				return ImageCodecs.TILED.decodeTiles(in, store, maxResidentBytes);
+			} finally {
+				in.close();
+				mLatency.record("decodeDrawing", start);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Can't decode drawing " + ref, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes a stored image with the codec it was stored with.
+	 * @param options passed on to the codec; may be null
+	 * @return decoded bitmap, or null if it can't be read or only bounds were asked for
+	 */
+	private Bitmap decodeImage(String ref, int codecId, BitmapFactory.Options options) {
+		long start = LatencyRecorder.start();
+		ImageCodec codec = ImageCodecs.get(codecId);
+		try {
+			InputStream in = mImageStore.open(ref);
+			try {
+				return codec.decode(in, options);
+			} finally {
+				in.close();
+				mLatency.record("decodeImage." + codec.getName(), start);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Can't decode image " + ref, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Compresses a thumbnail of the drawing, or returns null if nothing is drawn.
+	 */
+	private byte[] makeThumbnail(TiledCanvas drawing) {
+		if (drawing == null || drawing.isEmpty()) {
+			return null;
+		}
+		long start = LatencyRecorder.start();
+		byte[] thumbnail = BitmapConverter.getBytes(BitmapConverter.getThumbnail(drawing, THUMBNAIL_SIZE));
+		mLatency.record("makeThumbnail", start);
+		return thumbnail;
+	}
+
+	/**
+	 * Returns the image reference of specified note, or null.
+	 */
+	private String getImageRef(int noteId) {
+		SQLiteStatement statement = getStatement(SQL_GET_IMAGE_REF);
+		synchronized (statement) {
+			statement.bindLong(1, noteId);
+			try {
+				return statement.simpleQueryForString();
+			} catch (SQLiteDoneException e) {
+				return null;  // no such note
+			}
+		}
+	}
+
+	/**
+	 * Releases an image a committed write let go of, or holds it back
+	 * until the transaction of runInTransaction() has committed.  Deleting
+	 * it any earlier would leave the rows of a rolled back transaction
+	 * pointing at a missing file.
+	 */
+	private void releaseImageAfterCommit(String ref) {
+		if (ref == null) {
+			return;
+		}
+		List<String> held = mHeldReleases.get();
+		if (held != null) {
+			held.add(ref);
+			return;
+		}
+		releaseImage(ref);
+	}
+
+	/**
+	 * Deletes a stored image once no note refers to it anymore.
+	 */
+	private void releaseImage(String ref) {
+		if (ref == null) {
+			return;
+		}
+		SQLiteStatement statement = getStatement(SQL_COUNT_IMAGE_REF);
+		long users;
+		synchronized (statement) {
+			statement.bindString(1, ref);
+			users = statement.simpleQueryForLong();
+		}
+		if (users == 0) {
+			mImageStore.delete(ref);
+		}
+	}
+
+	/**
+	 * Parses a note body saved as HTML by older versions.
+	 * Html adds two newlines after the text, which are cut off here.
+	 */
+	static Spannable fromLegacyHtml(String html) {
+		if (html == null) {
+			return new SpannableStringBuilder();
+		}
+		Spanned parsed = Html.fromHtml(html);
+		int end = parsed.length();
+		while (end > 0 && parsed.charAt(end - 1) == '\n') {
+			end--;
+		}
+		return new SpannableStringBuilder(parsed, 0, end);
+	}
+
 	/**
 	 * Method used to clear notes table
 	 */
 	public void clearAllNotes() {
+		long start = LatencyRecorder.start();
 		SQLiteDatabase db = getWritableDatabase();
 		db.execSQL("DELETE FROM " + TABLE_NOTES);
+		mNoteCache.invalidateAll();
+		mImageStore.clear();
+		mLatency.record("clearAllNotes", start);
+		publish(new NoteChange(NoteChange.CLEARED, -1, null));
 	}
 
 	/**
 	 * Method used to put Note object into Database
 	 * @param note Note object to put into DB
+	 * @return KEY_ID given to the new note
 	 */
-	public void createNote(Note note) {
-		SQLiteDatabase db = getWritableDatabase();
-		String spannableAsHtml = Html.toHtml(note.getSpannable());
-		String date = dt.format(new Date());
+	public int createNote(Note note) {
+		return createNote(note, encodeDrawing(note));
+	}
 
-		ContentValues values = new ContentValues();
+	/**
+	 * Puts a note into the database with its drawing already encoded.
+	 * @param drawing the note's drawing, from encodeDrawing()
+	 * @return KEY_ID given to the new note
+	 */
+	public int createNote(Note note, EncodedDrawing drawing) {
+		return createNote(note, drawing, 0);
+	}
+
+	/**
+	 * Puts a note into the database with its drawing already encoded.
+	 * @param drawing the note's drawing, from encodeDrawing()
+	 * @param createdAt creation time to store, or 0 for now; see hasNoteCreatedAt()
+	 * @return KEY_ID given to the new note
+	 */
+	public int createNote(Note note, EncodedDrawing drawing, long createdAt) {
+		long start = LatencyRecorder.start();
+		byte[] body = encodeBody(note.getSpannable());
+		long now = System.currentTimeMillis();
+		byte[] strokes = drawing.getStrokes();
+		String imageRef = storeDrawing(drawing);
+		boolean hasDrawing = drawing.hasDrawing();
+		byte[] thumbnail = drawing.getThumbnail();
 
-		values.put(KEY_SPANNABLE_NOTE, spannableAsHtml);
-		values.put(KEY_NOTE_TITLE, note.getTitle());
-		values.put(KEY_IMAGE, BitmapConverter.getBytes(note.getImage()));
-		values.put(KEY_DATE_UPDATED, date);
-		db.insert(TABLE_NOTES, null, values);
-		db.close();
+		int id;
+		SQLiteStatement statement = getStatement(SQL_INSERT_NOTE);
+		synchronized (statement) {
+			statement.bindBlob(1, body);
+			statement.bindString(2, note.getRawText());
+			bindStringOrNull(statement, 3, note.getTitle());
+			bindStringOrNull(statement, 4, imageRef);
+			statement.bindLong(5, ImageCodecs.TILED.getId());
+			bindBlobOrNull(statement, 6, strokes);
+			statement.bindLong(7, hasDrawing ? 1 : 0);
+			bindBlobOrNull(statement, 8, thumbnail);
+			statement.bindLong(9, createdAt != 0 ? createdAt : now);
+			statement.bindLong(10, now);
+			id = (int) statement.executeInsert();
+		}
+		mLatency.record("createNote", start);
+		publish(new NoteChange(NoteChange.INSERTED, id, getNoteSummary(id)));
+		return id;
 	}
 
 	/**
-	 * Method used to get specified Note from Database
+	 * Method used to get specified Note from Database.
+	 * The note may be shared with other callers, so its drawing must not be
+	 * drawn on; copy it first.
 	 * @param id KEY_ID of Note to get from Database
 	 * @return Note object with specified KEY_ID
 	 */
 	public Note getNote(int id) throws SQLiteException {
-		SQLiteDatabase db = getReadableDatabase();
+		long start = LatencyRecorder.start();
+		Note cached = mNoteCache.get(id);
+		if (cached != null) {
+			mLatency.record("getNote.cached", start);
+			return cached;
+		}
+		int stamp = mNoteCache.getStamp();
+		Note note = getNoteDrawing(readNoteText(id), stamp);
+		mLatency.record("getNote", start);
+		return note;
+	}
 
-		Cursor cursor = db.query(TABLE_NOTES,
-				new String[]{KEY_ID, KEY_SPANNABLE_NOTE, KEY_IMAGE, KEY_DATE_UPDATED, KEY_NOTE_TITLE},
-				KEY_ID + "=?",
-				new String[]{String.valueOf(id)},
-				null, null, null, null);
+	/**
+	 * Returns a stamp to take before getNoteText() and hand to
+	 * getNoteDrawing(); see NoteCache.getStamp().
+	 */
+	public int getCacheStamp() {
+		return mNoteCache.getStamp();
+	}
 
-		if (!cursor.moveToFirst()) {
-			deleteNote(id); //Failed to load note. Maybe the user restored data from an incompatible backup?
-			//Let's delete the problematic data
-			throw new SQLiteException("Note doesn't exist");
+	/**
+	 * Gets the text of a note, leaving its drawing to getNoteDrawing(), so
+	 * it can be shown without waiting for the drawing to decode.
+	 * A note cached whole is returned whole.
+	 * @return the note, without a drawing (and strokes) unless cached
+	 */
+	public Note getNoteText(int id) throws SQLiteException {
+		long start = LatencyRecorder.start();
+		Note cached = mNoteCache.get(id);
+		if (cached != null) {
+			mLatency.record("getNote.cached", start);
+			return cached;
 		}
+		Note text = readNoteText(id);
+		mLatency.record("getNoteText", start);
+		return text;
+	}
 
-		String spannableAsHtml = cursor.getString(cursor.getColumnIndex(KEY_SPANNABLE_NOTE));
-		/// @todo Analyze this line -- does it need to be this verbose?
-		Spannable spannable = (Spannable) Html.fromHtml(Html.toHtml(Html.fromHtml(spannableAsHtml))); //?
+	/**
+	 * Reads the drawing of a note whose text getNoteText() returned, and
+	 * caches the whole note like getNote() does.
+	 * @param text what getNoteText() returned; returned as is if it has a drawing already
+	 * @param stamp getCacheStamp() from before getNoteText()
+	 * @return the whole note; shared, see getNote()
+	 */
+	public Note getNoteDrawing(Note text, int stamp) throws SQLiteException {
+		return getNoteDrawing(text, stamp, null, 0);
+	}
 
-		Bitmap image = BitmapConverter.getImage(cursor.getBlob(cursor.getColumnIndex(KEY_IMAGE)));
+	/**
+	 * Like getNoteDrawing(Note, int), paging the drawing out to a store as
+	 * it's decoded, so a big one never takes more than maxResidentBytes
+	 * (see TiledCanvas.setPaging()).  A note whose drawing got paged out
+	 * isn't cached: it's the caller's own, to draw on as it is and to
+	 * clear once done with.
+	 * @param store may be null, for no paging
+	 */
+	public Note getNoteDrawing(Note text, int stamp, TileStore store, int maxResidentBytes)
+			throws SQLiteException {
+		if (text.getDrawing() != null || text.getStrokes() != null) {
+			return text;
+		}
+		long start = LatencyRecorder.start();
+		Cursor cursor = getReadableDatabase().query(TABLE_NOTES,
+				new String[]{KEY_IMAGE_FILE, KEY_IMAGE_CODEC, KEY_STROKES},
+				KEY_ID + "=?", new String[]{String.valueOf(text.getId())},
+				null, null, null, null);
 
-		Date date;
+		// Strokes are drawn again; a note without a drawing gets strokes to add to
+		List<Stroke> strokes = new ArrayList<>();
+		TiledCanvas drawing = null;
 		try {
-			date = dt.parse(cursor.getString(cursor.getColumnIndex(KEY_DATE_UPDATED)));
-		} catch (Exception e) {
-			date = new Date();
-			e.printStackTrace();
+			if (!cursor.moveToFirst()) {
+				throw new SQLiteException("Note doesn't exist");  // deleted since
+			}
+			byte[] strokeData = cursor.getBlob(cursor.getColumnIndex(KEY_STROKES));
+			String imageRef = cursor.getString(cursor.getColumnIndex(KEY_IMAGE_FILE));
+			if (strokeData != null) {
+				long decodeStart = LatencyRecorder.start();
+				drawing = StrokeCodec.decode(strokeData, strokes, store, maxResidentBytes);
+				mLatency.record("decodeStrokes", decodeStart);
+			} else if (imageRef != null) {
+				drawing = decodeDrawing(imageRef, cursor.getInt(cursor.getColumnIndex(KEY_IMAGE_CODEC)),
+						store, maxResidentBytes);
+				strokes = null;
+			}
+		} finally {
+			cursor.close();
 		}
 
+		Note note = new Note(text.getId(), text.getTitle(), text.getSpannable(), drawing, strokes,
+				text.getUpdatedAt());
+		if (drawing == null || drawing.getPagedTileCount() == 0) {
+			if (drawing != null) {
+				drawing.setPaging(null, 0, null);  // held whole, and shared once cached
+			}
+			mNoteCache.put(note, stamp);
+		}
+		mLatency.record("getNoteDrawing", start);
+		return note;
+	}
+
+	/**
+	 * Reads the title and body of a note.  Runs on reader threads, so
+	 * writes nothing but the guarded conversion of a legacy body.
+	 * @return the note without a drawing
+	 * @throws SQLiteException if there's no such note
+	 */
+	private Note readNoteText(int id) throws SQLiteException {
+		SQLiteDatabase db = getReadableDatabase();
+
+		Cursor cursor = db.query(TABLE_NOTES,
+				new String[]{KEY_ID, KEY_BODY, KEY_SPANNABLE_NOTE, KEY_UPDATED_AT, KEY_NOTE_TITLE},
+				KEY_ID + "=?",
+				new String[]{String.valueOf(id)},
+				null, null, null, null);
+
+		Spannable spannable;
+		long updatedAt;
 		String title;
 		try {
-			title = cursor.getString(cursor.getColumnIndex(KEY_NOTE_TITLE));
-		}catch (Exception e){
-			title = "";
-			e.printStackTrace();
+			if (!cursor.moveToFirst()) {
+				// Deleted meanwhile, or lost to an incompatible backup; there's nothing to clean up
+				throw new SQLiteException("Note doesn't exist");
+			}
+
+			byte[] body = cursor.getBlob(cursor.getColumnIndex(KEY_BODY));
+			if (body != null) {
+				long decodeStart = LatencyRecorder.start();
+				spannable = SpanCodec.decode(body);
+				mLatency.record("decodeBody.binary", decodeStart);
+			} else {
+				// Saved by an older version; convert it now so this only happens once
+				long decodeStart = LatencyRecorder.start();
+				spannable = fromLegacyHtml(cursor.getString(cursor.getColumnIndex(KEY_SPANNABLE_NOTE)));
+				mLatency.record("decodeBody.html", decodeStart);
+				convertLegacyBody(id, spannable);
+			}
+
+			updatedAt = cursor.getLong(cursor.getColumnIndex(KEY_UPDATED_AT));
+
+			try {
+				title = cursor.getString(cursor.getColumnIndex(KEY_NOTE_TITLE));
+			}catch (Exception e){
+				title = "";
+				e.printStackTrace();
+			}
+		} finally {
+			cursor.close();
 		}
+		return new Note(id, title, spannable, null, null, updatedAt);
+	}
 
-		if (spannable.length() >= 2) {
-			spannable = (Spannable) spannable.subSequence(0, spannable.length() - 2);
+	/**
+	 * Encodes a note body for KEY_BODY, timing it.
+	 */
+	private byte[] encodeBody(Spanned text) {
+		long start = LatencyRecorder.start();
+		byte[] body = SpanCodec.encode(text);
+		mLatency.record("encodeBody", start);
+		return body;
+	}
+
+	/**
+	 * Replaces a note's HTML body with the binary one.
+	 * Runs on a reader thread, so it leaves alone a note that has been
+	 * saved (and so has a binary body) since it was read.
+	 */
+	private void convertLegacyBody(int id, Spanned text) {
+		SQLiteStatement statement = getStatement(SQL_CONVERT_BODY);
+		synchronized (statement) {
+			statement.bindBlob(1, encodeBody(text));
+			statement.bindLong(2, id);
+			statement.executeUpdateDelete();
 		}
-		
-		db.close();
-		cursor.close();
-		return new Note(id, title, spannable, image, date);
 	}
 
 	/**
@@ -166,9 +924,126 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @param note Note to delete
 	 */
 	public void deleteNote(int noteId) {
+		long start = LatencyRecorder.start();
 		SQLiteDatabase db = getWritableDatabase();
-		db.delete(TABLE_NOTES, KEY_ID + "=?", new String[]{String.valueOf(noteId)});
-		db.close();
+		String imageRef;
+		db.beginTransactionNonExclusive();
+		try {
+			imageRef = getImageRef(noteId);
+			SQLiteStatement statement = getStatement(SQL_DELETE_NOTE);
+			synchronized (statement) {
+				statement.bindLong(1, noteId);
+				statement.executeUpdateDelete();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mNoteCache.invalidate(noteId);
+		}
+		releaseImageAfterCommit(imageRef);
+		mLatency.record("deleteNote", start);
+		publish(new NoteChange(NoteChange.DELETED, noteId, null));
+	}
+
+	/**
+	 * Method used to get the sketch thumbnail of a note, as compressed image data.
+	 * Notes saved before thumbnails existed get one made here, which is
+	 * stored on the writer thread rather than by this reader.
+	 * @param id KEY_ID of the note
+	 * @param writer runs the store of a thumbnail made here
+	 * @return thumbnail THUMBNAIL_SIZE pixels square, or null if the note has no sketch
+	 */
+	public byte[] getThumbnail(final int id, Executor writer) {
+		long start = LatencyRecorder.start();
+		Cursor cursor = getReadableDatabase().query(TABLE_NOTES,
+				new String[]{KEY_THUMBNAIL, KEY_HAS_DRAWING, KEY_IMAGE_FILE, KEY_IMAGE_CODEC},
+				KEY_ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+		byte[] thumbnail = null;
+		String imageRef = null;
+		int codecId = 0;
+		try {
+			if (cursor.moveToFirst()) {
+				thumbnail = cursor.getBlob(0);
+				if (thumbnail == null && cursor.getInt(1) != 0) {
+					imageRef = cursor.getString(2);
+					codecId = cursor.getInt(3);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (imageRef != null) {
+			// Only a sketch this small is needed, so decode it subsampled
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			decodeImage(imageRef, codecId, options);
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = 1;
+			while (Math.min(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= THUMBNAIL_SIZE) {
+				options.inSampleSize *= 2;
+			}
+			Bitmap image = decodeImage(imageRef, codecId, options);
+			if (image != null) {
+				long thumbnailStart = LatencyRecorder.start();
+				thumbnail = BitmapConverter.getBytes(BitmapConverter.getThumbnail(image, THUMBNAIL_SIZE));
+				mLatency.record("makeThumbnail", thumbnailStart);
+				final byte[] made = thumbnail;
+				final String madeFrom = imageRef;
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						storeThumbnail(id, madeFrom, made);
+					}
+				});
+			}
+		}
+		mLatency.record("getThumbnail", start);
+		return thumbnail;
+	}
+
+	/**
+	 * Stores a thumbnail made by getThumbnail(), unless the note has got
+	 * one since or has been saved with another sketch.  Writer thread only.
+	 * @param imageRef KEY_IMAGE_FILE the thumbnail was made from
+	 */
+	private void storeThumbnail(int id, String imageRef, byte[] thumbnail) {
+		SQLiteStatement statement = getStatement(SQL_SET_THUMBNAIL);
+		synchronized (statement) {
+			statement.bindBlob(1, thumbnail);
+			statement.bindLong(2, id);
+			statement.bindString(3, imageRef);
+			statement.executeUpdateDelete();
+		}
+	}
+
+	/**
+	 * Method used to get the sketches of the most recently updated notes
+	 * that have one, decoded; for CodecBenchmark.
+	 * @param limit most sketches to return
+	 */
+	public List<Bitmap> getSketches(int limit) {
+		List<Bitmap> sketches = new ArrayList<>();
+		Cursor cursor = getReadableDatabase().query(TABLE_NOTES, new String[]{KEY_IMAGE_FILE, KEY_IMAGE_CODEC, KEY_STROKES},
+				KEY_HAS_DRAWING + "=1", null, null, null, ORDER_NEWEST_FIRST, String.valueOf(limit));
+		try {
+			while (cursor.moveToNext()) {
+				Bitmap sketch;
+				if (!cursor.isNull(2)) {
+					sketch = StrokeCodec.decode(cursor.getBlob(2), new ArrayList<Stroke>()).toBitmap();
+				} else if (!cursor.isNull(0)) {
+					sketch = decodeImage(cursor.getString(0), cursor.getInt(1), null);
+				} else {
+					continue;
+				}
+				if (sketch != null) {
+					sketches.add(sketch);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return sketches;
 	}
 
 	/**
@@ -176,119 +1051,336 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	 * @return count of notes in Database
 	 */
 	public int getNoteCount() {
-		SQLiteDatabase db = getReadableDatabase();
-		int numberOfNotes = (int) DatabaseUtils.queryNumEntries(db, TABLE_NOTES);
-		db.close();
-		return numberOfNotes;
+		SQLiteStatement statement = getStatement(SQL_COUNT_NOTES);
+		synchronized (statement) {
+			return (int) statement.simpleQueryForLong();
+		}
+	}
+
+	/**
+	 * Tells whether a note was created with the given creation time, which
+	 * EditJournal uses to tell whether a new note it journaled got stored.
+	 */
+	public boolean hasNoteCreatedAt(long createdAt) {
+		SQLiteStatement statement = getStatement(SQL_COUNT_CREATED_AT);
+		synchronized (statement) {
+			statement.bindLong(1, createdAt);
+			return statement.simpleQueryForLong() > 0;
+		}
 	}
 
 	/**
 	 * Method used to update Note's text/format
 	 * @param note Note to update
-	 * @return updated Note
+	 * @return number of rows updated
 	 */
 	public int updateNote(Note note) {
+		return updateNote(note, Note.CHANGED_ALL);
+	}
+
+	/**
+	 * Method used to update only the changed parts of a Note.
+	 * Columns of parts that haven't changed aren't written, and the image
+	 * isn't compressed at all unless the drawing has changed.
+	 * @param note Note to update
+	 * @param changes Note.CHANGED_* flags of the parts to write
+	 * @return number of rows updated
+	 */
+	public int updateNote(Note note, int changes) {
+		boolean drawingChanged = (changes & Note.CHANGED_DRAWING) != 0;
+		return updateNote(note, changes, drawingChanged ? encodeDrawing(note) : null);
+	}
+
+	/**
+	 * Like updateNote(Note, int), with the drawing already encoded.
+	 * @param drawing the note's drawing, from encodeDrawing(); only used if
+	 *                changes include Note.CHANGED_DRAWING
+	 * @return number of rows updated
+	 */
+	public int updateNote(Note note, int changes, EncodedDrawing drawing) {
+		if (changes == 0) {
+			return 0;
+		}
+		long start = LatencyRecorder.start();
+		boolean bodyChanged = (changes & Note.CHANGED_BODY) != 0;
+		boolean drawingChanged = (changes & Note.CHANGED_DRAWING) != 0;
+
+		byte[] body = bodyChanged ? encodeBody(note.getSpannable()) : null;
+		byte[] strokes = drawingChanged ? drawing.getStrokes() : null;
+		String imageRef = drawingChanged ? storeDrawing(drawing) : null;
+		boolean hasDrawing = drawingChanged && drawing.hasDrawing();
+		byte[] thumbnail = drawingChanged ? drawing.getThumbnail() : null;
+		long now = System.currentTimeMillis();
+
 		SQLiteDatabase db = getWritableDatabase();
+		int rows;
+		String oldImageRef;
+		db.beginTransactionNonExclusive();
+		try {
+			oldImageRef = drawingChanged ? getImageRef(note.getId()) : null;
+			SQLiteStatement statement = getStatement(getUpdateSql(changes));
+			synchronized (statement) {
+				// Bind in the order getUpdateSql() lists the columns
+				int index = 1;
+				if (bodyChanged) {
+					statement.bindBlob(index++, body);
+					statement.bindString(index++, note.getRawText());
+				}
+				if ((changes & Note.CHANGED_TITLE) != 0) {
+					bindStringOrNull(statement, index++, note.getTitle());
+				}
+				if (drawingChanged) {
+					bindStringOrNull(statement, index++, imageRef);
+					statement.bindLong(index++, ImageCodecs.TILED.getId());
+					bindBlobOrNull(statement, index++, strokes);
+					statement.bindLong(index++, hasDrawing ? 1 : 0);
+					bindBlobOrNull(statement, index++, thumbnail);
+				}
+				statement.bindLong(index++, now);
+				statement.bindLong(index, note.getId());
+				rows = statement.executeUpdateDelete();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			// The note passed in is the editor's; don't cache it, it keeps changing
+			mNoteCache.invalidate(note.getId());
+		}
+		if (oldImageRef != null && !oldImageRef.equals(imageRef)) {
+			releaseImageAfterCommit(oldImageRef);
+		}
+		mLatency.record("updateNote", start);
+		if (rows > 0) {
+			publish(new NoteChange(NoteChange.UPDATED, note.getId(), getNoteSummary(note.getId())));
+		}
+		return rows;
+	}
 
-		String spannableAsHtml = Html.toHtml(note.getSpannable());
+	/**
+	 * Returns the UPDATE statement writing the columns of the given changes.
+	 */
+	private static String getUpdateSql(int changes) {
+		synchronized (sUpdateSql) {
+			if (sUpdateSql[changes] == null) {
+				StringBuilder sql = new StringBuilder("UPDATE " + TABLE_NOTES + " SET ");
+				if ((changes & Note.CHANGED_BODY) != 0) {
+					sql.append(KEY_BODY + "=?, " + KEY_SPANNABLE_NOTE + "=NULL, " + KEY_PLAIN_TEXT + "=?, ");
+				}
+				if ((changes & Note.CHANGED_TITLE) != 0) {
+					sql.append(KEY_NOTE_TITLE + "=?, ");
+				}
+				if ((changes & Note.CHANGED_DRAWING) != 0) {
+					sql.append(KEY_IMAGE_FILE + "=?, " + KEY_IMAGE_CODEC + "=?, " + KEY_STROKES + "=?, "
+							+ KEY_HAS_DRAWING + "=?, " + KEY_THUMBNAIL + "=?, ");
+				}
+				sql.append(KEY_UPDATED_AT + "=? WHERE " + KEY_ID + "=?");
+				sUpdateSql[changes] = sql.toString();
+			}
+			return sUpdateSql[changes];
+		}
+	}
 
-		String date = dt.format(new Date());
+	/**
+	 * Method used to get a page of note summaries, most recently updated first.
+	 * Doesn't load images or parse the formatted text, and finds the page
+	 * by keyset, so it costs the same wherever the page is.
+	 * @param last last note of the previous page, or null for the first page
+	 * @param limit most notes to return
+	 * @return ArrayList of the NoteSummaries following last
+	 */
+	public ArrayList<NoteSummary> getNoteSummariesAfter(NoteSummary last, int limit) {
+		if (last == null) {
+			return queryNoteSummaries(null, null, ORDER_NEWEST_FIRST, limit, "getNoteSummariesAfter");
+		}
+		String updatedAt = String.valueOf(last.getUpdatedAt());
+		return queryNoteSummaries(SELECTION_AFTER, new String[]{updatedAt, updatedAt, String.valueOf(last.getId())},
+				ORDER_NEWEST_FIRST, limit, "getNoteSummariesAfter");
+	}
 
-		ContentValues values = new ContentValues();
-		values.put(KEY_IMAGE, BitmapConverter.getBytes(note.getImage()));
-		values.put(KEY_DATE_UPDATED, date);
-		values.put(KEY_SPANNABLE_NOTE, spannableAsHtml);
-		values.put(KEY_NOTE_TITLE, note.getTitle());
+	/**
+	 * Method used to get the page of note summaries coming before a note.
+	 * @param first first note of the next page
+	 * @param limit most notes to return
+	 * @return ArrayList of the NoteSummaries preceding first, newest first
+	 */
+	public ArrayList<NoteSummary> getNoteSummariesBefore(NoteSummary first, int limit) {
+		String updatedAt = String.valueOf(first.getUpdatedAt());
+		ArrayList<NoteSummary> notes = queryNoteSummaries(SELECTION_BEFORE, new String[]{updatedAt, updatedAt, String.valueOf(first.getId())},
+				ORDER_OLDEST_FIRST, limit, "getNoteSummariesBefore");
+		Collections.reverse(notes);
+		return notes;
+	}
 
-		return db.update(TABLE_NOTES, values, KEY_ID + "=?", new String[]{String.valueOf(note.getId())});
+	/**
+	 * Method used to get a page of note summaries by position, newest first.
+	 * Slower than the keyset methods for far positions, as SQLite has to
+	 * step over every note before offset.
+	 * @param offset position of the first note to return
+	 * @param limit most notes to return
+	 */
+	public ArrayList<NoteSummary> getNoteSummariesAt(int offset, int limit) {
+		return queryNoteSummaries(null, null, ORDER_NEWEST_FIRST, offset + "," + limit, "getNoteSummariesAt");
 	}
 
 	/**
-	 * Method used to get all notes in Database
-	 * @return ArrayList of Notes, containing all notes in Database
+	 * Method used to get the summary of specified note.
+	 * @param id KEY_ID of the note
+	 * @return NoteSummary of the note, or null if it doesn't exist
 	 */
-	public ArrayList<Note> getAllNotesAsArrayList() {
-		ArrayList<Note> notes = new ArrayList<>();
+	public NoteSummary getNoteSummary(int id) {
+		ArrayList<NoteSummary> notes = queryNoteSummaries(KEY_ID + "=?", new String[]{String.valueOf(id)},
+				null, null, "getNoteSummary");
+		return notes.isEmpty() ? null : notes.get(0);
+	}
 
-		SQLiteDatabase db = getWritableDatabase();
-		Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_NOTES, null);
+	/**
+	 * Method used to find notes by words in their title or text.
+	 * Each word of the query matches any word starting with it, ignoring
+	 * case.  Uses the full-text index, so it doesn't slow down as notes
+	 * are added.
+	 * @param query words to look for
+	 * @return ArrayList of NoteSummaries of matching notes, best match first,
+	 * with the matched words in the preview in bold
+	 */
+	public ArrayList<NoteSummary> searchNoteSummaries(String query) {
+		long start = LatencyRecorder.start();
+		try {
+			final ArrayList<NoteSummary> notes = new ArrayList<>();
+			String match = toMatchExpression(query);
+			if (match.length() == 0) {
+				return notes;
+			}
 
-		if (cursor.moveToFirst()) {
-			do {
-				int id = Integer.parseInt(cursor.getString(cursor.getColumnIndex(KEY_ID)));
-				Spannable spannable = (Spannable) Html.fromHtml(cursor.getString(cursor.getColumnIndex(KEY_SPANNABLE_NOTE)));
-				Bitmap image = BitmapConverter.getImage(cursor.getBlob(cursor.getColumnIndex(KEY_IMAGE)));
-				//Default val
-				Date date;
+			SQLiteDatabase db = getReadableDatabase();
+			Cursor cursor = db.rawQuery("SELECT n." + KEY_ID + ", n." + KEY_NOTE_TITLE + ", "
+					+ "snippet(" + TABLE_SEARCH + ", ?, ?, '...', 1, " + SNIPPET_TOKENS + "), "
+					+ "n." + KEY_HAS_DRAWING + ", n." + KEY_UPDATED_AT + ", matchinfo(" + TABLE_SEARCH + ") "
+					+ "FROM " + TABLE_SEARCH + " JOIN " + TABLE_NOTES + " n ON n." + KEY_ID + " = " + TABLE_SEARCH + ".docid "
+					+ "WHERE " + TABLE_SEARCH + " MATCH ?",
+					new String[]{String.valueOf(SNIPPET_START), String.valueOf(SNIPPET_END), match});
 
-				try {
-					date = dt.parse(cursor.getString(cursor.getColumnIndex(KEY_DATE_UPDATED)));
-				} catch (Exception e) {
-					date = new Date();
-					e.printStackTrace();
+			final IdentityHashMap<NoteSummary, Double> scores = new IdentityHashMap<>();
+			try {
+				while (cursor.moveToNext()) {
+					String title = cursor.isNull(1) ? "" : cursor.getString(1);
+					CharSequence preview = cursor.isNull(2) ? "" : highlightSnippet(cursor.getString(2));
+
+					NoteSummary note = new NoteSummary(cursor.getInt(0), title, preview, cursor.getInt(3) != 0, cursor.getLong(4));
+					scores.put(note, score(cursor.getBlob(5)));
+					notes.add(note);
 				}
+			} finally {
+				cursor.close();
+			}
 
-				String title;
-				try {
-					title = cursor.getString(cursor.getColumnIndex(KEY_NOTE_TITLE));
-				} catch (Exception e) {
-					title = "";
-					e.printStackTrace();
+			Collections.sort(notes, new Comparator<NoteSummary>() {
+				@Override
+				public int compare(NoteSummary a, NoteSummary b) {
+					return Double.compare(scores.get(b), scores.get(a));
 				}
+			});
+			return notes;
+		} finally {
+			mLatency.record("searchNoteSummaries", start);
+		}
+	}
 
-				Note note = new Note(id, title, spannable, image, date);
-				notes.add(note);
+	/**
+	 * Turns what the user typed into an FTS match expression.
+	 * Keeps only letters and digits, so nothing typed can be read as
+	 * query syntax, and lower-cases words so they are never taken for
+	 * AND/OR/NOT/NEAR.
+	 */
+	private static String toMatchExpression(String query) {
+		StringBuilder match = new StringBuilder();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= query.length(); i++) {
+			char c = i < query.length() ? query.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(Character.toLowerCase(c));
+			} else if (word.length() > 0) {
+				if (match.length() > 0) {
+					match.append(' ');
+				}
+				match.append(word).append('*');
+				word.setLength(0);
 			}
-			while (cursor.moveToNext());
 		}
-		cursor.close();
-		return notes;
+		return match.toString();
 	}
 
 	/**
-	 * Method used to get all notes in Database
-	 * @return Array of Notes, containing all notes in Database
+	 * Turns the markers FTS put around matched words into bold spans.
 	 */
-	public Note[] getAllNotesAsArray() {
-		ArrayList<Note> notes = new ArrayList<>();
-
-		SQLiteDatabase db = getWritableDatabase();
-		Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_NOTES, null);
-
-		if (cursor.moveToFirst()) {
-			do {
-				int id = Integer.parseInt(cursor.getString(cursor.getColumnIndex(KEY_ID)));
-				Spannable spannable = (Spannable) Html.fromHtml(cursor.getString(cursor.getColumnIndex(KEY_SPANNABLE_NOTE)));
-				Bitmap image = BitmapConverter.getImage(cursor.getBlob(cursor.getColumnIndex(KEY_IMAGE)));
-				
-				Date date;
-				try {
-					date = dt.parse(cursor.getString(cursor.getColumnIndex(KEY_DATE_UPDATED)));
-				} catch (Exception e) {
-					date = new Date();
-					e.printStackTrace();
+	private static CharSequence highlightSnippet(String snippet) {
+		SpannableStringBuilder builder = new SpannableStringBuilder();
+		int boldStart = -1;
+		for (int i = 0; i < snippet.length(); i++) {
+			char c = snippet.charAt(i);
+			if (c == SNIPPET_START) {
+				boldStart = builder.length();
+			} else if (c == SNIPPET_END) {
+				if (boldStart >= 0) {
+					builder.setSpan(new StyleSpan(Typeface.BOLD), boldStart, builder.length(),
+							Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 				}
+				boldStart = -1;
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder;
+	}
 
-				String title;
-				try {
-					title = cursor.getString(cursor.getColumnIndex(KEY_NOTE_TITLE));
-				} catch (Exception e) {
-					title = "";
-					e.printStackTrace();
+	/**
+	 * Scores a search result from its FTS matchinfo.
+	 * For every query word and column, adds how often the word is in this
+	 * note relative to how often it is in all notes, so rare words count
+	 * more.  Title hits are weighted by TITLE_WEIGHT.
+	 */
+	private static double score(byte[] matchinfo) {
+		// Default matchinfo format "pcx": phrase count, column count, then
+		// three numbers per phrase and column.  Native byte order.
+		ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+		int phrases = info.getInt(0);
+		int columns = info.getInt(4);
+		double score = 0;
+		for (int phrase = 0; phrase < phrases; phrase++) {
+			for (int column = 0; column < columns; column++) {
+				int offset = 8 + 12 * (phrase * columns + column);
+				int hitsHere = info.getInt(offset);
+				int hitsEverywhere = info.getInt(offset + 4);
+				if (hitsHere > 0) {
+					double weight = column == 0 ? TITLE_WEIGHT : 1.0;
+					score += weight * hitsHere / hitsEverywhere;
 				}
-
-				Note note = new Note(id, title, spannable, image, date);
-				notes.add(note);
 			}
-			while (cursor.moveToNext());
 		}
+		return score;
+	}
+
+	private ArrayList<NoteSummary> queryNoteSummaries(String selection, String[] selectionArgs,
+			String orderBy, Object limit, String operation) {
+		long start = LatencyRecorder.start();
+		ArrayList<NoteSummary> notes = new ArrayList<>();
+
+		SQLiteDatabase db = getReadableDatabase();
+		Cursor cursor = db.query(TABLE_NOTES,
+				new String[]{KEY_ID, KEY_NOTE_TITLE, "substr(" + KEY_PLAIN_TEXT + ", 1, " + PREVIEW_LENGTH + ")",
+						KEY_HAS_DRAWING, KEY_UPDATED_AT},
+				selection, selectionArgs, null, null, orderBy, limit == null ? null : limit.toString());
+
+		try {
+			while (cursor.moveToNext()) {
+				String title = cursor.isNull(1) ? "" : cursor.getString(1);
+				CharSequence preview = cursor.isNull(2) ? "" : cursor.getString(2);
 
-		Note[] result = new Note[notes.size()];
-		for (int i = 0; i < notes.size(); i++) {
-			result[i] = notes.get(i);
+				notes.add(new NoteSummary(cursor.getInt(0), title, preview, cursor.getInt(3) != 0, cursor.getLong(4)));
+			}
+		} finally {
+			cursor.close();
 		}
-		
-		cursor.close();
-		return result;
+		mLatency.record(operation, start);
+		return notes;
 	}
 }
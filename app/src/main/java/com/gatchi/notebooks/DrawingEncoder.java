@@ -0,0 +1,133 @@
+package com.gatchi.notebooks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the drawings of saved notes in the background, so they're
+ * ready by the time NoteWriteQueue writes them.
+ *
+ * At most THREADS drawings are encoded at once and MAX_QUEUED wait.  When
+ * that's full, submit() turns the drawing down rather than blocking the
+ * caller, and it's encoded by the writer when written instead, so a burst
+ * of saves holds on to a bounded number of drawings and encodings.
+ *
+ * Drawings must not change while encoded; save snapshots
+ * (TiledCanvas.snapshot()), and let go of them through release(), which
+ * waits for an encoding of it that was cancelled but had already begun.
+ * Encode times are recorded as "encode" and
+ * the time spent queued first as "wait".  Thread-safe.
+ */
+public class DrawingEncoder {
+	public static final int THREADS = 1;
+	public static final int MAX_QUEUED = 2;
+
+	private final DatabaseHandler mDbHandler;
+	private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+			0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED));
+	private final LatencyRecorder mLatency = new LatencyRecorder("DrawingEncoder");
+
+	// Counters, for tuning
+	private long mSubmitted;
+	private long mTurnedDown;
+
+	public DrawingEncoder(DatabaseHandler dbHandler) {
+		mDbHandler = dbHandler;
+	}
+
+	/**
+	 * Starts encoding a note's drawing.  Never blocks.
+	 * @return the encoding under way, or null if too many already are
+	 */
+	public Future<EncodedDrawing> submit(final Note note) {
+		final long queuedAt = LatencyRecorder.start();
+		try {
+			Future<EncodedDrawing> encoding = mExecutor.submit(new Callable<EncodedDrawing>() {
+				@Override
+				public EncodedDrawing call() {
+					mLatency.record("wait", queuedAt);
+					return encode(note);
+				}
+			});
+			synchronized (this) {
+				mSubmitted++;
+			}
+			return encoding;
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				mTurnedDown++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Drops an encoding that won't be needed, a newer save having replaced it.
+	 */
+	public void cancel(Future<EncodedDrawing> encoding) {
+		if (encoding != null && encoding.cancel(false)) {
+			mExecutor.purge();  // frees its place in the queue
+		}
+	}
+
+	/**
+	 * Returns the drawing encoded by submit(), waiting for it if need be,
+	 * or encodes it now if it was turned down or failed.
+	 * @param encoding what submit() returned for the note; may be null
+	 */
+	public EncodedDrawing get(Future<EncodedDrawing> encoding, Note note) {
+		if (encoding != null) {
+			try {
+				return encoding.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | CancellationException e) {
+				e.printStackTrace();  // try again below; if it fails again, the save does
+			}
+		}
+		return encode(note);
+	}
+
+	/**
+	 * Returns the timings of encoding ("encode") and of waiting to be encoded ("wait").
+	 */
+	public LatencyRecorder getLatencyRecorder() {
+		return mLatency;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DrawingEncoder queued=" + mExecutor.getQueue().size() + " submitted=" + mSubmitted
+				+ " turnedDown=" + mTurnedDown;
+	}
+
+	/**
+	 * Clears a drawing that was submitted, once no encoding is reading it.
+	 */
+	public void release(TiledCanvas drawing) {
+		synchronized (drawing) {
+			drawing.clear();
+		}
+	}
+
+	private EncodedDrawing encode(Note note) {
+		long start = LatencyRecorder.start();
+		EncodedDrawing encoded;
+		if (note.getDrawing() == null) {
+			encoded = mDbHandler.encodeDrawing(note);
+		} else {
+			// Held while reading it; see release()
+			synchronized (note.getDrawing()) {
+				encoded = mDbHandler.encodeDrawing(note);
+			}
+		}
+		mLatency.record("encode", start);
+		return encoded;
+	}
+}
@@ -0,0 +1,320 @@
+package com.gatchi.notebooks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A drawing together with the strokes and wipes that made it, for undo
+ * and redo.
+ *
+ * Operations are kept as Strokes, which are small.  Every
+ * checkpointInterval operations a copy of the drawing's tiles is kept as
+ * well, so undoing replays at most that many strokes onto the nearest
+ * earlier copy rather than the whole history; the interval bounds how
+ * long an undo takes.  Once the history takes more than maxBytes, the
+ * oldest operations are forgotten a checkpoint at a time.  Tiles of
+ * checkpoints let go of go back to the tile pool; the current drawing
+ * may still be shared (with a save in progress), so when it's replaced
+ * only its paged out tiles and shared ones are given back (see
+ * TiledCanvas.releasePaged()).
+ *
+ * With paging on, checkpoints share the drawing's tiles copy-on-write
+ * rather than copying them (see TiledCanvas.copy()), so taking one costs
+ * nothing and undoing keeps the tiles in view in memory.
+ *
+ * Undo times are recorded as "undo" by getLatencyRecorder().
+ * Not thread safe.
+ */
+public class DrawingHistory {
+	public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 16;
+
+	// Rough cost of one operation besides its points
+	private static final int OPERATION_BYTES = 40;
+
+	private final int mMaxBytes;
+	private final int mCheckpointInterval;
+	private final LatencyRecorder mLatency = new LatencyRecorder("DrawingHistory");
+
+	// The drawing as it is now, and the strokes it's made of (null if not known)
+	private TiledCanvas mDrawing;
+	private List<Stroke> mStrokes;
+
+	// Operations since the oldest checkpoint; null for a wipe
+	private final List<Stroke> mOperations = new ArrayList<>();
+	// Number of operations applied; those after it can be redone
+	private int mPosition;
+	// Copies of the drawing, oldest first; the first one is at operation 0
+	private final List<Checkpoint> mCheckpoints = new ArrayList<>();
+	private long mBytes;
+
+	public DrawingHistory(int maxBytes, int checkpointInterval) {
+		mMaxBytes = maxBytes;
+		mCheckpointInterval = Math.max(1, checkpointInterval);
+		reset(new TiledCanvas(0, 0), new ArrayList<Stroke>());
+	}
+
+	/**
+	 * Starts over from given drawing, with nothing to undo.
+	 * @param strokes strokes the drawing is made of, or null if it's only known as pixels
+	 */
+	public void reset(TiledCanvas drawing, List<Stroke> strokes) {
+		if (mDrawing != null && mDrawing != drawing) {
+			mDrawing.releasePaged();
+		}
+		mDrawing = drawing;
+		mStrokes = strokes;
+		mOperations.clear();
+		for (Checkpoint checkpoint : mCheckpoints) {
+			checkpoint.mDrawing.clear();
+		}
+		mCheckpoints.clear();
+		mPosition = 0;
+		mBytes = 0;
+		addCheckpoint();
+	}
+
+	/**
+	 * Lets go of the drawing and everything kept to undo, giving back
+	 * their tiles, for when nothing will be drawn anymore.  Snapshots
+	 * taken of the drawing stay as they are.
+	 */
+	public void release() {
+		reset(mDrawing.blank(), new ArrayList<Stroke>());
+	}
+
+	/**
+	 * Sets whether the drawing, and the copies kept of it, keep their
+	 * tiles compact; see TiledCanvas.setCompact().  Copies made from then
+	 * on take it after them.
+	 */
+	public void setCompact(boolean compact) {
+		mDrawing.setCompact(compact);
+		for (Checkpoint checkpoint : mCheckpoints) {
+			checkpoint.mDrawing.setCompact(compact);
+		}
+	}
+
+	/**
+	 * Turns on paging for the drawing and the copies kept of it; see
+	 * TiledCanvas.setPaging().  Copies made from then on take it after them.
+	 */
+	public void setPaging(TileStore store, int maxResidentBytes, Runnable onPagedIn) {
+		mDrawing.setPaging(store, maxResidentBytes, onPagedIn);
+		for (Checkpoint checkpoint : mCheckpoints) {
+			checkpoint.mDrawing.setPaging(store, maxResidentBytes, onPagedIn);
+		}
+	}
+
+	/**
+	 * Sets the size of the drawing, and of the copies kept of it.
+	 */
+	public void setSize(int width, int height) {
+		mDrawing.setSize(width, height);
+		for (Checkpoint checkpoint : mCheckpoints) {
+			checkpoint.mDrawing.setSize(width, height);
+		}
+	}
+
+	/**
+	 * Returns the drawing as it is now.  It may be replaced by undo(), redo() and clear().
+	 */
+	public TiledCanvas getDrawing() {
+		return mDrawing;
+	}
+
+	/**
+	 * Returns the strokes the drawing is made of, or null if it's only known as pixels.
+	 */
+	public List<Stroke> getStrokes() {
+		return mStrokes;
+	}
+
+	/**
+	 * Records a stroke that has just been drawn onto getDrawing().
+	 */
+	public void addStroke(Stroke stroke) {
+		if (mStrokes != null) {
+			mStrokes.add(stroke);
+		}
+		push(stroke);
+	}
+
+	/**
+	 * Wipes the drawing, which from then on is made of strokes only.
+	 */
+	public void clear() {
+		wipe();
+		push(null);
+	}
+
+	public boolean canUndo() {
+		return mPosition > 0;
+	}
+
+	public boolean canRedo() {
+		return mPosition < mOperations.size();
+	}
+
+	/**
+	 * Takes back the latest operation, if any.
+	 * @return true if anything was undone
+	 */
+	public boolean undo() {
+		if (!canUndo()) {
+			return false;
+		}
+		long start = LatencyRecorder.start();
+		mPosition--;
+		Checkpoint checkpoint = mCheckpoints.get(0);
+		for (Checkpoint later : mCheckpoints) {
+			if (later.mPosition > mPosition) {
+				break;
+			}
+			checkpoint = later;
+		}
+		mDrawing.releasePaged();
+		mDrawing = checkpoint.mDrawing.copy();
+		mStrokes = checkpoint.mStrokes == null ? null : new ArrayList<>(checkpoint.mStrokes);
+		for (int i = checkpoint.mPosition; i < mPosition; i++) {
+			apply(mOperations.get(i));
+		}
+		mLatency.record("undo", start);
+		return true;
+	}
+
+	/**
+	 * Does the latest undone operation again, if any.
+	 * @return true if anything was redone
+	 */
+	public boolean redo() {
+		if (!canRedo()) {
+			return false;
+		}
+		long start = LatencyRecorder.start();
+		apply(mOperations.get(mPosition++));
+		mLatency.record("redo", start);
+		return true;
+	}
+
+	/**
+	 * Returns the approximate number of bytes the history holds on to,
+	 * besides the current drawing.
+	 */
+	public long getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * Returns the timings of undo and redo.
+	 */
+	public LatencyRecorder getLatencyRecorder() {
+		return mLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "DrawingHistory operations=" + mOperations.size() + " position=" + mPosition
+				+ " checkpoints=" + mCheckpoints.size() + " bytes=" + mBytes;
+	}
+
+	private void push(Stroke operation) {
+		// A new operation drops what could have been redone
+		while (mOperations.size() > mPosition) {
+			mBytes -= sizeOf(mOperations.remove(mOperations.size() - 1));
+		}
+		while (mCheckpoints.get(mCheckpoints.size() - 1).mPosition > mPosition) {
+			mBytes -= release(mCheckpoints.remove(mCheckpoints.size() - 1));
+		}
+
+		mOperations.add(operation);
+		mBytes += sizeOf(operation);
+		mPosition++;
+		if (mPosition - mCheckpoints.get(mCheckpoints.size() - 1).mPosition >= mCheckpointInterval) {
+			addCheckpoint();
+		}
+		trim();
+	}
+
+	private void apply(Stroke operation) {
+		if (operation == null) {
+			wipe();
+		} else {
+			operation.drawOn(mDrawing);
+			if (mStrokes != null) {
+				mStrokes.add(operation);
+			}
+		}
+	}
+
+	/**
+	 * Starts a blank drawing rather than clearing this one, whose tiles
+	 * may still be being saved.
+	 */
+	private void wipe() {
+		TiledCanvas blank = mDrawing.blank();
+		mDrawing.releasePaged();
+		mDrawing = blank;
+		mStrokes = new ArrayList<>();
+	}
+
+	private void addCheckpoint() {
+		Checkpoint checkpoint = new Checkpoint(mPosition, mDrawing.copy(),
+				mStrokes == null ? null : new ArrayList<>(mStrokes));
+		mCheckpoints.add(checkpoint);
+		mBytes += checkpoint.mBytes;
+	}
+
+	/**
+	 * Forgets the oldest checkpoint and the operations up to the next one
+	 * while over budget.  The current position always keeps a checkpoint
+	 * at or before it.
+	 */
+	private void trim() {
+		while (mBytes > mMaxBytes && mCheckpoints.size() > 1 && mCheckpoints.get(1).mPosition <= mPosition) {
+			mBytes -= release(mCheckpoints.remove(0));
+			int dropped = mCheckpoints.get(0).mPosition;
+			for (int i = 0; i < dropped; i++) {
+				mBytes -= sizeOf(mOperations.get(i));
+			}
+			mOperations.subList(0, dropped).clear();
+			mPosition -= dropped;
+			for (Checkpoint checkpoint : mCheckpoints) {
+				checkpoint.mPosition -= dropped;
+			}
+		}
+	}
+
+	/**
+	 * Hands the tiles of a dropped checkpoint back to the pool.
+	 * @return the bytes it took
+	 */
+	private static int release(Checkpoint checkpoint) {
+		checkpoint.mDrawing.clear();
+		return checkpoint.mBytes;
+	}
+
+	private static int sizeOf(Stroke operation) {
+		return operation == null ? OPERATION_BYTES : OPERATION_BYTES + operation.getPointCount() * 4;
+	}
+
+	/**
+	 * The drawing as it was after some number of operations.
+	 */
+	private static class Checkpoint {
+		private int mPosition;
+		private final TiledCanvas mDrawing;
+		private final List<Stroke> mStrokes;
+		private final int mBytes;
+
+		Checkpoint(int position, TiledCanvas drawing, List<Stroke> strokes) {
+			mPosition = position;
+			mDrawing = drawing;
+			mStrokes = strokes;
+			// Tiles shared with the drawing cost nothing until it draws over them, so
+			// only those of its own count; paged out ones too, bounding how much of
+			// the tile store the history takes
+			mBytes = drawing.getOwnedByteCount() + (strokes == null ? 0 : strokes.size() * 4);
+		}
+	}
+}
@@ -1,18 +1,25 @@
 package com.gatchi.notebooks;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.Build;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A special view for containing sketches.
  */
@@ -20,18 +27,103 @@ public class DrawingView extends View {
 
 	/// initial color
 	private static final int DEFAULT_PAINT_COLOR = Color.BLACK;
-	/// drawing path
-	private Path drawPath;
+	/// heap size (MB) at or below which the drawing is kept compact
+	private static final int LOW_MEMORY_CLASS = 64;
+	/// furthest the view can be scrolled across the drawing, right or down (px)
+	private static final int MAX_SCROLL = 1 << 20;
 	/// drawing and canvas paint
 	private Paint drawPaint, canvasPaint;
-	/// canvas
-	private Canvas drawCanvas;
-	/// canvas bitmap
-	private Bitmap canvasBitmap;
+	/// the drawing, in tiles only where something is drawn, and its undo history
+	private final DrawingHistory history =
+			new DrawingHistory(DrawingHistory.DEFAULT_MAX_BYTES, DrawingHistory.DEFAULT_CHECKPOINT_INTERVAL);
 	/// brush size
 	private float brushSize;
 	/// erase mode
 	private boolean erase;
+	/// keep the drawing's tiles compact (see TiledCanvas.setCompact)
+	private boolean compact;
+	/// where tiles beyond those on screen are paged out to, or null if they can't be
+	private TileStore tileStore;
+	/// most bytes of tiles kept in memory; about twice those the view can show at once
+	private int residentBytes;
+	private final Runnable onPagedIn = new Runnable() {
+		@Override
+		public void run() {
+			invalidate();  // a tile that was left out is back
+		}
+	};
+	/// two fingers are scrolling the view across the drawing rather than drawing
+	private boolean panning;
+	private float panX, panY;
+	/// bumped on every change to the drawing, to tell if it needs saving
+	private int generation;
+	/// area to redraw for the stroke segments just drawn
+	private final Rect dirtyRect = new Rect();
+	/// samples and points of the stroke being drawn, turned into smoothed segments
+	private final StrokeInput strokeInput = new StrokeInput();
+	/// draws those segments onto the drawing and marks where they go for redrawing
+	private final StrokeInput.SegmentSink segmentSink = new StrokeInput.SegmentSink() {
+		@Override
+		public void line(float startX, float startY, float stopX, float stopY) {
+			history.getDrawing().drawLine(startX, startY, stopX, stopY, drawPaint, erase);
+			addDirty(startX, startY, stopX, stopY);
+		}
+
+		@Override
+		public void quad(float startX, float startY, float controlX, float controlY, float stopX, float stopY) {
+			history.getDrawing().drawQuad(startX, startY, controlX, controlY, stopX, stopY, drawPaint, erase);
+			addDirty(startX, startY, stopX, stopY);
+			addDirty(controlX, controlY, controlX, controlY);
+		}
+	};
+	/// a stroke is being drawn: touched down and not lifted yet
+	private boolean stroking;
+	/// the drawing is still being loaded; nothing can be drawn meanwhile
+	private boolean loading;
+	/// thumbnail standing in for the drawing while it loads, or null
+	private Bitmap placeholder;
+	private Paint placeholderPaint;
+	private final Rect placeholderSrc = new Rect();
+	private final Rect placeholderDst = new Rect();
+	/// draws the pending samples on the next frame, if there's a Choreographer (API 16)
+	private final Object frameCallback = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+			? new Choreographer.FrameCallback() {
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					frameScheduled = false;
+					drawPendingPoints();
+				}
+			} : null;
+	private boolean frameScheduled;
+	/// told about each finished stroke
+	private OnDrawListener onDrawListener;
+
+	/**
+	 * Gets told about changes to the drawing as they are made.
+	 */
+	public interface OnDrawListener {
+		/**
+		 * Called when a stroke has been drawn onto the canvas.
+		 * @param points x and y of each point; only valid during the call
+		 * @param pointCount number of floats of points used
+		 */
+		void onStroke(float[] points, int pointCount, int color, float width, boolean erase);
+
+		/**
+		 * Called when the canvas has been wiped.
+		 */
+		void onClear();
+
+		/**
+		 * Called when the latest stroke or wipe has been undone.
+		 */
+		void onUndo();
+
+		/**
+		 * Called when the latest undone stroke or wipe has been redone.
+		 */
+		void onRedo();
+	}
 
 	public DrawingView(Context context, AttributeSet attrs){
 		super(context, attrs);
@@ -47,7 +139,6 @@ public class DrawingView extends View {
 	 * edits.
 	 */
 	private void setupDrawing(){
-		drawPath = new Path();
 		drawPaint = new Paint();
 
 		setBrushSize(10);
@@ -61,27 +152,123 @@ public class DrawingView extends View {
 		drawPaint.setStrokeCap(Paint.Cap.ROUND);
 
 		canvasPaint = new Paint(Paint.DITHER_FLAG);
+
+		setCompact(!isInEditMode() && isShortOfMemory(getContext()));
+		tileStore = isInEditMode() ? null : TileStore.getInstance(getContext());
+		// Until laid out, as if the view were the whole screen
+		DisplayMetrics metrics = getResources().getDisplayMetrics();
+		residentBytes = getResidentBytes(metrics.widthPixels, metrics.heightPixels);
 	}
 
 	/**
-	 * Why is this method like this ??
-	 * Why is the bitmap being created during this method instead
-	 * of during the onDraw()? Is this being called before the onDraw()?
-	 * Even so, doesnt it make more sense to have this method do nothing
-	 * if there is 
-	 * @todo Figure out why this is like this.
+	 * Returns the paging budget for a view of given size: twice the tiles
+	 * it can show at once.  Any scroll position shows parts of at most one
+	 * more column and row than fit.
+	 */
+	private static int getResidentBytes(int width, int height) {
+		int columns = (width + TiledCanvas.TILE_SIZE - 1) / TiledCanvas.TILE_SIZE + 1;
+		int rows = (height + TiledCanvas.TILE_SIZE - 1) / TiledCanvas.TILE_SIZE + 1;
+		return 2 * columns * rows * TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE * 4;
+	}
+
+	/**
+	 * Tells if the device has little memory to spare for the drawing:
+	 * a low RAM device, or one giving apps a small heap.
+	 */
+	private static boolean isShortOfMemory(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice()) {
+			return true;
+		}
+		return activityManager.getMemoryClass() <= LOW_MEMORY_CLASS;
+	}
+
+	/**
+	 * Sets whether the drawing is kept compact: about a quarter of the
+	 * memory per tile, with colors near rather than exact where inks of
+	 * different colors blend.  On by default on devices short of memory.
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+		history.setCompact(compact);
+	}
+
+	/**
+	 * Returns where the drawing's tiles are paged out to, or null if they aren't.
+	 * Used by NoteActivity::loadNote, to page a big drawing out as it's loaded.
+	 */
+	public TileStore getTileStore() {
+		return tileStore;
+	}
+
+	/**
+	 * Returns the most bytes of tiles the drawing keeps in memory when paging.
+	 */
+	public int getMaxResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * Pages out tiles of the drawing beyond what the view shows, with
+	 * room to spare (see TiledCanvas.setPaging), so scrolling across a big
+	 * drawing takes no more memory than a small one.
+	 */
+	private void setUpPaging() {
+		if (tileStore != null && residentBytes > 0) {
+			history.setPaging(tileStore, residentBytes, onPagedIn);
+		}
+	}
+
+	/**
+	 * Called whenever the view is laid out at a new size, which happens
+	 * each time the keyboard or a panel opens or closes.
+	 * The drawing only ever grows to cover the view: shrinking would drop
+	 * what's drawn near the bottom, and growing costs nothing, as no
+	 * pixels are allocated until something is drawn there.
 	 */
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
-		if (canvasBitmap == null) {
-			canvasBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-			drawCanvas = new Canvas(canvasBitmap);
+		residentBytes = getResidentBytes(w, h);
+		setUpPaging();
+		growToView();
+	}
+
+	/**
+	 * Lets go of the drawing and its history once the view is gone, so
+	 * the tiles they have in the tile store are given back; a save in
+	 * progress has a snapshot of its own.
+	 */
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		cancelFrame();
+		stroking = false;
+		history.release();
+	}
+
+	/**
+	 * Grows the drawing to cover the view where it's scrolled to.
+	 */
+	private void growToView() {
+		TiledCanvas drawing = history.getDrawing();
+		int width = getScrollX() + getWidth();
+		int height = getScrollY() + getHeight();
+		if (width > drawing.getWidth() || height > drawing.getHeight()) {
+			history.setSize(Math.max(width, drawing.getWidth()), Math.max(height, drawing.getHeight()));
 		}
-		else {
-			canvasBitmap = Bitmap.createBitmap(canvasBitmap);
-			canvasBitmap = canvasBitmap.copy(Bitmap.Config.ARGB_8888, true);
-			drawCanvas = new Canvas(canvasBitmap); // repeated, move line down
+	}
+
+	/**
+	 * Scrolls the view across the drawing, which grows to follow.  Only
+	 * the tiles in view need be in memory; see setUpPaging().
+	 */
+	private void panBy(float dx, float dy) {
+		int x = Math.max(0, Math.min(MAX_SCROLL, getScrollX() + Math.round(dx)));
+		int y = Math.max(0, Math.min(MAX_SCROLL, getScrollY() + Math.round(dy)));
+		if (x != getScrollX() || y != getScrollY()) {
+			scrollTo(x, y);
+			growToView();
 		}
 	}
 
@@ -97,48 +284,274 @@ public class DrawingView extends View {
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
-		// Numbers are position offsets from left and top
-		canvas.drawBitmap(canvasBitmap, 0, 0, canvasPaint);
-		canvas.drawPath(drawPath, drawPaint);
+		if (placeholder != null) {
+			drawPlaceholder(canvas);
+			return;
+		}
+		// Only the tiles within the clip are drawn; the stroke being drawn is already on them.
+		// The canvas is already scrolled, as are invalidated areas
+		history.getDrawing().draw(canvas, canvasPaint);
+	}
+
+	/**
+	 * Draws the placeholder thumbnail stretched over the view.
+	 * Thumbnails are the drawing scaled to fit a white square; this takes
+	 * the part of it the drawing covers, supposing the drawing is the size
+	 * of the view, as it usually is.  It's multiplied onto what's behind,
+	 * so the white doesn't show.
+	 */
+	private void drawPlaceholder(Canvas canvas) {
+		int size = placeholder.getWidth();
+		float scale = Math.min((float) size / Math.max(1, getWidth()), (float) size / Math.max(1, getHeight()));
+		int width = Math.round(getWidth() * scale);
+		int height = Math.round(getHeight() * scale);
+		placeholderSrc.set((size - width) / 2, (size - height) / 2, (size + width) / 2, (size + height) / 2);
+		placeholderDst.set(getScrollX(), getScrollY(), getScrollX() + getWidth(), getScrollY() + getHeight());
+		canvas.drawBitmap(placeholder, placeholderSrc, placeholderDst, placeholderPaint);
+	}
+
+	/**
+	 * Sets whether the drawing is still being loaded.  Meanwhile strokes,
+	 * wipes, undo and redo are ignored, so nothing is drawn onto a drawing
+	 * about to be replaced; the rest of the note can be edited as usual.
+	 * Ending it drops the placeholder.
+	 * Used by NoteActivity::loadNote.
+	 */
+	public void setLoading(boolean loading) {
+		this.loading = loading;
+		if (!loading && placeholder != null) {
+			placeholder = null;
+			invalidate();
+		}
+	}
+
+	/**
+	 * Shows a thumbnail of the drawing until setLoading(false).
+	 * Used by NoteActivity::loadNote.
+	 */
+	public void setPlaceholder(Bitmap thumbnail) {
+		if (!loading) {
+			return;  // the drawing got here first
+		}
+		if (placeholderPaint == null) {
+			placeholderPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+			placeholderPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.MULTIPLY));
+		}
+		placeholder = thumbnail;
+		invalidate();
 	}
 
 	/**
 	 * Translates touches to draw strokes.
+	 * Every sample is used, including those the event batched up since the
+	 * last one.  They are queued and drawn once per frame, as smoothed
+	 * segments straight onto the drawing, and only the area around those
+	 * is redrawn, so a long stroke costs no more per frame than a short one.
+	 * Allocates nothing per sample.
+	 * Two fingers scroll the view instead; a stroke begun by the first
+	 * one is finished as it is.
 	 * @todo Make paint appear directly under finger.
 	 */
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 		// TODO: Add offsets to X and Y to make paint position more accurate
-		float touchX = event.getX();
-		float touchY = event.getY();
-
-		switch (event.getAction()) {
+		switch (event.getActionMasked()) {
 			case MotionEvent.ACTION_DOWN:
-				drawPath.moveTo(touchX, touchY);
+				if (loading) {
+					return false;
+				}
+				stroking = true;
+				strokeInput.begin(event.getX() + getScrollX(), event.getY() + getScrollY());
+				break;
+			case MotionEvent.ACTION_POINTER_DOWN:
+				if (stroking) {
+					finishStroke();
+				}
+				panning = true;
+				panX = (event.getX(0) + event.getX(1)) / 2;
+				panY = (event.getY(0) + event.getY(1)) / 2;
 				break;
 			case MotionEvent.ACTION_MOVE:
-				drawPath.lineTo(touchX, touchY);
+				if (panning) {
+					if (event.getPointerCount() >= 2) {
+						float x = (event.getX(0) + event.getX(1)) / 2;
+						float y = (event.getY(0) + event.getY(1)) / 2;
+						panBy(panX - x, panY - y);
+						panX = x;
+						panY = y;
+					}
+					break;
+				}
+				if (!stroking) {
+					return false;  // finished early by snapshotDrawing()
+				}
+				queueSamples(event);
+				scheduleFrame();
 				break;
+			case MotionEvent.ACTION_POINTER_UP:
+				if (panning && event.getPointerCount() == 3) {
+					// Carry on with the two left, from where they are
+					int first = event.getActionIndex() == 0 ? 1 : 0;
+					int second = event.getActionIndex() == 2 ? 1 : 2;
+					panX = (event.getX(first) + event.getX(second)) / 2;
+					panY = (event.getY(first) + event.getY(second)) / 2;
+				}
+				return panning;
 			case MotionEvent.ACTION_UP:
-				drawCanvas.drawPath(drawPath, drawPaint);
-				drawPath.reset();
+			case MotionEvent.ACTION_CANCEL:  // what's drawn so far stays
+				if (panning) {
+					panning = false;  // the last finger doesn't start a stroke
+					break;
+				}
+				if (!stroking) {
+					return false;
+				}
+				queueSamples(event);
+				finishStroke();
 				break;
 			default:
 				return false;
 		}
-		invalidate();
 		return true;
 	}
 
+	/**
+	 * Draws what's left of the stroke being drawn and adds it to the history.
+	 */
+	private void finishStroke() {
+		stroking = false;
+		cancelFrame();
+		drawPendingPoints();
+		drawStrokeEnd();
+		if (erase) {
+			history.getDrawing().pruneEmptyTiles();
+		}
+		float[] points = strokeInput.getPoints();
+		int pointCount = strokeInput.getPointCount();
+		history.addStroke(new Stroke(points, pointCount, drawPaint.getColor(), brushSize, erase));
+		generation++;
+		if (onDrawListener != null) {
+			onDrawListener.onStroke(points, pointCount, drawPaint.getColor(), brushSize, erase);
+		}
+	}
+
+	/**
+	 * Adds the samples of a move event, oldest first, to the pending ones.
+	 */
+	private void queueSamples(MotionEvent event) {
+		int historySize = event.getHistorySize();
+		strokeInput.ensurePendingCapacity(historySize + 1);
+		// In drawing coordinates, which the view is scrolled across
+		float scrollX = getScrollX();
+		float scrollY = getScrollY();
+		for (int i = 0; i < historySize; i++) {
+			strokeInput.queue(event.getHistoricalX(i) + scrollX, event.getHistoricalY(i) + scrollY);
+		}
+		strokeInput.queue(event.getX() + scrollX, event.getY() + scrollY);
+	}
+
+	private void scheduleFrame() {
+		if (frameCallback == null) {
+			drawPendingPoints();  // no Choreographer; draw each event as it comes
+		} else if (!frameScheduled) {
+			frameScheduled = true;
+			Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+		}
+	}
+
+	private void cancelFrame() {
+		if (frameScheduled) {
+			frameScheduled = false;
+			Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) frameCallback);
+		}
+	}
+
+	/**
+	 * Draws the segments up to each pending sample and redraws the area they cover.
+	 */
+	private void drawPendingPoints() {
+		dirtyRect.setEmpty();
+		strokeInput.drawPending(segmentSink);
+		invalidateDirty();
+	}
+
+	/**
+	 * Draws the straight end of the stroke and redraws it.
+	 */
+	private void drawStrokeEnd() {
+		dirtyRect.setEmpty();
+		strokeInput.drawEnd(segmentSink);
+		invalidateDirty();
+	}
+
+	/**
+	 * Adds the area between two points, padded for the brush, to what needs redrawing.
+	 * In drawing coordinates, as invalidate() takes them in a scrolled view.
+	 */
+	private void addDirty(float x1, float y1, float x2, float y2) {
+		int pad = (int) Math.ceil(brushSize / 2) + 2;  // the stroke and its anti-aliasing
+		dirtyRect.union((int) Math.floor(Math.min(x1, x2)) - pad, (int) Math.floor(Math.min(y1, y2)) - pad,
+				(int) Math.ceil(Math.max(x1, x2)) + pad, (int) Math.ceil(Math.max(y1, y2)) + pad);
+	}
+
+	private void invalidateDirty() {
+		if (!dirtyRect.isEmpty()) {
+			invalidate(dirtyRect);
+		}
+	}
+
 	/**
 	 * Clears the drawing from the view.
 	 * Used by NoteActivity::wipeCanvas().
 	 */
 	public void startNew(){
-		drawCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+		if (loading) {
+			return;
+		}
+		history.clear();
+		generation++;
+		if (onDrawListener != null) {
+			onDrawListener.onClear();
+		}
 		invalidate();  // forces the view to redraw
 	}
 
+	/**
+	 * Takes back the latest stroke or wipe, if any.
+	 * Used by NoteActivity::undoDrawing().
+	 */
+	public void undo() {
+		if (!loading && history.undo()) {
+			generation++;
+			if (onDrawListener != null) {
+				onDrawListener.onUndo();
+			}
+			invalidate();
+		}
+	}
+
+	/**
+	 * Does the latest undone stroke or wipe again, if any.
+	 * Used by NoteActivity::redoDrawing().
+	 */
+	public void redo() {
+		if (!loading && history.redo()) {
+			generation++;
+			if (onDrawListener != null) {
+				onDrawListener.onRedo();
+			}
+			invalidate();
+		}
+	}
+
+	/**
+	 * Sets who to tell about strokes and wipes; null for nobody.
+	 * Used by NoteActivity to journal the drawing.
+	 */
+	public void setOnDrawListener(OnDrawListener listener) {
+		onDrawListener = listener;
+	}
+
 	/**
 	 * Set paint color.
 	 * Set paint color using Android Color system.
@@ -159,7 +572,6 @@ public class DrawingView extends View {
 
 	/**
 	 * Changes paintbrush to eraser.
-	 * @todo Make erase immediate (currently doesnt erase until finger is lifted)
 	 */
 	public void setErase(boolean isErase){
 		erase = isErase;
@@ -172,18 +584,61 @@ public class DrawingView extends View {
 	}
 
 	/**
-	 * Retrieves the canvas bitmap.
+	 * Retrieves the drawing.  It keeps changing; see snapshotDrawing()
+	 * to hand it to another thread.
+	 */
+	public TiledCanvas getDrawing() {
+		return history.getDrawing();
+	}
+
+	/**
+	 * Returns the drawing as it is now, for saving in the background
+	 * while drawing goes on.  A stroke still being drawn is finished
+	 * first, so no half stroke gets saved.  Cheap: tiles are shared until
+	 * drawn on again (see TiledCanvas.snapshot()).
 	 * Used by NoteActivity::saveOrUpdateNote.
 	 */
-	public Bitmap getCanvasBitmap() {
-		return canvasBitmap;
+	public TiledCanvas snapshotDrawing() {
+		if (stroking) {
+			finishStroke();
+		}
+		return history.getDrawing().snapshot();
 	}
 
 	/**
-	 * Replaces canvas bitmap with already created one.
+	 * Retrieves the strokes the drawing is made of, or null if it was
+	 * loaded as pixels only.
+	 * Used by NoteActivity::saveOrUpdateNote.
+	 */
+	public List<Stroke> getStrokes() {
+		List<Stroke> strokes = history.getStrokes();
+		return strokes == null ? null : new ArrayList<>(strokes);
+	}
+
+	/**
+	 * Replaces the drawing with a copy of an already loaded one.
+	 * Loaded drawings are shared with the note cache, so this draws on
+	 * its own copy, unless the drawing was paged out while loading: such
+	 * a drawing isn't cached and is taken as it is, so a big one is never
+	 * held whole (see DatabaseHandler.getNoteDrawing()).
 	 * Used by NoteActivity::loadNote.
+	 * @param loadedStrokes strokes it's made of, or null if it's only known as pixels
+	 */
+	public void setDrawing(TiledCanvas loaded, List<Stroke> loadedStrokes) {
+		TiledCanvas drawing = loaded.getPagedTileCount() > 0 ? loaded : loaded.copy();
+		drawing.setCompact(compact);
+		history.reset(drawing, loadedStrokes == null ? null : new ArrayList<>(loadedStrokes));
+		setUpPaging();
+		growToView();
+		generation++;
+		invalidate();
+	}
+
+	/**
+	 * Returns a number that changes whenever the drawing does.
+	 * Comparing it with an earlier value tells if there is anything new to save.
 	 */
-	public void setBitmap(Bitmap bmp) {
-		canvasBitmap = bmp;
+	public int getGeneration() {
+		return generation;
 	}
 }
@@ -0,0 +1,555 @@
+package com.gatchi.notebooks;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the edits made to one note while it is open.
+ *
+ * NoteActivity records each edit as it happens: text changes as small
+ * deltas, and committed strokes, wipes and undos.  Records are buffered in memory and
+ * appended to a file in the background a moment later, then synced to
+ * disk.  Once the note has been saved to the database the journal is
+ * discarded.  A journal still around at the next launch belongs to an
+ * edit that may not have made it into the database, and recover() replays
+ * it unless the database shows it did: an existing note has been updated
+ * since it was loaded, or a new note was stored with the journal's
+ * creation time (see getCreatedAt()).
+ *
+ * Record layout: type byte, payload length (int), payload, and a CRC32
+ * of type and payload.  A record cut short by a crash fails its check,
+ * and it and anything after it are ignored.
+ *
+ * Recording methods must be called on the main thread.
+ */
+public class EditJournal {
+	private static final String TAG = "EditJournal";
+	private static final String DIRECTORY_NAME = "journal";
+	private static final String SUFFIX = ".journal";
+	// How long records are buffered before being written
+	private static final long FLUSH_DELAY_MS = 1000;
+	// Text changes longer than this are recorded as a copy of the whole body
+	private static final int SNAPSHOT_THRESHOLD = 256;
+
+	private static final int RECORD_BEGIN = 1;   // note ID, its updatedAt when loaded or a new note's createdAt
+	private static final int RECORD_TITLE = 2;   // whole title
+	private static final int RECORD_TEXT = 3;    // start, removed length, inserted chars
+	private static final int RECORD_BODY = 4;    // whole body, see SpanCodec
+	private static final int RECORD_SIZE = 5;    // canvas width and height
+	private static final int RECORD_STROKE = 6;  // color, width, erase, points
+	private static final int RECORD_CLEAR = 7;   // canvas wiped
+	private static final int RECORD_UNDO = 8;    // latest stroke or wipe undone
+	private static final int RECORD_REDO = 9;    // latest undone stroke or wipe redone
+
+	// One thread for every journal, so writes and deletes of a file stay in order
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+	// Journals of this process still being edited; recover() leaves them alone
+	private static final Set<String> sOpen = new HashSet<>();
+
+	private final File mFile;
+	private final long mCreatedAt;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	// Records not written out yet
+	private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+	// Payload of the record being made
+	private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+	private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+	private final CRC32 mCrc = new CRC32();
+	private int mCanvasWidth;
+	private int mCanvasHeight;
+	private boolean mFlushScheduled;
+	private volatile boolean mClosed;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private EditJournal(File file, long createdAt) {
+		mFile = file;
+		mCreatedAt = createdAt;
+	}
+
+	private static File getDirectory(Context context) {
+		return new File(context.getFilesDir(), DIRECTORY_NAME);
+	}
+
+	/**
+	 * Starts a journal for a note that has just been opened.
+	 * @param noteId ID of the note, or -1 for a new one
+	 * @param updatedAt the note's update time as loaded, or 0 for a new one
+	 */
+	public static EditJournal begin(Context context, int noteId, long updatedAt) {
+		File file = new File(getDirectory(context), System.currentTimeMillis() + "-" + System.nanoTime() + SUFFIX);
+		synchronized (sOpen) {
+			sOpen.add(file.getName());
+		}
+		EditJournal journal = new EditJournal(file, noteId == -1 ? System.currentTimeMillis() : 0);
+		DataOutputStream out = journal.startRecord();
+		try {
+			out.writeInt(noteId);
+			out.writeLong(noteId == -1 ? journal.mCreatedAt : updatedAt);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);  // memory only, can't happen
+		}
+		journal.endRecord(RECORD_BEGIN);
+		return journal;
+	}
+
+	/**
+	 * Returns the creation time a new note must be stored with, so that
+	 * recover() can tell it was stored; 0 for an existing note.
+	 */
+	public long getCreatedAt() {
+		return mCreatedAt;
+	}
+
+	/**
+	 * Records the title as it is now.
+	 */
+	public void recordTitle(String title) {
+		DataOutputStream out = startRecord();
+		try {
+			writeChars(out, title);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		endRecord(RECORD_TITLE);
+	}
+
+	/**
+	 * Records a change to the body, in TextWatcher.onTextChanged() terms.
+	 * @param body the whole body after the change
+	 */
+	public void recordTextChange(Spanned body, int start, int before, int count) {
+		if (count > SNAPSHOT_THRESHOLD) {
+			recordBody(body);
+			return;
+		}
+		DataOutputStream out = startRecord();
+		try {
+			out.writeInt(start);
+			out.writeInt(before);
+			writeChars(out, body.subSequence(start, start + count).toString());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		endRecord(RECORD_TEXT);
+	}
+
+	/**
+	 * Records the whole body with its formatting, for changes deltas don't
+	 * cover, such as a formatting change.
+	 */
+	public void recordBody(Spanned body) {
+		DataOutputStream out = startRecord();
+		try {
+			byte[] data = SpanCodec.encode(body);
+			out.writeInt(data.length);
+			out.write(data);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		endRecord(RECORD_BODY);
+	}
+
+	/**
+	 * Records a finished stroke.
+	 * @param points x and y of each point, in canvas pixels
+	 * @param pointCount number of floats of points used
+	 */
+	public void recordStroke(int canvasWidth, int canvasHeight, float[] points, int pointCount,
+			int color, float width, boolean erase) {
+		recordSize(canvasWidth, canvasHeight);
+		DataOutputStream out = startRecord();
+		try {
+			out.writeInt(color);
+			out.writeFloat(width);
+			out.writeBoolean(erase);
+			out.writeInt(pointCount);
+			for (int i = 0; i < pointCount; i++) {
+				out.writeFloat(points[i]);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		endRecord(RECORD_STROKE);
+	}
+
+	/**
+	 * Records the canvas being wiped.
+	 */
+	public void recordClear(int canvasWidth, int canvasHeight) {
+		recordSize(canvasWidth, canvasHeight);
+		startRecord();
+		endRecord(RECORD_CLEAR);
+	}
+
+	/**
+	 * Records the latest stroke or wipe being undone.
+	 */
+	public void recordUndo() {
+		startRecord();
+		endRecord(RECORD_UNDO);
+	}
+
+	/**
+	 * Records the latest undone stroke or wipe being redone.
+	 */
+	public void recordRedo() {
+		startRecord();
+		endRecord(RECORD_REDO);
+	}
+
+	private void recordSize(int width, int height) {
+		if (width == mCanvasWidth && height == mCanvasHeight) {
+			return;
+		}
+		mCanvasWidth = width;
+		mCanvasHeight = height;
+		DataOutputStream out = startRecord();
+		try {
+			out.writeInt(width);
+			out.writeInt(height);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		endRecord(RECORD_SIZE);
+	}
+
+	private DataOutputStream startRecord() {
+		mRecord.reset();
+		return mRecordOut;
+	}
+
+	/**
+	 * Frames a record written by startRecord() into the buffer and
+	 * schedules writing it out.
+	 */
+	private void endRecord(int type) {
+		if (mClosed) {
+			return;
+		}
+		byte[] payload = mRecord.toByteArray();
+		mCrc.reset();
+		mCrc.update(type);
+		mCrc.update(payload, 0, payload.length);
+		DataOutputStream out = new DataOutputStream(mBuffer);
+		try {
+			out.writeByte(type);
+			out.writeInt(payload.length);
+			out.write(payload);
+			out.writeInt((int) mCrc.getValue());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mMainHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+		}
+	}
+
+	/**
+	 * Writes out buffered records now, in the background.
+	 */
+	public void flush() {
+		mMainHandler.removeCallbacks(mFlushRunnable);
+		mFlushScheduled = false;
+		if (mClosed || mBuffer.size() == 0) {
+			return;
+		}
+		final byte[] data = mBuffer.toByteArray();
+		mBuffer = new ByteArrayOutputStream();
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				append(data);
+			}
+		});
+	}
+
+	/**
+	 * Appends to the journal file and syncs it. Runs on sExecutor.
+	 */
+	private void append(byte[] data) {
+		if (mClosed) {
+			return;
+		}
+		try {
+			File directory = mFile.getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create " + directory);
+			}
+			FileOutputStream out = new FileOutputStream(mFile, true);
+			try {
+				out.write(data);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Can't write " + mFile, e);
+		}
+	}
+
+	/**
+	 * Throws the journal away, once its edits are safely in the database
+	 * or there was nothing to save.  May be called on any thread; returns
+	 * once the file is gone, so call it off the main thread.
+	 */
+	public void discard() {
+		mClosed = true;
+		Future<?> deletion = sExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				mFile.delete();
+				synchronized (sOpen) {
+					sOpen.remove(mFile.getName());
+				}
+			}
+		});
+		try {
+			deletion.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Can't delete " + mFile, e);
+		}
+	}
+
+	/**
+	 * Throws the journal away in the background.
+	 */
+	public void discardLater() {
+		mMainHandler.removeCallbacks(mFlushRunnable);
+		mClosed = true;
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				mFile.delete();
+				synchronized (sOpen) {
+					sOpen.remove(mFile.getName());
+				}
+			}
+		});
+	}
+
+	private static void writeChars(DataOutputStream out, String text) throws IOException {
+		out.writeInt(text.length());
+		out.writeChars(text);
+	}
+
+	private static String readChars(DataInputStream in) throws IOException {
+		char[] chars = new char[in.readInt()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.readChar();
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Replays the journals left behind by earlier runs into the database,
+	 * and deletes them.  Blocks; call it where database writes are made.
+	 * @return number of notes recovered
+	 */
+	public static int recover(Context context, DatabaseHandler dbHandler) {
+		File[] files = getDirectory(context).listFiles();
+		if (files == null) {
+			return 0;
+		}
+		int recovered = 0;
+		for (File file : files) {
+			synchronized (sOpen) {
+				if (sOpen.contains(file.getName())) {
+					continue;  // still being edited
+				}
+			}
+			try {
+				if (replay(dbHandler, file)) {
+					recovered++;
+				}
+			} catch (IOException | RuntimeException e) {
+				Log.e(TAG, "Can't recover " + file, e);
+			}
+			file.delete();
+		}
+		return recovered;
+	}
+
+	/**
+	 * Applies one journal to its note and saves the note.
+	 * @return true if anything was saved
+	 */
+	private static boolean replay(DatabaseHandler dbHandler, File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] begin = readRecord(in, RECORD_BEGIN);
+			if (begin == null) {
+				return false;
+			}
+			DataInputStream header = new DataInputStream(new ByteArrayInputStream(begin));
+			int noteId = header.readInt();
+			long updatedAt = header.readLong();  // createdAt for a new note
+			if (noteId == -1 && updatedAt != 0 && dbHandler.hasNoteCreatedAt(updatedAt)) {
+				return false;  // stored, but the app was killed before the journal was deleted
+			}
+
+			String title = "";
+			SpannableStringBuilder body = new SpannableStringBuilder();
+			TiledCanvas drawing = null;
+			List<Stroke> strokes = new ArrayList<>();
+			if (noteId != -1) {
+				Note note;
+				try {
+					note = dbHandler.getNote(noteId);
+				} catch (SQLiteException e) {
+					return false;  // deleted since
+				}
+				if (note.getUpdatedAt() != updatedAt) {
+					return false;  // saved after these edits were made
+				}
+				title = note.getTitle() != null ? note.getTitle() : "";
+				body.append(note.getSpannable());
+				if (note.getDrawing() != null) {
+					drawing = note.getDrawing().copy();
+					strokes = note.getStrokes() == null ? null : new ArrayList<>(note.getStrokes());
+				}
+			}
+
+			int changes = 0;
+			int canvasWidth = 0;
+			int canvasHeight = 0;
+			DrawingHistory history = null;
+			byte[] payload;
+			while ((payload = readRecord(in, -1)) != null) {
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+				switch (payload[0]) {
+					case RECORD_TITLE:
+						title = readChars(record);
+						changes |= Note.CHANGED_TITLE;
+						break;
+					case RECORD_TEXT:
+						int start = record.readInt();
+						int before = record.readInt();
+						body.replace(start, start + before, readChars(record));
+						changes |= Note.CHANGED_BODY;
+						break;
+					case RECORD_BODY:
+						byte[] data = new byte[record.readInt()];
+						record.readFully(data);
+						body = SpanCodec.decode(data);
+						changes |= Note.CHANGED_BODY;
+						break;
+					case RECORD_SIZE:
+						canvasWidth = record.readInt();
+						canvasHeight = record.readInt();
+						break;
+					case RECORD_STROKE:
+					case RECORD_CLEAR:
+					case RECORD_UNDO:
+					case RECORD_REDO:
+						if (history == null) {
+							// Unbounded, as undoing could reach back to the loaded drawing when recorded
+							history = new DrawingHistory(Integer.MAX_VALUE, DrawingHistory.DEFAULT_CHECKPOINT_INTERVAL);
+							history.reset(drawing != null ? drawing : new TiledCanvas(canvasWidth, canvasHeight), strokes);
+						}
+						if (payload[0] == RECORD_STROKE) {
+							Stroke stroke = readStroke(record);
+							stroke.drawOn(history.getDrawing());
+							history.addStroke(stroke);
+						} else if (payload[0] == RECORD_CLEAR) {
+							history.clear();
+						} else if (payload[0] == RECORD_UNDO) {
+							history.undo();
+						} else {
+							history.redo();
+						}
+						changes |= Note.CHANGED_DRAWING;
+						break;
+				}
+			}
+			if (history != null) {
+				drawing = history.getDrawing();
+				strokes = history.getStrokes();
+			}
+
+			if (changes == 0) {
+				return false;
+			}
+			if (noteId == -1) {
+				Note note = new Note(-1, title, body, drawing, strokes, System.currentTimeMillis());
+				dbHandler.createNote(note, dbHandler.encodeDrawing(note), updatedAt);
+			} else {
+				dbHandler.updateNote(new Note(noteId, title, body, drawing, strokes, System.currentTimeMillis()), changes);
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a stroke written by recordStroke().
+	 */
+	private static Stroke readStroke(DataInputStream record) throws IOException {
+		int color = record.readInt();
+		float width = record.readFloat();
+		boolean erase = record.readBoolean();
+		float[] points = new float[record.readInt()];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = record.readFloat();
+		}
+		return new Stroke(points, points.length, color, width, erase);
+	}
+
+	/**
+	 * Reads the next record and checks it.
+	 * @param expectedType type it must be, or -1 for any
+	 * @return type byte followed by the payload, or null at the end or at a damaged record
+	 */
+	private static byte[] readRecord(DataInputStream in, int expectedType) throws IOException {
+		try {
+			int type = in.readUnsignedByte();
+			int length = in.readInt();
+			if (length < 0 || (expectedType != -1 && type != expectedType)) {
+				return null;
+			}
+			byte[] record = new byte[length + 1];
+			record[0] = (byte) type;
+			in.readFully(record, 1, length);
+			int crc = in.readInt();
+			CRC32 check = new CRC32();
+			check.update(type);
+			check.update(record, 1, length);
+			return (int) check.getValue() == crc ? record : null;
+		} catch (EOFException e) {
+			return null;  // end of file, or a record cut short
+		}
+	}
+}
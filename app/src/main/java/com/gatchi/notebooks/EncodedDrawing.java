@@ -0,0 +1,42 @@
+package com.gatchi.notebooks;
+
+/**
+ * A note's drawing encoded for storing, ready to be written; see
+ * DatabaseHandler.encodeDrawing().  Holds either strokes or tiles, and a
+ * thumbnail, or nothing if the drawing is blank.
+ *
+ * Immutable.
+ */
+public class EncodedDrawing {
+	// KEY_STROKES, or null if the drawing is only known as pixels
+	private final byte[] mStrokes;
+	// TiledCodec data for the image store, or null if stored as strokes
+	private final byte[] mTiles;
+	// KEY_THUMBNAIL
+	private final byte[] mThumbnail;
+
+	public EncodedDrawing(byte[] strokes, byte[] tiles, byte[] thumbnail) {
+		mStrokes = strokes;
+		mTiles = tiles;
+		mThumbnail = thumbnail;
+	}
+
+	public byte[] getStrokes() {
+		return mStrokes;
+	}
+
+	public byte[] getTiles() {
+		return mTiles;
+	}
+
+	public byte[] getThumbnail() {
+		return mThumbnail;
+	}
+
+	/**
+	 * Returns true if anything is drawn.
+	 */
+	public boolean hasDrawing() {
+		return mStrokes != null || mTiles != null;
+	}
+}
@@ -0,0 +1,44 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A way of storing sketch images as bytes.
+ *
+ * Each codec has an ID that is stored next to every image it encoded, so
+ * images keep decoding with the codec that made them whatever the
+ * default is later.  See ImageCodecs for the known codecs.
+ */
+public interface ImageCodec {
+	/**
+	 * Returns the ID stored with images of this codec. Never reused.
+	 */
+	int getId();
+
+	/**
+	 * Returns a short name, for logs and benchmarks.
+	 */
+	String getName();
+
+	/**
+	 * Returns true if this device can both encode and decode the format.
+	 */
+	boolean isAvailable();
+
+	/**
+	 * Encodes a bitmap without losing any of its pixels.
+	 */
+	byte[] encode(Bitmap bitmap);
+
+	/**
+	 * Decodes an image made by encode().
+	 * @param options honored like BitmapFactory does (bounds only, sample size); may be null
+	 * @return decoded bitmap, or null if only bounds were asked for
+	 * @throws IOException if the data can't be read or is damaged
+	 */
+	Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException;
+}
@@ -0,0 +1,52 @@
+package com.gatchi.notebooks;
+
+/**
+ * The known image codecs, by ID.
+ * Should not be instantiated.
+ */
+public final class ImageCodecs {
+	public static final ImageCodec PNG = new PngCodec();
+	public static final ImageCodec WEBP = new WebpCodec();
+	public static final ImageCodec RUN_LENGTH = new RunLengthCodec();
+	// Drawings are stored with this, their tiles with the default
+	public static final TiledCodec TILED = new TiledCodec();
+
+	// Every codec, for looking up by ID and benchmarking.
+	// ID 4 is taken by TiledCodec.PALETTE_TILE.
+	private static final ImageCodec[] ALL = {PNG, WEBP, RUN_LENGTH, TILED};
+
+	// Codec new tiles are stored with; change after comparing with CodecBenchmark.
+	// Must not be TILED.
+	private static final ImageCodec DEFAULT = PNG;
+
+	private ImageCodecs() throws InstantiationException {
+		throw new InstantiationException("This class is not for instantiation");
+	}
+
+	/**
+	 * Returns the codec with given ID.
+	 * @throws IllegalArgumentException if there is none
+	 */
+	public static ImageCodec get(int id) {
+		for (ImageCodec codec : ALL) {
+			if (codec.getId() == id) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown image codec " + id);
+	}
+
+	/**
+	 * Returns every codec, available on this device or not.
+	 */
+	public static ImageCodec[] getAll() {
+		return ALL.clone();
+	}
+
+	/**
+	 * Returns the codec to store new images, such as drawing tiles, with.
+	 */
+	public static ImageCodec getDefault() {
+		return DEFAULT.isAvailable() ? DEFAULT : PNG;
+	}
+}
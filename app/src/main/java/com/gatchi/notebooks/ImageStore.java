@@ -0,0 +1,129 @@
+package com.gatchi.notebooks;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps sketch images as files in app-private storage.
+ *
+ * Files are named after a hash of their content, so the same image
+ * (a blank canvas, for example) is only ever stored once no matter how
+ * many notes use it.  The database keeps just the name, called a reference,
+ * and which ImageCodec the data is in.
+ */
+public class ImageStore {
+	private static final String DIRECTORY_NAME = "images";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File mDirectory;
+
+	public ImageStore(Context context) {
+		mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+	}
+
+	/**
+	 * Stores image data and returns its reference.
+	 * Does no writing if identical data is already stored.
+	 * @throws IOException if the file couldn't be written
+	 */
+	public String put(byte[] data) throws IOException {
+		String ref = hash(data);
+		File file = getFile(ref);
+		if (file.exists()) {
+			return ref;
+		}
+
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Can't create " + mDirectory);
+		}
+
+		// Write next to the final name and rename, so a half-written file
+		// never shows up under a valid reference.
+		File temp = new File(mDirectory, ref + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Can't rename " + temp);
+		}
+		return ref;
+	}
+
+	/**
+	 * Returns the file holding the image with given reference.
+	 */
+	public File getFile(String ref) {
+		return new File(mDirectory, ref);
+	}
+
+	/**
+	 * Opens the image with given reference for streaming.
+	 */
+	public InputStream open(String ref) throws IOException {
+		return new FileInputStream(getFile(ref));
+	}
+
+	/**
+	 * Maps the image with given reference into memory, read only.
+	 */
+	public MappedByteBuffer map(String ref) throws IOException {
+		FileInputStream in = new FileInputStream(getFile(ref));
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();  // the mapping stays valid after the channel is closed
+		}
+	}
+
+	/**
+	 * Removes the image with given reference.
+	 * Callers must make sure nothing refers to it anymore.
+	 */
+	public void delete(String ref) {
+		getFile(ref).delete();
+	}
+
+	/**
+	 * Removes every stored image.
+	 */
+	public void clear() {
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private static String hash(byte[] data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);  // every Android device has SHA-1
+		}
+		byte[] bytes = digest.digest(data);
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,104 @@
+package com.gatchi.notebooks;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects timings of named operations.
+ *
+ * Keeps a count, total and worst case per operation name.  In debug builds
+ * a summary line is logged every LOG_INTERVAL samples, so per-operation
+ * latency can be compared across builds with "adb logcat -s LatencyRecorder".
+ */
+public class LatencyRecorder {
+	private static final String TAG = "LatencyRecorder";
+	private static final int LOG_INTERVAL = 50;
+
+	private final String mName;
+	private final Map<String, Stats> mStats = new LinkedHashMap<>();
+
+	public LatencyRecorder(String name) {
+		mName = name;
+	}
+
+	/**
+	 * Returns a start time to hand to record() later.
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records an operation that began at startTime (from start()).
+	 */
+	public void record(String operation, long startTime) {
+		recordNanos(operation, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Records an operation that took the given number of nanoseconds.
+	 */
+	public synchronized void recordNanos(String operation, long nanos) {
+		Stats stats = mStats.get(operation);
+		if (stats == null) {
+			stats = new Stats();
+			mStats.put(operation, stats);
+		}
+		stats.count++;
+		stats.totalNanos += nanos;
+		stats.maxNanos = Math.max(stats.maxNanos, nanos);
+
+		if (BuildConfig.DEBUG && stats.count % LOG_INTERVAL == 0) {
+			Log.d(TAG, mName + " " + operation + ": " + stats);
+		}
+	}
+
+	/**
+	 * Returns the average time of an operation in milliseconds, or 0 if never recorded.
+	 */
+	public synchronized double getAverageMillis(String operation) {
+		Stats stats = mStats.get(operation);
+		return stats == null ? 0 : stats.averageMillis();
+	}
+
+	/**
+	 * Returns how many times an operation has been recorded.
+	 */
+	public synchronized long getCount(String operation) {
+		Stats stats = mStats.get(operation);
+		return stats == null ? 0 : stats.count;
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public synchronized void reset() {
+		mStats.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder(mName);
+		for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+			builder.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return builder.toString();
+	}
+
+	private static class Stats {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private double averageMillis() {
+			return count == 0 ? 0 : totalNanos / 1e6 / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d avg=%.2fms max=%.2fms", count, averageMillis(), maxNanos / 1e6);
+		}
+	}
+}
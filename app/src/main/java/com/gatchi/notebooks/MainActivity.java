@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.StrictMode;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -19,29 +20,38 @@ import android.widget.ListView;
 import android.widget.SearchView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The main view/homescreen
  */
 public class MainActivity extends AppCompatActivity {
 
-	// Array used to backup data before using search function
-	private ArrayList<Note> allNotesSearchArray;
-
-	// Database Handler
+	// Database Handler, and the repository running its operations off the main thread
 	private DatabaseHandler dbHandler;
+	private NoteRepository repository;
+
+	// Search running in the background, if any
+	private NoteRepository.Request searchRequest;
 
 	// Alert dialogs for back button and delete all notes button
 	private AlertDialog alertDialogDeleteAll;
 	private AlertDialog alertDialogDeleteSingleNote;
 
 	// Note selected on menu
-	private Note selectedNote;
+	private NoteSummary selectedNote;
 
 	// Variables used to handle note list
-	public static NoteAdapter noteAdapter;
-	public static ListView listView;
+	private NoteAdapter noteAdapter;
+	private ListView listView;
+
+	// Keeps the note list in step with the database
+	private final DatabaseHandler.OnNoteChangeListener noteChangeListener = new DatabaseHandler.OnNoteChangeListener() {
+		@Override
+		public void onNoteChanged(NoteChange change) {
+			noteAdapter.applyChange(change);
+		}
+	};
 
 	/**
 	 * Where all other visual elements are setup.
@@ -49,16 +59,42 @@ public class MainActivity extends AppCompatActivity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		if (BuildConfig.DEBUG) {
+			// Catch any disk access creeping back onto the main thread
+			StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+					.detectDiskReads()
+					.detectDiskWrites()
+					.penaltyLog()
+					.build());
+		}
 		setContentView(R.layout.activity_main);
 		Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
 		setSupportActionBar(toolbar);
 
-		// Create DatabaseHandler
-		dbHandler = new DatabaseHandler(getApplicationContext());
+		// Get the shared DatabaseHandler
+		repository = NoteRepository.getInstance(this);
+		dbHandler = repository.getDatabaseHandler();
+
+		// Save what was being edited when the app last went down, if anything
+		repository.recoverEdits(this, new NoteRepository.Callback<Integer>() {
+			@Override
+			public void onResult(Integer recovered) {
+				if (recovered > 0) {
+					Toast.makeText(MainActivity.this, String.format(getString(R.string.notes_recovered), recovered),
+							Toast.LENGTH_SHORT).show();
+				}
+			}
+
+			@Override
+			public void onError(Exception e) {
+				e.printStackTrace();
+			}
+		});
 
 		// Add items to ListView
 		listView = (ListView) findViewById(R.id.listView);
-		populateListView(dbHandler.getAllNotesAsArrayList());
+		populateListView();
+		dbHandler.addOnNoteChangeListener(noteChangeListener);
 
 		// Assign listView to context menu
 		registerForContextMenu(listView);
@@ -81,12 +117,26 @@ public class MainActivity extends AppCompatActivity {
 
 		listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-				selectedNote = (Note) parent.getAdapter().getItem(position);
-				editNote(selectedNote.getId());
+				NoteSummary note = (NoteSummary) parent.getAdapter().getItem(position);
+				if (note != null) {  // null while the row is still loading
+					selectedNote = note;
+					editNote(selectedNote.getId());
+				}
 			}
 		});
 	}
 
+	/**
+	 * Stops listening for note changes.
+	 */
+	@Override
+	protected void onDestroy() {
+		dbHandler.removeOnNoteChangeListener(noteChangeListener);
+		cancelSearch();
+		noteAdapter.close();
+		super.onDestroy();
+	}
+
 	/**
 	 * Controls the action icons at the top of the app.
 	 */
@@ -98,27 +148,29 @@ public class MainActivity extends AppCompatActivity {
 		SearchView searchView = (SearchView) menu.findItem(R.id.search).getActionView();
 		searchView.setQueryHint(searchView.getContext().getResources().getString(R.string.search_hint));
 
-		searchView.setOnSearchClickListener(new View.OnClickListener() {
-			@Override
-			public void onClick(View v) {
-				allNotesSearchArray = (ArrayList<Note>) noteAdapter.getData();
-			}
-		});
-
 		final SearchView.OnQueryTextListener queryTextListener = new SearchView.OnQueryTextListener() {
 			@Override
 			public boolean onQueryTextChange(String newText) {
 
-				ArrayList<Note> filteredNotesArrayList = new ArrayList<>();
-				for (Note note : allNotesSearchArray) {
-					if (note.getRawText().contains(newText)) {
-						filteredNotesArrayList.add(note);
-					}
+				cancelSearch();
+				if (newText.length() == 0) {
+					noteAdapter.clearSearchResults();
+				} else {
+					searchRequest = repository.searchNoteSummaries(newText, new NoteRepository.Callback<List<NoteSummary>>() {
+						@Override
+						public void onResult(List<NoteSummary> result) {
+							searchRequest = null;
+							noteAdapter.setSearchResults(result);
+						}
+
+						@Override
+						public void onError(Exception e) {
+							searchRequest = null;
+							e.printStackTrace();
+						}
+					});
 				}
 
-				populateListView(filteredNotesArrayList);
-				noteAdapter.notifyDataSetChanged();
-
 				return true;
 			}
 
@@ -130,9 +182,99 @@ public class MainActivity extends AppCompatActivity {
 		};
 		searchView.setOnQueryTextListener(queryTextListener);
 
+		if (BuildConfig.DEBUG) {
+			// Not translated, debug builds only
+			menu.add("Benchmark image codecs").setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+				@Override
+				public boolean onMenuItemClick(MenuItem item) {
+					runCodecBenchmark();
+					return true;
+				}
+			});
+			menu.add("Benchmark note bodies").setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+				@Override
+				public boolean onMenuItemClick(MenuItem item) {
+					runBodyBenchmark();
+					return true;
+				}
+			});
+			menu.add("Benchmark database").setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+				@Override
+				public boolean onMenuItemClick(MenuItem item) {
+					runDatabaseBenchmark();
+					return true;
+				}
+			});
+		}
+
 		return true;
 	}
 
+	/**
+	 * Runs CodecBenchmark over the stored sketches; the full report goes to the log.
+	 */
+	private void runCodecBenchmark() {
+		final Context appContext = getApplicationContext();
+		repository.runCodecBenchmark(new NoteRepository.Callback<String>() {
+			@Override
+			public void onResult(String result) {
+				Toast.makeText(appContext, result, Toast.LENGTH_LONG).show();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Runs BodyBenchmark on made-up notes; the full report goes to the log.
+	 */
+	private void runBodyBenchmark() {
+		final Context appContext = getApplicationContext();
+		repository.runBodyBenchmark(new NoteRepository.Callback<String>() {
+			@Override
+			public void onResult(String result) {
+				Toast.makeText(appContext, result, Toast.LENGTH_LONG).show();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Runs DatabaseBenchmark on scratch databases; the full report goes to the log.
+	 */
+	private void runDatabaseBenchmark() {
+		final Context appContext = getApplicationContext();
+		repository.runDatabaseBenchmark(appContext, new NoteRepository.Callback<String>() {
+			@Override
+			public void onResult(String result) {
+				Toast.makeText(appContext, result, Toast.LENGTH_LONG).show();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Stops the search running in the background, so its results don't
+	 * replace those of a newer query.
+	 */
+	private void cancelSearch() {
+		if (searchRequest != null) {
+			searchRequest.cancel();
+			searchRequest = null;
+		}
+	}
+
 	/**
 	 * Creates confirmation dialog for deleting all notes.
 	 * @todo Consider renaming and/or consolidating with setupAlertDialogDeleteSingleNote().
@@ -145,8 +287,6 @@ public class MainActivity extends AppCompatActivity {
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
 				deleteAllNotes();
-				Toast.makeText(MainActivity.this, getString(R.string.delete_notes_success),
-						Toast.LENGTH_SHORT).show();
 			}
 		});
 
@@ -170,11 +310,19 @@ public class MainActivity extends AppCompatActivity {
 		builder.setPositiveButton(this.getString(R.string.ok_button), new DialogInterface.OnClickListener() {
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
-				dbHandler.deleteNote(selectedNote);
-				noteAdapter.remove(selectedNote);
-				noteAdapter.notifyDataSetChanged();
-				Toast.makeText(MainActivity.this, String.format(getString(R.string.note_deleted), selectedNote.getId()),
-						Toast.LENGTH_SHORT).show();
+				final int noteId = selectedNote.getId();
+				repository.deleteNote(noteId, new NoteRepository.Callback<Void>() {
+					@Override
+					public void onResult(Void result) {
+						Toast.makeText(MainActivity.this, String.format(getString(R.string.note_deleted), noteId),
+								Toast.LENGTH_SHORT).show();
+					}
+
+					@Override
+					public void onError(Exception e) {
+						e.printStackTrace();
+					}
+				});
 			}
 		});
 
@@ -205,9 +353,18 @@ public class MainActivity extends AppCompatActivity {
 	 * Method used to delete all notes via DatabaseHandler
 	 */
 	public void deleteAllNotes() {
-		dbHandler.clearAllNotes();
-		noteAdapter.clear();
-		noteAdapter.notifyDataSetChanged();
+		repository.clearAllNotes(new NoteRepository.Callback<Void>() {
+			@Override
+			public void onResult(Void result) {
+				Toast.makeText(MainActivity.this, getString(R.string.delete_notes_success),
+						Toast.LENGTH_SHORT).show();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				e.printStackTrace();
+			}
+		});
 	}
 
 	/**
@@ -239,32 +396,12 @@ public class MainActivity extends AppCompatActivity {
 
 	/**
 	 * Method used to link note list manager to view.
-	 *
-	 * @param note Array of Notes containing all Notes in Database
-	 * @todo rename "note" to something better.  hell, even "notes" would be better.
 	 */
-	void populateListView(ArrayList<Note> note) {
-		noteAdapter = new NoteAdapter(this, R.layout.listview_item_row, note);
+	void populateListView() {
+		noteAdapter = new NoteAdapter(this, R.layout.listview_item_row, dbHandler);
 		listView.setAdapter(noteAdapter);
 	}
 
-	/**
-	 * See below.
-	 * This method seems to be for SaveOrUpdateNoteTask to call but that
-	 * calls setData() directly instead.  This method is not called by
-	 * anything currently.
-	 * @todo Delete this method or implement it in SaveOrUpdateNoteTask.
-	 */
-	public void setListViewData(ArrayList<Note> allNotes, Note newNote) {
-		if (noteAdapter != null) {
-			if (newNote != null){
-				noteAdapter.add(newNote);
-			}
-			noteAdapter.setData(allNotes);
-			noteAdapter.notifyDataSetChanged();
-		}
-	}
-
 	/**
 	 * Creates a popup options menu for a note.
 	 * Creates and shows a popup list menu when the user long-presses a note
@@ -279,7 +416,11 @@ public class MainActivity extends AppCompatActivity {
 		if (v.getId() == R.id.listView) {
 			ListView listViewLocal = (ListView) v;
 			AdapterView.AdapterContextMenuInfo acmi = (AdapterView.AdapterContextMenuInfo) menuInfo;
-			selectedNote = (Note) listViewLocal.getItemAtPosition(acmi.position);
+			NoteSummary note = (NoteSummary) listViewLocal.getItemAtPosition(acmi.position);
+			if (note == null) {  // still loading
+				return;
+			}
+			selectedNote = note;
 			menu.setHeaderTitle(String.format(v.getContext().getString(R.string.choose_activity), selectedNote.getId()));
 			MenuInflater inflater = getMenuInflater();
 			inflater.inflate(R.menu.context_menu_note_select, menu);
@@ -1,17 +1,19 @@
 package com.gatchi.notebooks;
 
-import android.graphics.Bitmap;
 import android.text.Spannable;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.List;
 
 /**
  * Base unit of this app; a note.
  */
 public class Note {
+	// Flags telling which parts of a note have been edited
+	public static final int CHANGED_TITLE = 1;
+	public static final int CHANGED_BODY = 1 << 1;
+	public static final int CHANGED_DRAWING = 1 << 2;
+	public static final int CHANGED_ALL = CHANGED_TITLE | CHANGED_BODY | CHANGED_DRAWING;
+
     // KEY_ID of Note
     private final int mId;
 
@@ -24,22 +26,24 @@ public class Note {
 	// Raw text used to make titles
 	private final String rawText;
 
-	// Painting
-	private final Bitmap mImage;
+	// Painting; null if there is none
+	private final TiledCanvas mDrawing;
 
-	// Dates (Default value)
-	private Date dateUpdated = new Date();
+	// Strokes making up the painting; null if it's only known as pixels
+	private final List<Stroke> mStrokes;
 
-	// Formatter
-	private static final DateFormat dt = new SimpleDateFormat("dd.MM.yyyy, hh:mm:ss", Locale.getDefault());
+	// Time last updated, in epoch milliseconds
+	private final long updatedAt;
 
-	public Note(int id, String title, Spannable spannable, Bitmap image, Date dateUpdated) {
+	public Note(int id, String title, Spannable spannable, TiledCanvas drawing, List<Stroke> strokes,
+			long updatedAt) {
 		mId = id;
 		mTitle = title;
 		mSpannable = spannable;
-		mImage = image;
+		mDrawing = drawing;
+		mStrokes = strokes;
 		rawText = mSpannable.toString();
-		this.dateUpdated = dateUpdated;
+		this.updatedAt = updatedAt;
 	}
 
 	/**
@@ -71,17 +75,24 @@ public class Note {
 	}
 
 	/**
-	 * Returns sketches associated with note.
+	 * Returns sketches associated with note, or null if there are none.
+	 */
+	public TiledCanvas getDrawing() {
+		return mDrawing;
+	}
+
+	/**
+	 * Returns the strokes the sketches are made of, oldest first, or null
+	 * if they were saved as pixels by an older version.
 	 */
-	public Bitmap getImage() {
-		return mImage;
+	public List<Stroke> getStrokes() {
+		return mStrokes;
 	}
 
 	/**
-	 * Returns the date and time last accessed.
-	 * @todo change this to return last time edited.
+	 * Returns the time last edited, in epoch milliseconds.
 	 */
-	public String getFormattedDateUpdatted() {
-		return dt.format(dateUpdated);
+	public long getUpdatedAt() {
+		return updatedAt;
 	}
 }
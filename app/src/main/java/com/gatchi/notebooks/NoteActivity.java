@@ -4,7 +4,7 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Typeface;
@@ -13,11 +13,13 @@ import android.speech.RecognizerIntent;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.text.Editable;
 import android.text.InputType;
 import android.text.Spannable;
 import android.text.Spanned;
 import android.text.SpannedString;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
@@ -32,9 +34,10 @@ import android.view.WindowManager;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.List;
 
 /**
  * Manages the note edit screen.
@@ -70,8 +73,14 @@ public class NoteActivity extends AppCompatActivity {
 	// Request code for voice input
 	private static final int REQUEST_CODE = 1234;
 
-	// Database Handler
-	private DatabaseHandler dbHandler;
+	// Runs the database work off the main thread
+	private NoteRepository repository;
+
+	// Loading of the note, while it's running
+	private NoteRepository.Request loadRequest;
+
+	// Edits made since the note was opened, kept on disk until saved
+	private EditJournal journal;
 
 	// Percent of total layout height that is prepared for format text panel
 	// Default 0.3, Values  0 < x < 1
@@ -92,12 +101,19 @@ public class NoteActivity extends AppCompatActivity {
 	private EditText editText;
 
 	// Spannable used to format text
-	// Converted to HTML String in database
+	// Stored in binary form in database (see SpanCodec)
 	private Spannable spannable;
 
 	// Alert dialog for back button and save button
 	private AlertDialog alertDialogSaveNote;
 
+	// State as loaded, to save only what the user has changed
+	private boolean noteLoaded;
+	private long loadedUpdatedAt;
+	private String loadedTitle = "";
+	private boolean bodyChanged;
+	private int loadedDrawingGeneration;
+
 	/**
 	 * Setup
 	 */
@@ -123,8 +139,8 @@ public class NoteActivity extends AppCompatActivity {
 		ViewGroup.LayoutParams paramsDrawPanel = mDrawLayout.getLayoutParams();
 		paramsDrawPanel.height = calculateMenuMargin();
 
-		// Create DatabaseHandler
-		dbHandler = new DatabaseHandler(getApplicationContext());
+		// Get the shared repository
+		repository = NoteRepository.getInstance(this);
 
 		// Get default spannable value
 		spannable = editText.getText();
@@ -149,6 +165,8 @@ public class NoteActivity extends AppCompatActivity {
 		// Load note
 		if (noteID != -1) {
 			loadNote(noteID);
+		} else {
+			trackChanges();
 		}
 
 		// Handling drawingView's onTouchListener via EditText onTouchListener
@@ -166,6 +184,28 @@ public class NoteActivity extends AppCompatActivity {
 		});
 	}
 
+	/**
+	 * Writes out the journal, in case the app isn't coming back.
+	 */
+	@Override
+	protected void onPause() {
+		super.onPause();
+		if (journal != null) {
+			journal.flush();
+		}
+	}
+
+	/**
+	 * Stops loading the note if that's still going on.
+	 */
+	@Override
+	protected void onDestroy() {
+		if (loadRequest != null) {
+			loadRequest.cancel();
+		}
+		super.onDestroy();
+	}
+
 	/**
 	 * Populates the row of icons at the top.
 	 * These icons are essentially the note-making toolbox,
@@ -401,23 +441,147 @@ public class NoteActivity extends AppCompatActivity {
 			spannable.setSpan(new ForegroundColorSpan(Color.YELLOW), posStart, posEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 		}
 		editTextLocal.setText(spannable);
+		bodyChanged = true;
+		if (journal != null) {
+			journal.recordBody(editTextLocal.getText());  // deltas don't carry formatting
+		}
 	}
 
 	/**
 	 * Loads the note from storage onto the view for reading and editing.
+	 * Loading happens in the background, text first: the title and body
+	 * can be read and edited as soon as they're in, while the drawing
+	 * shows its thumbnail and takes no strokes until it's decoded.
+	 * Changes are tracked from when the text is in.
 	 * @param noteID ID number of the Note entry in the SQLite database
 	 */
 	private void loadNote(int noteID) {
-		try {
-			Note n = dbHandler.getNote(noteID);
-			///@todo fix
-			editText.setText(n.getSpannable());
-			editText.setSelection(editText.getText().toString().length());
-			noteTitle.setText(n.getTitle());
-			drawingView.setBitmap(n.getImage());
-		}catch (SQLiteException e){
-			e.printStackTrace();
+		drawingView.setLoading(true);
+		loadRequest = repository.openNote(noteID, drawingView.getTileStore(), drawingView.getMaxResidentBytes(),
+				new NoteRepository.Callback<Note>() {
+			@Override
+			public void onResult(Note n) {
+				///@todo fix
+				editText.setText(n.getSpannable());
+				editText.setSelection(editText.getText().toString().length());
+				noteTitle.setText(n.getTitle());
+				loadedUpdatedAt = n.getUpdatedAt();
+				trackChanges();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				// Errors go to the last callback
+			}
+		}, new NoteRepository.Callback<Bitmap>() {
+			@Override
+			public void onResult(Bitmap thumbnail) {
+				drawingView.setPlaceholder(thumbnail);
+			}
+
+			@Override
+			public void onError(Exception e) {
+			}
+		}, new NoteRepository.Callback<Note>() {
+			@Override
+			public void onResult(Note n) {
+				loadRequest = null;
+				if (n.getDrawing() != null) {
+					drawingView.setDrawing(n.getDrawing(), n.getStrokes());
+				}
+				drawingView.setLoading(false);
+				loadedDrawingGeneration = drawingView.getGeneration();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				// The drawing stays locked, so a drawing that failed to load isn't saved over
+				loadRequest = null;
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Remembers the note as it is now, and starts watching it for edits,
+	 * which are journaled so they survive the app being killed.
+	 * Call after the note is loaded.
+	 */
+	private void trackChanges() {
+		noteLoaded = true;
+		loadedTitle = noteTitle.getText().toString();
+		loadedDrawingGeneration = drawingView.getGeneration();
+		bodyChanged = false;
+		journal = EditJournal.begin(this, noteID, loadedUpdatedAt);
+		editText.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+				journal.recordTextChange((Spanned) s, start, before, count);
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				bodyChanged = true;
+			}
+		});
+		noteTitle.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				journal.recordTitle(s.toString());
+			}
+		});
+		drawingView.setOnDrawListener(new DrawingView.OnDrawListener() {
+			@Override
+			public void onStroke(float[] points, int pointCount, int color, float width, boolean erase) {
+				TiledCanvas drawing = drawingView.getDrawing();
+				journal.recordStroke(drawing.getWidth(), drawing.getHeight(), points, pointCount, color, width, erase);
+			}
+
+			@Override
+			public void onClear() {
+				TiledCanvas drawing = drawingView.getDrawing();
+				journal.recordClear(drawing.getWidth(), drawing.getHeight());
+			}
+
+			@Override
+			public void onUndo() {
+				journal.recordUndo();
+			}
+
+			@Override
+			public void onRedo() {
+				journal.recordRedo();
+			}
+		});
+	}
+
+	/**
+	 * Returns Note.CHANGED_* flags for what was edited since the note was loaded.
+	 */
+	private int getChanges() {
+		int changes = 0;
+		if (!noteTitle.getText().toString().equals(loadedTitle)) {
+			changes |= Note.CHANGED_TITLE;
 		}
+		if (bodyChanged) {
+			changes |= Note.CHANGED_BODY;
+		}
+		if (drawingView.getGeneration() != loadedDrawingGeneration) {
+			changes |= Note.CHANGED_DRAWING;
+		}
+		return changes;
 	}
 
 	/**
@@ -427,13 +591,48 @@ public class NoteActivity extends AppCompatActivity {
 	public void saveOrUpdateNote(@Nullable MenuItem menu) {
 		spannable = editText.getText();
 		String title = noteTitle.getText().toString();
+		// Saved in the background while the view may still draw; the snapshot stays as it is
+		TiledCanvas drawing = drawingView.snapshotDrawing();
+		List<Stroke> strokes = drawingView.getStrokes();
+		// Toasts outlive this activity, which is finished right away
+		final Context appContext = getApplicationContext();
 
 		if (noteID == -1) {  // If note does not exist yet
-			Note note = new Note(dbHandler.getNoteCount(), title, spannable, drawingView.getCanvasBitmap(), new Date());
-			new SaveOrUpdateNoteTask(this, dbHandler, false).execute(note);
-		} else {  // Else, replace the existing note with the updated note
-			Note note = new Note(noteID, title, spannable, drawingView.getCanvasBitmap(), new Date());
-			new SaveOrUpdateNoteTask(this, dbHandler, true).execute(note);
+			Note note = new Note(-1, title, spannable, drawing, strokes,
+					System.currentTimeMillis());
+			repository.createNote(note, journal, new NoteRepository.Callback<Integer>() {
+				@Override
+				public void onResult(Integer id) {
+					Toast.makeText(appContext, appContext.getString(R.string.toast_note_created), Toast.LENGTH_SHORT).show();
+				}
+
+				@Override
+				public void onError(Exception e) {
+					e.printStackTrace();
+				}
+			});
+		} else if (noteLoaded) {  // Else, write what has changed in the existing note, if anything
+			int changes = getChanges();
+			if (changes != 0) {
+				Note note = new Note(noteID, title, spannable, drawing, strokes,
+						System.currentTimeMillis());
+				repository.updateNote(note, changes, journal, new NoteRepository.Callback<Integer>() {
+					@Override
+					public void onResult(Integer rows) {
+						Toast.makeText(appContext, appContext.getString(R.string.toast_note_updated), Toast.LENGTH_SHORT).show();
+					}
+
+					@Override
+					public void onError(Exception e) {
+						e.printStackTrace();
+					}
+				});
+			} else {
+				journal.discardLater();  // nothing to save
+				drawing.clear();  // gives back its paged out tiles
+			}
+		} else {
+			drawing.clear();
 		}
 
 		hideSoftKeyboard();
@@ -529,4 +728,20 @@ public class NoteActivity extends AppCompatActivity {
 	public void wipeCanvas(View v) {
 		drawingView.startNew();
 	}
+
+	/**
+	 * Takes back the latest stroke or wipe.
+	 * Corresponds to the undo button.
+	 */
+	public void undoDrawing(View v) {
+		drawingView.undo();
+	}
+
+	/**
+	 * Does the latest undone stroke or wipe again.
+	 * Corresponds to the redo button.
+	 */
+	public void redoDrawing(View v) {
+		drawingView.redo();
+	}
 }
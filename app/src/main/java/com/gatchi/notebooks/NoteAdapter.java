@@ -3,29 +3,63 @@ package com.gatchi.notebooks;
 import android.app.Activity;
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Adapter between visual elements and note data.
  *
- * An ArrayAdapter can't do this by itself because...?
+ * Normally shows every note, paged in from the database by a NotePager
+ * so only the notes near the screen are in memory.  While searching it
+ * shows a fixed list of results instead.
  */
-public class NoteAdapter extends ArrayAdapter<Note> {
+public class NoteAdapter extends BaseAdapter implements NotePager.Listener {
 	private Context context;
 	private int layoutResourceId;  // layout info for notes on list view
-	private List<Note> data = null;  // list of notes to display
+	private NotePager pager;  // source of the notes when not searching
+	private ThumbnailLoader thumbnailLoader;  // loads sketch previews off the main thread
+	private List<NoteSummary> searchResults = null;  // notes to display while searching
 
-	public NoteAdapter(Context context, int layoutResourceId, List<Note> data) {
-		super(context, layoutResourceId, data);
+	public NoteAdapter(Context context, int layoutResourceId, DatabaseHandler dbHandler) {
 		this.layoutResourceId = layoutResourceId;
 		this.context = context;
-		this.data = data;
+		pager = new NotePager(dbHandler, this);
+		pager.refresh();
+		thumbnailLoader = new ThumbnailLoader(NoteRepository.getInstance(context));
+	}
+
+	@Override
+	public int getCount() {
+		return searchResults != null ? searchResults.size() : pager.getCount();
+	}
+
+	/**
+	 * Returns the note at given position, or null if it's still loading.
+	 */
+	@Override
+	public NoteSummary getItem(int position) {
+		return searchResults != null ? searchResults.get(position) : pager.getItem(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		NoteSummary note = getItem(position);
+		return note != null ? note.getId() : -1;
+	}
+
+	@Override
+	public void onPagesChanged() {
+		if (searchResults == null) {
+			notifyDataSetChanged();
+		}
 	}
 
 	/**
@@ -50,6 +84,7 @@ public class NoteAdapter extends ArrayAdapter<Note> {
 			holder.noteTitle = (TextView)row.findViewById(R.id.noteTitle);
 			holder.noteContent = (TextView)row.findViewById(R.id.noteContent);
 			holder.noteDate = (TextView)row.findViewById(R.id.noteDate);
+			holder.noteThumbnail = (ImageView)row.findViewById(R.id.noteThumbnail);
 
 			row.setTag(holder);
 		}
@@ -58,42 +93,124 @@ public class NoteAdapter extends ArrayAdapter<Note> {
 			holder = (NoteHolder)row.getTag();
 		}
 
+		NoteSummary note = getItem(position);
+		if (note == null) {  // not loaded yet, leave it blank for now
+			holder.noteTitle.setText("");
+			holder.noteContent.setText("");
+			holder.noteDate.setText("");
+			thumbnailLoader.cancel(holder.noteThumbnail);
+			holder.noteThumbnail.setVisibility(View.GONE);
+			return row;
+		}
+
 		// Set its title on the preview
-		Note note = data.get(position);
 		String noteTitle = note.getTitle();
 		if (noteTitle == null || noteTitle.length() == 0)
 			noteTitle = String.format(context.getString(R.string.note_number), note.getId());
 		holder.noteTitle.setText(noteTitle);
 
 		// Set its text body on the preview (first line)
-		String title = note.getRawText();
-		if (title.length() != 0) {
-			holder.noteContent.setText(note.getRawText());
+		CharSequence preview = note.getPreview();
+		if (preview.length() != 0) {
+			holder.noteContent.setText(preview);
+		}
+		else if (note.hasDrawing()) {
+			holder.noteContent.setText(context.getString(R.string.note_has_drawing));
 		}
 		else {
-			//TODO Finding out if there is picture on note
-			holder.noteContent.setText("INFO: Note has no text");
+			holder.noteContent.setText(context.getString(R.string.note_has_no_text));
+		}
+
+		// Set the sketch thumbnail on the preview, if there is a sketch
+		if (note.hasDrawing()) {
+			holder.noteThumbnail.setVisibility(View.VISIBLE);
+			thumbnailLoader.load(note, holder.noteThumbnail);
+		}
+		else {
+			thumbnailLoader.cancel(holder.noteThumbnail);
+			holder.noteThumbnail.setVisibility(View.GONE);
 		}
 
 		// Set the date and time on the preview
-		holder.noteDate.setText(context.getString(R.string.last_updated) + ": " + note.getFormattedDateUpdatted());
+		// (DateUtils is thread-safe and follows the user's locale and 12/24-hour setting)
+		holder.noteDate.setText(context.getString(R.string.last_updated) + ": " + DateUtils.formatDateTime(context,
+				note.getUpdatedAt(), DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_NUMERIC_DATE));
 
 		return row;  // pass the view back
 	}
 
 	/**
-	 * Overwrites the internal list of notes for display.
+	 * Shows the given notes instead of every note.
+	 */
+	public void setSearchResults(List<NoteSummary> results) {
+		searchResults = new ArrayList<>(results);
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Goes back to showing every note.
+	 */
+	public void clearSearchResults() {
+		if (searchResults != null) {
+			searchResults = null;
+			notifyDataSetChanged();
+		}
+	}
+
+	/**
+	 * Returns true while search results are shown.
 	 */
-	public void setData(List<Note> data) {
-		this.data = data;
+	public boolean isSearching() {
+		return searchResults != null;
+	}
+
+	/**
+	 * Applies one change to the notes on display.
+	 * Search results are edited in place; the paged notes are reloaded,
+	 * which only touches the pages near the screen.
+	 * @param change change published by DatabaseHandler
+	 */
+	public void applyChange(NoteChange change) {
+		if (searchResults != null) {
+			int position = getSearchPosition(change.getNoteId());
+			switch (change.getType()) {
+				case NoteChange.UPDATED:
+					if (position >= 0 && change.getSummary() != null) {
+						searchResults.set(position, change.getSummary());
+					}
+					break;
+				case NoteChange.DELETED:
+					if (position >= 0) {
+						searchResults.remove(position);
+					}
+					break;
+				case NoteChange.CLEARED:
+					searchResults.clear();
+					break;
+			}
+			notifyDataSetChanged();
+		}
+		pager.refresh();
+	}
+
+	/**
+	 * Returns the position of the note with given ID in the search results, or -1.
+	 */
+	private int getSearchPosition(int noteId) {
+		for (int i = 0; i < searchResults.size(); i++) {
+			if (searchResults.get(i).getId() == noteId) {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 	/**
-	 * Returns the internal list of notes.
-	 * Called by MainActivity::onCreateOptionsMenu().
+	 * Stops loading notes. Call when the list goes away.
 	 */
-	public List<Note> getData() {
-		return data;
+	public void close() {
+		pager.close();
+		thumbnailLoader.close();
 	}
 
 	/**
@@ -105,5 +222,6 @@ public class NoteAdapter extends ArrayAdapter<Note> {
 		private TextView noteTitle;
 		private TextView noteContent;
 		private TextView noteDate;
+		private ImageView noteThumbnail;
 	}
 }
@@ -0,0 +1,164 @@
+package com.gatchi.notebooks;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.support.v4.util.LruCache;
+import android.text.Spanned;
+
+/**
+ * Keeps recently loaded notes decoded, so reopening one doesn't read and
+ * decode its sketch and body again.
+ *
+ * Entries are weighed by the bytes they hold (the bitmap plus the text and
+ * its spans) and the least recently used are dropped once the total goes
+ * over the budget.  The budget shrinks when the system asks for memory.
+ *
+ * Cached notes are shared, so their bitmaps must not be drawn on or
+ * recycled; DrawingView works on a copy.  Thread-safe.
+ */
+public class NoteCache implements ComponentCallbacks2 {
+	// Share of the heap the cache may use
+	private static final int HEAP_FRACTION = 8;
+	// Rough cost of one span: the span object and its start, end and flags
+	private static final int SPAN_BYTES = 32;
+	// Rough cost of one stroke besides its points
+	private static final int STROKE_BYTES = 40;
+
+	private final int mMaxBytes;
+	private final LruCache<Integer, Note> mNotes;
+
+	// Bumped on every invalidation; see getStamp()
+	private int mStamp;
+
+	public NoteCache() {
+		this((int) Math.min(Runtime.getRuntime().maxMemory() / HEAP_FRACTION, Integer.MAX_VALUE));
+	}
+
+	public NoteCache(int maxBytes) {
+		mMaxBytes = maxBytes;
+		mNotes = new LruCache<Integer, Note>(maxBytes) {
+			@Override
+			protected int sizeOf(Integer id, Note note) {
+				return NoteCache.sizeOf(note);
+			}
+		};
+	}
+
+	/**
+	 * Returns the approximate number of bytes a note holds on to.
+	 */
+	static int sizeOf(Note note) {
+		int size = 0;
+		TiledCanvas drawing = note.getDrawing();
+		if (drawing != null) {
+			size += drawing.getByteCount();
+		}
+		if (note.getStrokes() != null) {
+			for (Stroke stroke : note.getStrokes()) {
+				size += stroke.getPointCount() * 4 + STROKE_BYTES;
+			}
+		}
+		Spanned text = note.getSpannable();
+		size += text.length() * 2;
+		size += text.getSpans(0, text.length(), Object.class).length * SPAN_BYTES;
+		if (note.getTitle() != null) {
+			size += note.getTitle().length() * 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the cached note with given ID, or null.
+	 */
+	public Note get(int id) {
+		return mNotes.get(id);
+	}
+
+	/**
+	 * Returns a stamp to take before reading a note from the database and
+	 * hand to put() afterwards, so a note changed meanwhile isn't cached.
+	 */
+	public synchronized int getStamp() {
+		return mStamp;
+	}
+
+	/**
+	 * Caches a note read from the database, unless some note has been
+	 * invalidated since stamp was taken.
+	 */
+	public synchronized void put(Note note, int stamp) {
+		if (stamp == mStamp) {
+			mNotes.put(note.getId(), note);
+		}
+	}
+
+	/**
+	 * Drops a note that has been changed or deleted.
+	 */
+	public synchronized void invalidate(int id) {
+		mStamp++;
+		mNotes.remove(id);
+	}
+
+	/**
+	 * Drops every note.
+	 */
+	public synchronized void invalidateAll() {
+		mStamp++;
+		mNotes.evictAll();
+	}
+
+	public int getHitCount() {
+		return mNotes.hitCount();
+	}
+
+	public int getMissCount() {
+		return mNotes.missCount();
+	}
+
+	/**
+	 * Returns how many notes were dropped to stay in budget (not counting invalidations).
+	 */
+	public int getEvictionCount() {
+		return mNotes.evictionCount();
+	}
+
+	/**
+	 * Returns the bytes held now.
+	 */
+	public int getSize() {
+		return mNotes.size();
+	}
+
+	public int getMaxSize() {
+		return mMaxBytes;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		if (level >= TRIM_MEMORY_MODERATE) {
+			// Next in line to be killed; keep nothing
+			mNotes.evictAll();
+		} else if (level >= TRIM_MEMORY_BACKGROUND) {
+			mNotes.trimToSize(mMaxBytes / 4);
+		} else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+			// (includes TRIM_MEMORY_UI_HIDDEN)
+			mNotes.trimToSize(mMaxBytes / 2);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		mNotes.evictAll();
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+
+	@Override
+	public String toString() {
+		return "NoteCache size=" + getSize() + "/" + mMaxBytes + " hits=" + getHitCount()
+				+ " misses=" + getMissCount() + " evictions=" + getEvictionCount();
+	}
+}
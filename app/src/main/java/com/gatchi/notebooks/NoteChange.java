@@ -0,0 +1,44 @@
+package com.gatchi.notebooks;
+
+/**
+ * Describes one change to the stored notes.
+ * Published by DatabaseHandler so views can apply just that change
+ * instead of reloading every note.
+ */
+public class NoteChange {
+	public static final int INSERTED = 1;
+	public static final int UPDATED = 2;
+	public static final int DELETED = 3;
+	public static final int CLEARED = 4;  // every note deleted
+
+	private final int mType;
+	private final int mNoteId;
+	private final NoteSummary mSummary;
+
+	public NoteChange(int type, int noteId, NoteSummary summary) {
+		mType = type;
+		mNoteId = noteId;
+		mSummary = summary;
+	}
+
+	/**
+	 * Returns what happened: INSERTED, UPDATED, DELETED or CLEARED.
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * Returns the ID of the changed note, or -1 for CLEARED.
+	 */
+	public int getNoteId() {
+		return mNoteId;
+	}
+
+	/**
+	 * Returns the note as it is now, for INSERTED and UPDATED; null otherwise.
+	 */
+	public NoteSummary getSummary() {
+		return mSummary;
+	}
+}
@@ -0,0 +1,234 @@
+package com.gatchi.notebooks;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads note summaries for the list a page at a time.
+ *
+ * Only the pages around the last requested position are kept; pages
+ * further away are dropped and loaded again if scrolled back to.  Pages
+ * are found by keyset (the notes after the last one of the previous page,
+ * or before the first one of the next page), so loading one costs the
+ * same wherever it is in the notebook.  Only a jump to a page with no
+ * loaded neighbor falls back to an OFFSET query.
+ *
+ * A refresh keeps the page ends found before it as anchors, so reloading
+ * the pages being shown stays a keyset query.  A page loaded after such
+ * an anchor may be off by the notes that moved since; once the page before
+ * it is reloaded from a known end, it is loaded again if its anchor turns
+ * out to have moved.
+ *
+ * All methods must be called on the main thread; loading happens on a
+ * background thread and the listener is told when pages arrive.
+ */
+public class NotePager {
+	public static final int PAGE_SIZE = 50;
+	// Pages loaded ahead of and behind the page being shown
+	private static final int PREFETCH_PAGES = 1;
+	// Pages further than this from the page being shown are dropped
+	private static final int KEEP_PAGES = 3;
+
+	/**
+	 * Gets told when pages have been loaded.
+	 */
+	public interface Listener {
+		void onPagesChanged();
+	}
+
+	private final DatabaseHandler mDbHandler;
+	private final Listener mListener;
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	// Loaded pages by page index
+	private SparseArray<List<NoteSummary>> mPages = new SparseArray<>();
+	// Pages from before the last refresh, shown until their replacement arrives
+	private SparseArray<List<NoteSummary>> mStalePages = new SparseArray<>();
+	// Last note of every page loaded, used as keyset; kept over refreshes
+	private final SparseArray<NoteSummary> mPageEnds = new SparseArray<>();
+	// Pages known to be right since the last refresh: page 0, and pages
+	// loaded next to one of them
+	private final SparseBooleanArray mExact = new SparseBooleanArray();
+	// The note each loaded page was loaded after, if any
+	private final SparseArray<NoteSummary> mAnchors = new SparseArray<>();
+	private final SparseBooleanArray mLoading = new SparseBooleanArray();
+
+	private int mCount;
+	private int mCurrentPage;
+	// Bumped on refresh so loads started before it are ignored
+	private int mGeneration;
+
+	public NotePager(DatabaseHandler dbHandler, Listener listener) {
+		mDbHandler = dbHandler;
+		mListener = listener;
+	}
+
+	/**
+	 * Returns the number of notes, as of the last refresh.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Returns the note at given position, or null if it isn't loaded yet.
+	 * Starts loading its page and the pages around it.
+	 */
+	public NoteSummary getItem(int position) {
+		int page = position / PAGE_SIZE;
+		if (page != mCurrentPage) {
+			mCurrentPage = page;
+			dropFarPages();
+		}
+		for (int i = page - PREFETCH_PAGES; i <= page + PREFETCH_PAGES; i++) {
+			ensureLoaded(i);
+		}
+
+		List<NoteSummary> notes = mPages.get(page);
+		if (notes == null) {
+			notes = mStalePages.get(page);
+		}
+		int index = position % PAGE_SIZE;
+		return notes != null && index < notes.size() ? notes.get(index) : null;
+	}
+
+	/**
+	 * Reloads the note count and the pages around the current position.
+	 * What is loaded now stays on display until it has been replaced.
+	 */
+	public void refresh() {
+		final int generation = ++mGeneration;
+		mStalePages = mPages;
+		mPages = new SparseArray<>();
+		mExact.clear();
+		mAnchors.clear();
+		mLoading.clear();
+
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final int count = mDbHandler.getNoteCount();
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (generation != mGeneration) {
+							return;
+						}
+						mCount = count;
+						for (int i = mCurrentPage - PREFETCH_PAGES; i <= mCurrentPage + PREFETCH_PAGES; i++) {
+							ensureLoaded(i);
+						}
+						mListener.onPagesChanged();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stops loading. The pager can't be used afterwards.
+	 */
+	public void close() {
+		mExecutor.shutdownNow();
+	}
+
+	private void ensureLoaded(final int page) {
+		if (page < 0 || page * PAGE_SIZE >= mCount || mPages.get(page) != null || mLoading.get(page)) {
+			return;
+		}
+		mLoading.put(page, true);
+
+		// Pick the keyset on this thread, the pages may change meanwhile
+		final NoteSummary after = page > 0 ? mPageEnds.get(page - 1) : null;
+		List<NoteSummary> nextPage = mPages.get(page + 1);
+		final NoteSummary before = nextPage != null && !nextPage.isEmpty() ? nextPage.get(0) : null;
+		final boolean exact = page == 0
+				|| (after != null ? mExact.get(page - 1) : before != null && mExact.get(page + 1));
+		final int generation = mGeneration;
+
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final List<NoteSummary> notes;
+				if (page == 0 || after != null) {
+					notes = mDbHandler.getNoteSummariesAfter(after, PAGE_SIZE);
+				} else if (before != null) {
+					notes = mDbHandler.getNoteSummariesBefore(before, PAGE_SIZE);
+				} else {
+					notes = mDbHandler.getNoteSummariesAt(page * PAGE_SIZE, PAGE_SIZE);
+				}
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (generation != mGeneration) {
+							return;
+						}
+						mLoading.delete(page);
+						mStalePages.remove(page);
+						if (Math.abs(page - mCurrentPage) > KEEP_PAGES) {
+							return;  // scrolled away while loading
+						}
+						mPages.put(page, notes);
+						mAnchors.put(page, after);
+						if (!notes.isEmpty()) {
+							mPageEnds.put(page, notes.get(notes.size() - 1));
+						}
+						if (exact) {
+							mExact.put(page, true);
+							checkNextPage(page);
+						} else if (mExact.get(page - 1)) {
+							checkNextPage(page - 1);
+						}
+						mListener.onPagesChanged();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Called once a page is known to be right.  If the next page was loaded
+	 * after an anchor that is no longer this page's end, loads it again;
+	 * otherwise it's right too.
+	 */
+	private void checkNextPage(int page) {
+		int next = page + 1;
+		List<NoteSummary> notes = mPages.get(next);
+		if (notes == null || mExact.get(next)) {
+			return;
+		}
+		NoteSummary end = mPageEnds.get(page);
+		NoteSummary anchor = mAnchors.get(next);
+		if (end != null && anchor != null
+				&& end.getId() == anchor.getId() && end.getUpdatedAt() == anchor.getUpdatedAt()) {
+			mExact.put(next, true);
+			checkNextPage(next);
+		} else {
+			// Keep showing it until the new one arrives
+			mStalePages.put(next, notes);
+			mPages.remove(next);
+			mAnchors.remove(next);
+			ensureLoaded(next);
+		}
+	}
+
+	/**
+	 * Drops the pages too far from the current one to be shown soon.
+	 */
+	private void dropFarPages() {
+		for (int i = mPages.size() - 1; i >= 0; i--) {
+			if (Math.abs(mPages.keyAt(i) - mCurrentPage) > KEEP_PAGES) {
+				mAnchors.remove(mPages.keyAt(i));
+				mPages.removeAt(i);
+			}
+		}
+		mStalePages.clear();
+	}
+}
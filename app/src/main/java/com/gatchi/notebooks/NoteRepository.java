@@ -0,0 +1,420 @@
+package com.gatchi.notebooks;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseIntArray;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs DatabaseHandler operations off the main thread.
+ *
+ * Writes go one at a time, in order, on a single writer thread; saves are
+ * merged and committed in batches by a NoteWriteQueue.  Reads run
+ * on a small pool of their own, so they don't wait behind a slow save;
+ * only a read of a note with a write still pending is queued behind the
+ * writes, so it sees them.  Results are delivered on the main thread.
+ *
+ * There is one instance per process, see getInstance().
+ */
+public class NoteRepository {
+	private static final int READER_THREADS = 2;
+	private static final int BENCHMARK_SKETCHES = 20;
+	private static final int BENCHMARK_NOTES = 20;
+	private static final int BENCHMARK_NOTE_WORDS = 5000;
+	private static final int BENCHMARK_OPERATIONS = 200;
+
+	/**
+	 * Receives the result of an operation, on the main thread.
+	 */
+	public interface Callback<T> {
+		void onResult(T result);
+
+		void onError(Exception e);
+	}
+
+	/**
+	 * Handle to a started operation.
+	 */
+	public static class Request {
+		private volatile boolean mCancelled;
+		private Future<?> mFuture;  // null for writes, which always run
+
+		/**
+		 * Makes sure the callback isn't called, and stops the operation if
+		 * it's a read that hasn't started yet.  Writes still happen.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			if (mFuture != null) {
+				mFuture.cancel(false);
+			}
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+	}
+
+	private static NoteRepository sInstance;
+
+	private final DatabaseHandler mDbHandler;
+	private final NoteWriteQueue mWriter;
+	private final ExecutorService mReaders = Executors.newFixedThreadPool(READER_THREADS);
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	// Writes queued or running, per note ID, and of every note (clearing)
+	private final SparseIntArray mPendingWrites = new SparseIntArray();
+	private int mPendingClears;
+	private boolean mRecovered;
+
+	/**
+	 * Returns the process-wide repository, creating it on first use.
+	 */
+	public static synchronized NoteRepository getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new NoteRepository(DatabaseHandler.getInstance(context));
+		}
+		return sInstance;
+	}
+
+	private NoteRepository(DatabaseHandler dbHandler) {
+		mDbHandler = dbHandler;
+		mWriter = new NoteWriteQueue(dbHandler);
+	}
+
+	/**
+	 * Returns the queue saves go through, for its metrics.
+	 */
+	public NoteWriteQueue getWriteQueue() {
+		return mWriter;
+	}
+
+	/**
+	 * Returns the database handler, for listeners and metrics.
+	 */
+	public DatabaseHandler getDatabaseHandler() {
+		return mDbHandler;
+	}
+
+	/**
+	 * Loads a whole note.
+	 */
+	public Request getNote(final int id, Callback<Note> callback) {
+		return submit(executorForReading(id), true, callback, new Callable<Note>() {
+			@Override
+			public Note call() {
+				return mDbHandler.getNote(id);
+			}
+		});
+	}
+
+	/**
+	 * Loads a note in steps, so its text can be shown before its drawing
+	 * is decoded, which can take a while for a big one.
+	 * @param textCallback gets the note without its drawing (whole if it was cached)
+	 * @param placeholderCallback gets the stored thumbnail of the drawing,
+	 *                            to show until it's ready; not called if there's none
+	 * @param store where to page out a big drawing as it's decoded, or null;
+	 *              see DatabaseHandler.getNoteDrawing(Note, int, TileStore, int)
+	 * @param callback gets the whole note, or the error if any step failed
+	 */
+	public Request openNote(final int id, final TileStore store, final int maxResidentBytes,
+			final Callback<Note> textCallback, final Callback<Bitmap> placeholderCallback, Callback<Note> callback) {
+		final Request request = new Request();
+		return submit(executorForReading(id), true, request, callback, new Callable<Note>() {
+			@Override
+			public Note call() {
+				int stamp = mDbHandler.getCacheStamp();
+				Note text = mDbHandler.getNoteText(id);
+				deliver(request, textCallback, text, null);
+				if (text.getDrawing() == null && text.getStrokes() == null && !request.isCancelled()) {
+					byte[] thumbnail = getThumbnail(id);
+					if (thumbnail != null) {
+						Bitmap placeholder = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+						if (placeholder != null) {
+							deliver(request, placeholderCallback, placeholder, null);
+						}
+					}
+				}
+				return mDbHandler.getNoteDrawing(text, stamp, store, maxResidentBytes);
+			}
+		});
+	}
+
+	/**
+	 * Reads a note's thumbnail on the calling thread, which must not be
+	 * the main one.  One made for a note saved before thumbnails existed
+	 * is stored by the writer; see DatabaseHandler.getThumbnail().
+	 */
+	public byte[] getThumbnail(int id) {
+		return mDbHandler.getThumbnail(id, mWriter);
+	}
+
+	/**
+	 * Finds notes matching a search query; see DatabaseHandler.searchNoteSummaries().
+	 */
+	public Request searchNoteSummaries(final String query, Callback<List<NoteSummary>> callback) {
+		return submit(mReaders, true, callback, new Callable<List<NoteSummary>>() {
+			@Override
+			public List<NoteSummary> call() {
+				return mDbHandler.searchNoteSummaries(query);
+			}
+		});
+	}
+
+	/**
+	 * Runs CodecBenchmark over the sketches of the most recently updated notes.
+	 * @param callback gets the report
+	 */
+	public Request runCodecBenchmark(Callback<String> callback) {
+		return submit(mReaders, true, callback, new Callable<String>() {
+			@Override
+			public String call() {
+				return CodecBenchmark.run(mDbHandler.getSketches(BENCHMARK_SKETCHES));
+			}
+		});
+	}
+
+	/**
+	 * Runs BodyBenchmark in the background; debug builds only.
+	 */
+	public Request runBodyBenchmark(Callback<String> callback) {
+		return submit(mReaders, true, callback, new Callable<String>() {
+			@Override
+			public String call() {
+				return BodyBenchmark.run(BENCHMARK_NOTES, BENCHMARK_NOTE_WORDS);
+			}
+		});
+	}
+
+	/**
+	 * Runs DatabaseBenchmark in the background; debug builds only.
+	 * Uses scratch databases of its own, so it doesn't wait for the writer.
+	 */
+	public Request runDatabaseBenchmark(final Context context, Callback<String> callback) {
+		return submit(mReaders, true, callback, new Callable<String>() {
+			@Override
+			public String call() {
+				return DatabaseBenchmark.run(context.getApplicationContext(), BENCHMARK_OPERATIONS);
+			}
+		});
+	}
+
+	/**
+	 * Stores a new note.
+	 * @param journal journal of the edits, discarded once the note is stored; may be null
+	 * @param callback gets the ID given to the note; may be null
+	 */
+	public Request createNote(Note note, EditJournal journal, Callback<Integer> callback) {
+		final Request request = new Request();
+		mWriter.create(note, journal, toListener(request, callback));
+		return request;
+	}
+
+	/**
+	 * Writes the changed parts of a note; see DatabaseHandler.updateNote(Note, int).
+	 * @param journal journal of the edits, discarded once they are written; may be null
+	 * @param callback gets the number of rows updated; may be null
+	 */
+	public Request updateNote(Note note, int changes, EditJournal journal, final Callback<Integer> callback) {
+		final int id = note.getId();
+		final Request request = new Request();
+		startWrite(id);
+		mWriter.update(note, changes, journal, new NoteWriteQueue.OnWrittenListener() {
+			@Override
+			public void onWritten(int result, Exception error) {
+				finishWrite(id);
+				deliver(request, callback, result, error);
+			}
+		});
+		return request;
+	}
+
+	/**
+	 * Returns a write queue listener delivering to given callback.
+	 */
+	private NoteWriteQueue.OnWrittenListener toListener(final Request request, final Callback<Integer> callback) {
+		return new NoteWriteQueue.OnWrittenListener() {
+			@Override
+			public void onWritten(int result, Exception error) {
+				deliver(request, callback, result, error);
+			}
+		};
+	}
+
+	/**
+	 * Saves the edits left in journals by earlier runs; see EditJournal.recover().
+	 * Only does anything the first time it's called in a process.
+	 * @param callback gets the number of notes recovered; may be null
+	 */
+	public Request recoverEdits(final Context context, Callback<Integer> callback) {
+		final boolean first;
+		synchronized (this) {
+			first = !mRecovered;
+			mRecovered = true;
+		}
+		// Anything recovered could touch any note, so reads wait for it like for a clear
+		if (first) {
+			startWrite(-1);
+		}
+		return submit(mWriter, false, callback, new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				if (!first) {
+					return 0;
+				}
+				try {
+					return EditJournal.recover(context.getApplicationContext(), mDbHandler);
+				} finally {
+					finishWrite(-1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Deletes a note.
+	 * @param callback may be null
+	 */
+	public Request deleteNote(final int id, Callback<Void> callback) {
+		startWrite(id);
+		return submit(mWriter, false, callback, new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					mDbHandler.deleteNote(id);
+					return null;
+				} finally {
+					finishWrite(id);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Deletes every note.
+	 * @param callback may be null
+	 */
+	public Request clearAllNotes(Callback<Void> callback) {
+		startWrite(-1);
+		return submit(mWriter, false, callback, new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					mDbHandler.clearAllNotes();
+					return null;
+				} finally {
+					finishWrite(-1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Counts a write to the note with given ID, or to every note for -1, as pending.
+	 */
+	private synchronized void startWrite(int id) {
+		if (id == -1) {
+			mPendingClears++;
+		} else {
+			mPendingWrites.put(id, mPendingWrites.get(id) + 1);
+		}
+	}
+
+	private synchronized void finishWrite(int id) {
+		if (id == -1) {
+			mPendingClears--;
+		} else {
+			int count = mPendingWrites.get(id) - 1;
+			if (count == 0) {
+				mPendingWrites.delete(id);
+			} else {
+				mPendingWrites.put(id, count);
+			}
+		}
+	}
+
+	/**
+	 * Returns where to read a note: behind the writes if any of them
+	 * touches it, so the read sees them, or else on the reader pool.
+	 */
+	private synchronized Executor executorForReading(int id) {
+		return mPendingClears > 0 || mPendingWrites.get(id) > 0 ? mWriter : mReaders;
+	}
+
+	/**
+	 * Runs an operation on given executor and delivers its outcome on the main thread.
+	 * @param cancellable whether Request.cancel() may keep the operation from running
+	 */
+	private <T> Request submit(Executor executor, boolean cancellable, Callback<T> callback, Callable<T> operation) {
+		return submit(executor, cancellable, new Request(), callback, operation);
+	}
+
+	private <T> Request submit(Executor executor, boolean cancellable, final Request request,
+			final Callback<T> callback, final Callable<T> operation) {
+		FutureTask<Void> future = new FutureTask<>(new Runnable() {
+			@Override
+			public void run() {
+				T result = null;
+				Exception error = null;
+				try {
+					result = operation.call();
+				} catch (Exception e) {
+					error = e;
+				}
+				deliver(request, callback, result, error);
+			}
+		}, null);
+		executor.execute(future);
+		if (cancellable) {
+			request.mFuture = future;
+		}
+		return request;
+	}
+
+	/**
+	 * Lets go of a result nobody will get.  A note whose drawing was paged
+	 * out while loading is the caller's own, holding tile store slots.
+	 */
+	private static void release(Object result) {
+		if (result instanceof Note) {
+			TiledCanvas drawing = ((Note) result).getDrawing();
+			if (drawing != null && drawing.getPagedTileCount() > 0) {
+				drawing.clear();
+			}
+		}
+	}
+
+	private <T> void deliver(final Request request, final Callback<T> callback, final T result, final Exception error) {
+		if (callback == null) {
+			if (error != null) {
+				error.printStackTrace();
+			}
+			return;
+		}
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (request.isCancelled()) {
+					release(result);
+					return;
+				}
+				if (error != null) {
+					callback.onError(error);
+				} else {
+					callback.onResult(result);
+				}
+			}
+		});
+	}
+}
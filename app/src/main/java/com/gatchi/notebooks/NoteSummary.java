@@ -0,0 +1,70 @@
+package com.gatchi.notebooks;
+
+/**
+ * Lightweight view of a note, used by the note list.
+ *
+ * Holds only what a list row shows, so building one never touches the
+ * sketch blob or parses the formatted body.  The full Note is loaded
+ * by NoteActivity when the note is opened.
+ */
+public class NoteSummary {
+	// KEY_ID of Note
+	private final int mId;
+
+	// Title of note
+	private final String mTitle;
+
+	// Beginning of the note body in plain text
+	private final CharSequence mPreview;
+
+	// Whether the note has any sketch on it
+	private final boolean mHasDrawing;
+
+	// Time last updated, in epoch milliseconds
+	private final long mUpdatedAt;
+
+	public NoteSummary(int id, String title, CharSequence preview, boolean hasDrawing, long updatedAt) {
+		mId = id;
+		mTitle = title;
+		mPreview = preview;
+		mHasDrawing = hasDrawing;
+		mUpdatedAt = updatedAt;
+	}
+
+	/**
+	 * Returns the unique ID number of the note.
+	 */
+	public int getId() {
+		return mId;
+	}
+
+	/**
+	 * Returns the note title.
+	 */
+	public String getTitle() {
+		return mTitle;
+	}
+
+	/**
+	 * Returns the beginning of the note body, or for search results the
+	 * part around the matched words.
+	 */
+	public CharSequence getPreview() {
+		return mPreview;
+	}
+
+	/**
+	 * Returns true if the note has a sketch on it.
+	 */
+	public boolean hasDrawing() {
+		return mHasDrawing;
+	}
+
+	/**
+	 * Returns the time last updated, in epoch milliseconds.
+	 * Formatting is left to the view, so it is only done for rows on screen.
+	 */
+	public long getUpdatedAt() {
+		return mUpdatedAt;
+	}
+}
@@ -0,0 +1,329 @@
+package com.gatchi.notebooks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects note saves for a moment and writes them together.
+ *
+ * Saves of the same note made within COALESCE_DELAY_MS are merged into
+ * one: for each part of the note (title, body, drawing) the latest save
+ * that changed it wins, and it's encoded and written only once.  All
+ * pending saves are then written in a single transaction, so a burst of
+ * saves costs one commit; if that fails, each save is retried on its own
+ * and only the ones that fail again report an error.  Edits are
+ * journaled (see EditJournal), so holding them back a moment doesn't
+ * risk losing them.
+ *
+ * Drawings start being encoded as soon as they're queued, by a
+ * DrawingEncoder, rather than by the writer inside the transaction.
+ * Drawings of queued notes are the queue's own (snapshots, see
+ * TiledCanvas.snapshot()) and are cleared once written, giving back
+ * what they hold of the tile store.
+ *
+ * Everything runs on one thread, the only one NoteRepository writes on.
+ * Other work given to execute() runs there too, after the saves queued
+ * before it have been written.
+ */
+public class NoteWriteQueue implements Executor {
+	// How long saves wait for more saves to merge with
+	private static final long COALESCE_DELAY_MS = 250;
+
+	/**
+	 * Gets told when a save has been committed, or has failed.
+	 * Called on the writer thread.
+	 */
+	public interface OnWrittenListener {
+		/**
+		 * @param result ID of a created note, or rows updated
+		 * @param error why the write failed, or null
+		 */
+		void onWritten(int result, Exception error);
+	}
+
+	private final DatabaseHandler mDbHandler;
+	private final DrawingEncoder mEncoder;
+	private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+	private final LatencyRecorder mLatency = new LatencyRecorder("NoteWriteQueue");
+
+	// Pending saves, updates by note ID in the order they were first made
+	private final List<PendingWrite> mCreates = new ArrayList<>();
+	private final LinkedHashMap<Integer, PendingWrite> mUpdates = new LinkedHashMap<>();
+	private ScheduledFuture<?> mScheduledDrain;
+
+	// Counters, for tuning
+	private long mEnqueued;
+	private long mCoalesced;
+	private long mCommits;
+
+	private final Runnable mDrainRunnable = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public NoteWriteQueue(DatabaseHandler dbHandler) {
+		mDbHandler = dbHandler;
+		mEncoder = new DrawingEncoder(dbHandler);
+	}
+
+	/**
+	 * Queues a new note to be stored.
+	 */
+	public synchronized void create(Note note, EditJournal journal, OnWrittenListener listener) {
+		PendingWrite write = new PendingWrite(true, note, Note.CHANGED_ALL);
+		write.mCreatedAt = journal != null ? journal.getCreatedAt() : 0;
+		write.mEncoding = mEncoder.submit(note);
+		write.add(journal, listener);
+		mCreates.add(write);
+		mEnqueued++;
+		scheduleDrain();
+	}
+
+	/**
+	 * Queues the changed parts of a note to be written, merging them into
+	 * a save of the same note still waiting, if any.
+	 */
+	public synchronized void update(Note note, int changes, EditJournal journal, OnWrittenListener listener) {
+		PendingWrite write = mUpdates.get(note.getId());
+		if (write == null) {
+			write = new PendingWrite(false, note, changes);
+			mUpdates.put(note.getId(), write);
+		} else {
+			write.merge(note, changes);
+			mCoalesced++;
+		}
+		if ((changes & Note.CHANGED_DRAWING) != 0) {
+			mEncoder.cancel(write.mEncoding);  // an older drawing
+			write.mEncoding = mEncoder.submit(note);
+		}
+		write.add(journal, listener);
+		mEnqueued++;
+		scheduleDrain();
+	}
+
+	/**
+	 * Runs a task on the writer thread once the saves queued before it
+	 * are written, so it sees them (or writes after them).
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Writes the queued saves now rather than after the delay.
+	 */
+	public void flush() {
+		mExecutor.execute(mDrainRunnable);
+	}
+
+	/**
+	 * Returns the number of saves waiting, after merging.
+	 */
+	public synchronized int getQueueDepth() {
+		return mCreates.size() + mUpdates.size();
+	}
+
+	/**
+	 * Returns the timings of commits ("commit") and of how long saves
+	 * waited in the queue ("wait").
+	 */
+	public LatencyRecorder getLatencyRecorder() {
+		return mLatency;
+	}
+
+	/**
+	 * Returns the stage encoding drawings, for its timings and counters.
+	 */
+	public DrawingEncoder getEncoder() {
+		return mEncoder;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "NoteWriteQueue depth=" + getQueueDepth() + " enqueued=" + mEnqueued
+				+ " coalesced=" + mCoalesced + " commits=" + mCommits;
+	}
+
+	private void scheduleDrain() {
+		if (mScheduledDrain == null) {
+			mScheduledDrain = mExecutor.schedule(mDrainRunnable, COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes every queued save in one transaction. Runs on the writer thread.
+	 * If the transaction fails, each save is tried again in one of its own,
+	 * so a note that can't be written doesn't hold back the others.
+	 */
+	private void drain() {
+		final List<PendingWrite> writes;
+		synchronized (this) {
+			if (mScheduledDrain != null) {
+				mScheduledDrain.cancel(false);
+				mScheduledDrain = null;
+			}
+			if (mCreates.isEmpty() && mUpdates.isEmpty()) {
+				return;
+			}
+			writes = new ArrayList<>(mCreates);
+			writes.addAll(mUpdates.values());
+			mCreates.clear();
+			mUpdates.clear();
+			mCommits++;
+		}
+		for (PendingWrite write : writes) {
+			mLatency.record("wait", write.mQueuedAt);
+		}
+
+		long start = LatencyRecorder.start();
+		// Encoded beforehand (or now, if the encoder was full), outside the transaction
+		final List<PendingWrite> ready = new ArrayList<>(writes.size());
+		for (PendingWrite write : writes) {
+			try {
+				write.mNote = write.toNote();
+				if ((write.mChanges & Note.CHANGED_DRAWING) != 0) {
+					write.mDrawing = mEncoder.get(write.mEncoding, write.mNote);
+				}
+				ready.add(write);
+			} catch (RuntimeException e) {
+				write.mError = e;
+			}
+		}
+		try {
+			mDbHandler.runInTransaction(new Runnable() {
+				@Override
+				public void run() {
+					for (PendingWrite write : ready) {
+						write(write);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// The whole batch rolled back; find the saves that failed it
+			for (final PendingWrite write : ready) {
+				try {
+					mDbHandler.runInTransaction(new Runnable() {
+						@Override
+						public void run() {
+							write(write);
+						}
+					});
+				} catch (RuntimeException retryError) {
+					write.mError = retryError;
+				}
+			}
+		}
+		mLatency.record("commit", start);
+
+		for (PendingWrite write : writes) {
+			if (write.mError == null) {
+				for (EditJournal journal : write.mJournals) {
+					journal.discard();
+				}
+			}  // else the journals stay for recovery
+			for (OnWrittenListener listener : write.mListeners) {
+				listener.onWritten(write.mResult, write.mError);
+			}
+			for (TiledCanvas drawing : write.mDrawings) {
+				// Whether written or not: a failed write is recovered from the journals
+				mEncoder.release(drawing);
+			}
+		}
+	}
+
+	/**
+	 * Writes one save, inside the transaction of runInTransaction().
+	 */
+	private void write(PendingWrite write) {
+		if (write.mCreate) {
+			write.mResult = mDbHandler.createNote(write.mNote, write.mDrawing, write.mCreatedAt);
+		} else {
+			write.mResult = mDbHandler.updateNote(write.mNote, write.mChanges, write.mDrawing);
+		}
+	}
+
+	/**
+	 * One note's saves waiting to be written, merged.
+	 */
+	private static class PendingWrite {
+		private final boolean mCreate;
+		// Creation time to store a new note with, so its journal can tell it got stored; 0 for now
+		private long mCreatedAt;
+		private final long mQueuedAt = LatencyRecorder.start();
+		// Latest save, and the latest one to change each part
+		private Note mLatest;
+		private Note mTitleFrom;
+		private Note mBodyFrom;
+		private Note mDrawingFrom;
+		private int mChanges;
+		// Drawing of mDrawingFrom being encoded, or null if the encoder was full
+		private Future<EncodedDrawing> mEncoding;
+		// Filled in when written
+		private Note mNote;
+		private EncodedDrawing mDrawing;
+		private int mResult;
+		private Exception mError;
+		private final List<EditJournal> mJournals = new ArrayList<>();
+		private final List<OnWrittenListener> mListeners = new ArrayList<>();
+		// Drawings of every save merged, to clear once written
+		private final List<TiledCanvas> mDrawings = new ArrayList<>();
+
+		PendingWrite(boolean create, Note note, int changes) {
+			mCreate = create;
+			merge(note, changes);
+		}
+
+		void merge(Note note, int changes) {
+			mLatest = note;
+			if (note.getDrawing() != null && !mDrawings.contains(note.getDrawing())) {
+				mDrawings.add(note.getDrawing());
+			}
+			if ((changes & Note.CHANGED_TITLE) != 0) {
+				mTitleFrom = note;
+			}
+			if ((changes & Note.CHANGED_BODY) != 0) {
+				mBodyFrom = note;
+			}
+			if ((changes & Note.CHANGED_DRAWING) != 0) {
+				mDrawingFrom = note;
+			}
+			mChanges |= changes;
+		}
+
+		void add(EditJournal journal, OnWrittenListener listener) {
+			if (journal != null) {
+				mJournals.add(journal);
+			}
+			if (listener != null) {
+				mListeners.add(listener);
+			}
+		}
+
+		/**
+		 * Builds the note to write; parts not changed come from the latest save and aren't written.
+		 */
+		Note toNote() {
+			Note title = mTitleFrom != null ? mTitleFrom : mLatest;
+			Note body = mBodyFrom != null ? mBodyFrom : mLatest;
+			Note drawing = mDrawingFrom != null ? mDrawingFrom : mLatest;
+			return new Note(mLatest.getId(), title.getTitle(), body.getSpannable(), drawing.getDrawing(),
+					drawing.getStrokes(), mLatest.getUpdatedAt());
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An image of a few ink colors, kept as one ALPHA_8 coverage layer per
+ * color: a byte per pixel per color instead of four, and usually there
+ * is just the one color.
+ *
+ * Drawn as is, each layer in its color, so it never needs expanding to
+ * ARGB to be displayed.  Made for sketch tiles, whose pixels are ink
+ * colors anti-aliased over transparency.  Pixels where inks of different
+ * colors blend are given to the nearest one, so it's close to exact
+ * rather than exact; not an ImageCodec for that reason.
+ *
+ * Layout (see write()): width and height as big-endian ints, color count
+ * as a byte, the colors as ints, then deflated: each layer's coverage,
+ * row by row.  Splitting and the layout are done on arrays, by
+ * PalettePlanes.
+ *
+ * Immutable, so copies of a drawing can share it.
+ */
+public class PaletteImage {
+	private final int mWidth;
+	private final int mHeight;
+	private final int[] mColors;
+	private final Bitmap[] mLayers;
+
+	private PaletteImage(int width, int height, int[] colors, Bitmap[] layers) {
+		mWidth = width;
+		mHeight = height;
+		mColors = colors;
+		mLayers = layers;
+	}
+
+	/**
+	 * Splits a bitmap into coverage layers of its most used colors.
+	 * @param maxColors most layers to make; other colors go to the nearest of them
+	 * @return the image, or null if the bitmap has too many colors to be a sketch
+	 */
+	public static PaletteImage fromBitmap(Bitmap bitmap, int maxColors) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		PalettePlanes planes = PalettePlanes.split(pixels, width, height, maxColors);
+		return planes == null ? null : fromPlanes(planes);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Returns true if nothing is drawn.
+	 */
+	public boolean isEmpty() {
+		return mLayers.length == 0;
+	}
+
+	/**
+	 * Returns the number of bytes the layers take up.
+	 */
+	public int getByteCount() {
+		int size = 0;
+		for (Bitmap layer : mLayers) {
+			size += layer.getByteCount();
+		}
+		return size;
+	}
+
+	/**
+	 * Draws the image with its top left corner at (left, top).
+	 * @param paint used for each layer, its color set to the layer's
+	 */
+	public void draw(Canvas canvas, float left, float top, Paint paint) {
+		for (int i = 0; i < mLayers.length; i++) {
+			paint.setColor(mColors[i]);
+			canvas.drawBitmap(mLayers[i], left, top, paint);
+		}
+	}
+
+	/**
+	 * Writes the image in the layout described above.
+	 */
+	public void write(OutputStream out) throws IOException {
+		byte[][] planes = new byte[mLayers.length][];
+		for (int i = 0; i < mLayers.length; i++) {
+			Bitmap layer = mLayers[i];
+			int rowBytes = layer.getRowBytes();
+			byte[] padded = new byte[rowBytes * mHeight];
+			layer.copyPixelsToBuffer(ByteBuffer.wrap(padded));
+			if (rowBytes == mWidth) {
+				planes[i] = padded;
+				continue;
+			}
+			planes[i] = new byte[mWidth * mHeight];
+			for (int y = 0; y < mHeight; y++) {
+				System.arraycopy(padded, y * rowBytes, planes[i], y * mWidth, mWidth);
+			}
+		}
+		new PalettePlanes(mWidth, mHeight, mColors, planes).write(out);
+	}
+
+	/**
+	 * Reads an image written by write().
+	 * @throws IOException if the data can't be read or is damaged
+	 */
+	public static PaletteImage read(InputStream in) throws IOException {
+		return fromPlanes(PalettePlanes.read(in));
+	}
+
+	private static PaletteImage fromPlanes(PalettePlanes planes) {
+		int width = planes.getWidth();
+		int height = planes.getHeight();
+		Bitmap[] layers = new Bitmap[planes.getPlanes().length];
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = toLayer(planes.getPlanes()[i], width, height);
+		}
+		return new PaletteImage(width, height, planes.getColors(), layers);
+	}
+
+	/**
+	 * Makes an ALPHA_8 bitmap of coverage given a byte per pixel, row by row.
+	 */
+	private static Bitmap toLayer(byte[] plane, int width, int height) {
+		Bitmap layer = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+		int rowBytes = layer.getRowBytes();
+		if (rowBytes != width) {
+			// Rows are padded; spread them out to match
+			byte[] padded = new byte[rowBytes * height];
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(plane, y * width, padded, y * rowBytes, width);
+			}
+			plane = padded;
+		}
+		layer.copyPixelsFromBuffer(ByteBuffer.wrap(plane));
+		return layer;
+	}
+}
@@ -0,0 +1,211 @@
+package com.gatchi.notebooks;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The pixel work of PaletteImage, on plain arrays: splitting ARGB pixels
+ * into a coverage plane per ink color, and writing and reading planes
+ * in PaletteImage's layout.  Planes are a byte per pixel, row by row.
+ * Uses no Android classes, so that can be checked by a plain unit test.
+ */
+public class PalettePlanes {
+	// Pixels at least this opaque pick the palette; fainter ones are edges
+	private static final int SOLID_ALPHA = 128;
+	// Colors this close per channel are the same ink (rounding of unpremultiplying)
+	private static final int COLOR_TOLERANCE = 8;
+	// More distinct colors than this is not a sketch
+	private static final int MAX_CANDIDATES = 64;
+
+	private final int mWidth;
+	private final int mHeight;
+	private final int[] mColors;
+	private final byte[][] mPlanes;
+
+	public PalettePlanes(int width, int height, int[] colors, byte[][] planes) {
+		mWidth = width;
+		mHeight = height;
+		mColors = colors;
+		mPlanes = planes;
+	}
+
+	/**
+	 * Splits unpremultiplied ARGB pixels into coverage planes of their most used colors.
+	 * @param maxColors most planes to make; other colors go to the nearest of them
+	 * @return the planes, or null if the pixels have too many colors to be a sketch
+	 */
+	public static PalettePlanes split(int[] pixels, int width, int height, int maxColors) {
+		int[] candidates = new int[MAX_CANDIDATES];
+		int[] counts = new int[MAX_CANDIDATES];
+		int count = 0;
+		int faintest = 0;
+		for (int pixel : pixels) {
+			int alpha = pixel >>> 24;
+			if (alpha < SOLID_ALPHA) {
+				if (alpha > faintest >>> 24) {
+					faintest = pixel;
+				}
+				continue;
+			}
+			int index = find(candidates, count, pixel);
+			if (index < 0) {
+				if (count == MAX_CANDIDATES) {
+					return null;
+				}
+				candidates[count] = pixel & 0xffffff;
+				index = count++;
+			}
+			counts[index]++;
+		}
+		if (count == 0 && faintest != 0) {
+			candidates[count++] = faintest & 0xffffff;  // only edges of some stroke
+		}
+
+		// Most used first; there are few enough for insertion sort
+		for (int i = 1; i < count; i++) {
+			for (int j = i; j > 0 && counts[j] > counts[j - 1]; j--) {
+				swap(counts, j, j - 1);
+				swap(candidates, j, j - 1);
+			}
+		}
+		int colorCount = Math.min(count, maxColors);
+		byte[][] planes = new byte[colorCount][];
+		for (int i = 0; i < pixels.length; i++) {
+			int alpha = pixels[i] >>> 24;
+			if (alpha == 0) {
+				continue;
+			}
+			int index = nearest(candidates, colorCount, pixels[i]);
+			if (planes[index] == null) {
+				planes[index] = new byte[width * height];
+			}
+			planes[index][i] = (byte) alpha;
+		}
+
+		// Colors no pixel ended up in are left out
+		int planeCount = 0;
+		for (byte[] plane : planes) {
+			if (plane != null) {
+				planeCount++;
+			}
+		}
+		int[] colors = new int[planeCount];
+		byte[][] used = new byte[planeCount][];
+		for (int i = 0, plane = 0; i < colorCount; i++) {
+			if (planes[i] != null) {
+				colors[plane] = 0xff000000 | candidates[i];
+				used[plane++] = planes[i];
+			}
+		}
+		return new PalettePlanes(width, height, colors, used);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Returns the opaque color of each plane.
+	 */
+	public int[] getColors() {
+		return mColors;
+	}
+
+	/**
+	 * Returns the coverage planes, one per color.
+	 */
+	public byte[][] getPlanes() {
+		return mPlanes;
+	}
+
+	/**
+	 * Writes the planes in the layout of PaletteImage.
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(mWidth);
+		header.writeInt(mHeight);
+		header.writeByte(mColors.length);
+		for (int color : mColors) {
+			header.writeInt(color);
+		}
+		header.flush();
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DeflaterOutputStream data = new DeflaterOutputStream(out, deflater, 8192);
+		for (byte[] plane : mPlanes) {
+			data.write(plane, 0, mWidth * mHeight);
+		}
+		data.finish();
+		deflater.end();
+	}
+
+	/**
+	 * Reads planes written by write().
+	 * @throws IOException if the data can't be read or is damaged
+	 */
+	public static PalettePlanes read(InputStream in) throws IOException {
+		DataInputStream header = new DataInputStream(in);
+		int width = header.readInt();
+		int height = header.readInt();
+		int count = header.readUnsignedByte();
+		if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+			throw new IOException("Damaged palette image");
+		}
+		int[] colors = new int[count];
+		for (int i = 0; i < count; i++) {
+			colors[i] = header.readInt();
+		}
+
+		DataInputStream data = new DataInputStream(new InflaterInputStream(in));
+		byte[][] planes = new byte[count][width * height];
+		for (byte[] plane : planes) {
+			data.readFully(plane);
+		}
+		return new PalettePlanes(width, height, colors, planes);
+	}
+
+	private static int find(int[] colors, int count, int pixel) {
+		for (int i = 0; i < count; i++) {
+			int color = colors[i];
+			if (Math.abs(((color >> 16) & 0xff) - ((pixel >> 16) & 0xff)) <= COLOR_TOLERANCE
+					&& Math.abs(((color >> 8) & 0xff) - ((pixel >> 8) & 0xff)) <= COLOR_TOLERANCE
+					&& Math.abs((color & 0xff) - (pixel & 0xff)) <= COLOR_TOLERANCE) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int nearest(int[] colors, int count, int pixel) {
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			int red = ((colors[i] >> 16) & 0xff) - ((pixel >> 16) & 0xff);
+			int green = ((colors[i] >> 8) & 0xff) - ((pixel >> 8) & 0xff);
+			int blue = (colors[i] & 0xff) - (pixel & 0xff);
+			int distance = red * red + green * green + blue * blue;
+			if (distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int temp = array[i];
+		array[i] = array[j];
+		array[j] = temp;
+	}
+}
@@ -0,0 +1,45 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores images as PNG, as every version so far has.
+ * Images saved before codecs had an ID are PNG, so this one is ID 0.
+ */
+public class PngCodec implements ImageCodec {
+	@Override
+	public int getId() {
+		return 0;
+	}
+
+	@Override
+	public String getName() {
+		return "png";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public byte[] encode(Bitmap bitmap) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);  // (PNG ignores quality)
+		return stream.toByteArray();
+	}
+
+	@Override
+	public Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException {
+		Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+		if (bitmap == null && (options == null || !options.inJustDecodeBounds)) {
+			throw new IOException("Can't decode PNG");
+		}
+		return bitmap;
+	}
+}
@@ -0,0 +1,167 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores images as runs of equal pixels, deflated.
+ *
+ * Made for sketches: mostly transparent, with strokes in a few colors,
+ * so a row is usually a handful of runs.  Lossless, and decoding is a
+ * straight fill with no filtering to undo.
+ *
+ * Layout: magic "RL", version byte, width and height as big-endian ints,
+ * then deflated: for each row, runs of (length as LEB128 varint, color
+ * as big-endian ARGB int) covering the row exactly.
+ */
+public class RunLengthCodec implements ImageCodec {
+	private static final int MAGIC_1 = 'R';
+	private static final int MAGIC_2 = 'L';
+	private static final int VERSION = 1;
+
+	@Override
+	public int getId() {
+		return 2;
+	}
+
+	@Override
+	public String getName() {
+		return "rle+deflate";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public byte[] encode(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream header = new DataOutputStream(bytes);
+			header.writeByte(MAGIC_1);
+			header.writeByte(MAGIC_2);
+			header.writeByte(VERSION);
+			header.writeInt(width);
+			header.writeInt(height);
+
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 8192));
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				bitmap.getPixels(row, 0, width, 0, y, width, 1);
+				int x = 0;
+				while (x < width) {
+					int color = row[x];
+					int run = 1;
+					while (x + run < width && row[x + run] == color) {
+						run++;
+					}
+					writeVarint(out, run);
+					out.writeInt(color);
+					x += run;
+				}
+			}
+			out.close();
+			deflater.end();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);  // memory only, can't happen
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException {
+		DataInputStream header = new DataInputStream(in);
+		if (header.readUnsignedByte() != MAGIC_1 || header.readUnsignedByte() != MAGIC_2
+				|| header.readUnsignedByte() != VERSION) {
+			throw new IOException("Not a run-length image");
+		}
+		int width = header.readInt();
+		int height = header.readInt();
+		int sampleSize = 1;
+		if (options != null) {
+			options.outWidth = width;
+			options.outHeight = height;
+			if (options.inJustDecodeBounds) {
+				return null;
+			}
+			sampleSize = Math.max(1, options.inSampleSize);
+		}
+
+		// Keep every sampleSize-th row and column, like BitmapFactory would
+		int outWidth = (width + sampleSize - 1) / sampleSize;
+		int outHeight = (height + sampleSize - 1) / sampleSize;
+		// Every pixel gets written, so a bitmap to reuse needs no clearing
+		Bitmap bitmap = options != null ? options.inBitmap : null;
+		if (bitmap == null || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+				|| bitmap.getWidth() != outWidth || bitmap.getHeight() != outHeight) {
+			bitmap = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+		}
+		int[] row = new int[width];
+		int[] sampled = sampleSize == 1 ? row : new int[outWidth];
+
+		DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in), 8192));
+		for (int y = 0; y < height; y++) {
+			int x = 0;
+			while (x < width) {
+				int run = readVarint(data);
+				int color = data.readInt();
+				if (run <= 0 || x + run > width) {
+					throw new IOException("Damaged run-length image");
+				}
+				int end = x + run;
+				while (x < end) {
+					row[x++] = color;
+				}
+			}
+			if (y % sampleSize != 0) {
+				continue;
+			}
+			if (sampleSize != 1) {
+				for (int i = 0; i < outWidth; i++) {
+					sampled[i] = row[i * sampleSize];
+				}
+			}
+			bitmap.setPixels(sampled, 0, outWidth, 0, y / sampleSize, outWidth, 1);
+		}
+		return bitmap;
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
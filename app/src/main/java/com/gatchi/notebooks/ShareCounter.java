@@ -0,0 +1,51 @@
+package com.gatchi.notebooks;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Counts how many holders share each of a set of objects, for
+ * copy-on-write: an object held by one holder alone may be changed in
+ * place, and the last holder to let go of it may reuse it.
+ *
+ * Objects not counted are held by one holder.  They're kept weakly, so a
+ * holder dropped without letting go doesn't keep them alive; objects
+ * must not override equals().  Uses no Android classes, so that can be
+ * checked by a plain unit test.  Thread-safe.
+ */
+public class ShareCounter<T> {
+	// Holders of each shared object besides the first
+	private final Map<T, Integer> mOthers = new WeakHashMap<>();
+
+	/**
+	 * Adds a holder of an object, which another one already holds.
+	 */
+	public synchronized void share(T object) {
+		Integer others = mOthers.get(object);
+		mOthers.put(object, others == null ? 1 : others + 1);
+	}
+
+	/**
+	 * Returns true if more than one holder has the object.
+	 */
+	public synchronized boolean isShared(T object) {
+		return mOthers.containsKey(object);
+	}
+
+	/**
+	 * Lets go of an object for one of its holders.
+	 * @return true if that was the last one, which may reuse it
+	 */
+	public synchronized boolean release(T object) {
+		Integer others = mOthers.get(object);
+		if (others == null) {
+			return true;
+		}
+		if (others == 1) {
+			mOthers.remove(object);
+		} else {
+			mOthers.put(object, others - 1);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,73 @@
+package com.gatchi.notebooks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps items nobody uses anymore under a key naming their size, so they
+ * can be handed out again for that size only, up to a total number of
+ * bytes; anything put in past that is let go.
+ *
+ * The bookkeeping of BitmapPool.  Uses no Android classes, so that can
+ * be checked by a plain unit test.  Not thread safe.
+ */
+public class SizedPool<T> {
+	private final int mMaxBytes;
+	private final Map<String, List<T>> mItems = new HashMap<>();
+	private final Map<String, Integer> mItemBytes = new HashMap<>();
+	private int mBytes;
+
+	public SizedPool(int maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Keeps an item of the given size, if there is room for it.
+	 * @param key names the size; items of one key must be the same number of bytes
+	 * @return false if it was let go
+	 */
+	public boolean put(String key, T item, int bytes) {
+		if (mBytes + bytes > mMaxBytes) {
+			return false;
+		}
+		List<T> items = mItems.get(key);
+		if (items == null) {
+			items = new ArrayList<>();
+			mItems.put(key, items);
+			mItemBytes.put(key, bytes);
+		}
+		items.add(item);
+		mBytes += bytes;
+		return true;
+	}
+
+	/**
+	 * Takes the item kept last under the given key out of the pool, or returns null.
+	 */
+	public T get(String key) {
+		List<T> items = mItems.get(key);
+		if (items == null || items.isEmpty()) {
+			return null;
+		}
+		mBytes -= mItemBytes.get(key);
+		return items.remove(items.size() - 1);
+	}
+
+	/**
+	 * Returns the number of bytes the items kept take up.
+	 */
+	public int getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * Lets go of every item.
+	 */
+	public void clear() {
+		mItems.clear();
+		mItemBytes.clear();
+		mBytes = 0;
+	}
+}
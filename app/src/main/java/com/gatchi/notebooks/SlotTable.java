@@ -0,0 +1,107 @@
+package com.gatchi.notebooks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out the slots of a TileStore and counts the references to each,
+ * so drawings copied from one another can share them and a slot no
+ * drawing has is reused.  Remembers slots whose writing failed, until
+ * they're reused.
+ *
+ * The bookkeeping of TileStore.  Uses no Android classes, so that can be
+ * checked by a plain unit test.  Not thread safe.
+ */
+public class SlotTable {
+	// References to each slot; 0 for a free one
+	private int[] mRefs;
+	// Slots whose writing failed
+	private boolean[] mBroken;
+	private int mSlotCount;
+	private final List<Integer> mFreeSlots = new ArrayList<>();
+	private int mSlotsInUse;
+
+	/**
+	 * @param capacity slots to make room for at first; more are made as needed
+	 */
+	public SlotTable(int capacity) {
+		mRefs = new int[capacity];
+		mBroken = new boolean[capacity];
+	}
+
+	/**
+	 * Takes a slot with one reference, reusing a free one if there is one.
+	 */
+	public int allocate() {
+		int slot;
+		if (!mFreeSlots.isEmpty()) {
+			slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+		} else {
+			slot = mSlotCount++;
+			if (slot == mRefs.length) {
+				int[] bigger = new int[mRefs.length * 2];
+				System.arraycopy(mRefs, 0, bigger, 0, mRefs.length);
+				mRefs = bigger;
+				boolean[] broken = new boolean[mRefs.length];
+				System.arraycopy(mBroken, 0, broken, 0, mBroken.length);
+				mBroken = broken;
+			}
+		}
+		mRefs[slot] = 1;
+		mBroken[slot] = false;
+		mSlotsInUse++;
+		return slot;
+	}
+
+	/**
+	 * Takes another reference to a slot.
+	 */
+	public void retain(int slot) {
+		mRefs[slot]++;
+	}
+
+	/**
+	 * Drops a reference to a slot.
+	 * @return true if that was the last one, freeing the slot
+	 */
+	public boolean release(int slot) {
+		if (--mRefs[slot] != 0) {
+			return false;
+		}
+		mFreeSlots.add(slot);
+		mSlotsInUse--;
+		return true;
+	}
+
+	/**
+	 * Returns true if more than one reference to a slot is held.
+	 */
+	public boolean isShared(int slot) {
+		return mRefs[slot] > 1;
+	}
+
+	/**
+	 * Marks a slot as failed to be written, so reads of it fail.
+	 */
+	public void setBroken(int slot) {
+		mBroken[slot] = true;
+	}
+
+	public boolean isBroken(int slot) {
+		return mBroken[slot];
+	}
+
+	/**
+	 * Returns the number of slots taken.
+	 */
+	public int getSlotsInUse() {
+		return mSlotsInUse;
+	}
+
+	/**
+	 * Returns the number of slots ever made, taken or free.
+	 */
+	public int getSlotCount() {
+		return mSlotCount;
+	}
+}
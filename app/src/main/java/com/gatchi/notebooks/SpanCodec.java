@@ -0,0 +1,267 @@
+package com.gatchi.notebooks;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+/**
+ * Converts formatted note text to and from a compact binary form.
+ * Should not be instantiated.
+ *
+ * Layout (version 1), numbers as unsigned LEB128 varints unless noted:
+ * - version byte
+ * - text length in chars, then each char in 1 to 3 bytes (UTF-8 style,
+ *   surrogates encoded separately so any Java string round-trips)
+ * - span count, then per span: type byte, start, length, flags, and
+ *   the style (STYLE) or a 4-byte big-endian color (FOREGROUND)
+ *
+ * Only the spans the editor can create are kept; others are dropped.
+ */
+public final class SpanCodec {
+	public static final int VERSION = 1;
+
+	private static final int TYPE_STYLE = 1;
+	private static final int TYPE_UNDERLINE = 2;
+	private static final int TYPE_FOREGROUND = 3;
+
+	private SpanCodec() throws InstantiationException {
+		throw new InstantiationException("This class is not for instantiation");
+	}
+
+	/** Converts formatted text to bytes */
+	public static byte[] encode(Spanned text) {
+		int length = text.length();
+		Object[] spans = text.getSpans(0, length, Object.class);
+		Writer out = new Writer(16 + length + spans.length * 8);
+
+		out.writeByte(VERSION);
+		out.writeVarint(length);
+		for (int i = 0; i < length; i++) {
+			out.writeChar(text.charAt(i));
+		}
+
+		int countPosition = out.reserveVarint();
+		int count = 0;
+		for (Object span : spans) {
+			int type;
+			if (span instanceof StyleSpan) {
+				type = TYPE_STYLE;
+			} else if (span instanceof UnderlineSpan) {
+				type = TYPE_UNDERLINE;
+			} else if (span instanceof ForegroundColorSpan) {
+				type = TYPE_FOREGROUND;
+			} else {
+				continue;  // selection, composing text and such
+			}
+			int start = text.getSpanStart(span);
+			int end = text.getSpanEnd(span);
+			out.writeByte(type);
+			out.writeVarint(start);
+			out.writeVarint(end - start);
+			out.writeVarint(text.getSpanFlags(span));
+			if (type == TYPE_STYLE) {
+				out.writeVarint(((StyleSpan) span).getStyle());
+			} else if (type == TYPE_FOREGROUND) {
+				out.writeInt(((ForegroundColorSpan) span).getForegroundColor());
+			}
+			count++;
+		}
+		out.patchVarint(countPosition, count);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Converts bytes made by encode() back to formatted text.
+	 * @throws IllegalArgumentException if the data is of an unknown version
+	 */
+	public static SpannableStringBuilder decode(byte[] data) {
+		Reader in = new Reader(data);
+		int version = in.readByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unknown span format version " + version);
+		}
+
+		char[] chars = new char[in.readVarint()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.readChar();
+		}
+		SpannableStringBuilder text = new SpannableStringBuilder(new CharArraySequence(chars));
+
+		int count = in.readVarint();
+		for (int i = 0; i < count; i++) {
+			int type = in.readByte();
+			int start = in.readVarint();
+			int end = start + in.readVarint();
+			int flags = in.readVarint();
+			Object span;
+			if (type == TYPE_STYLE) {
+				span = new StyleSpan(in.readVarint());
+			} else if (type == TYPE_UNDERLINE) {
+				span = new UnderlineSpan();
+			} else if (type == TYPE_FOREGROUND) {
+				span = new ForegroundColorSpan(in.readInt());
+			} else {
+				throw new IllegalArgumentException("Unknown span type " + type);
+			}
+			text.setSpan(span, start, end, flags);
+		}
+		return text;
+	}
+
+	/**
+	 * Growable byte buffer with the few writes the format needs.
+	 * Also used by StrokeCodec.
+	 */
+	static class Writer {
+		// A reserved varint is padded to this many bytes so it can be patched in place
+		private static final int RESERVED_VARINT_SIZE = 5;
+
+		private byte[] mBuffer;
+		private int mSize;
+
+		Writer(int capacity) {
+			mBuffer = new byte[capacity];
+		}
+
+		private void ensure(int extra) {
+			if (mSize + extra > mBuffer.length) {
+				byte[] bigger = new byte[Math.max(mBuffer.length * 2, mSize + extra)];
+				System.arraycopy(mBuffer, 0, bigger, 0, mSize);
+				mBuffer = bigger;
+			}
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			mBuffer[mSize++] = (byte) b;
+		}
+
+		void writeVarint(int value) {
+			ensure(5);
+			while ((value & ~0x7f) != 0) {
+				mBuffer[mSize++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			mBuffer[mSize++] = (byte) value;
+		}
+
+		int reserveVarint() {
+			ensure(RESERVED_VARINT_SIZE);
+			int position = mSize;
+			mSize += RESERVED_VARINT_SIZE;
+			return position;
+		}
+
+		void patchVarint(int position, int value) {
+			for (int i = 0; i < RESERVED_VARINT_SIZE - 1; i++) {
+				mBuffer[position + i] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			mBuffer[position + RESERVED_VARINT_SIZE - 1] = (byte) (value & 0x7f);
+		}
+
+		void writeInt(int value) {
+			ensure(4);
+			mBuffer[mSize++] = (byte) (value >>> 24);
+			mBuffer[mSize++] = (byte) (value >>> 16);
+			mBuffer[mSize++] = (byte) (value >>> 8);
+			mBuffer[mSize++] = (byte) value;
+		}
+
+		void writeChar(char c) {
+			ensure(3);
+			if (c < 0x80) {
+				mBuffer[mSize++] = (byte) c;
+			} else if (c < 0x800) {
+				mBuffer[mSize++] = (byte) (0xc0 | (c >> 6));
+				mBuffer[mSize++] = (byte) (0x80 | (c & 0x3f));
+			} else {
+				mBuffer[mSize++] = (byte) (0xe0 | (c >> 12));
+				mBuffer[mSize++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				mBuffer[mSize++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[mSize];
+			System.arraycopy(mBuffer, 0, result, 0, mSize);
+			return result;
+		}
+	}
+
+	/**
+	 * Reads the writes of Writer back, in the same order.
+	 */
+	static class Reader {
+		private final byte[] mData;
+		private int mPosition;
+
+		Reader(byte[] data) {
+			mData = data;
+		}
+
+		int readByte() {
+			return mData[mPosition++] & 0xff;
+		}
+
+		int readVarint() {
+			int value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = mData[mPosition++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		int readInt() {
+			return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		}
+
+		char readChar() {
+			int b = readByte();
+			if (b < 0x80) {
+				return (char) b;
+			} else if (b < 0xe0) {
+				return (char) (((b & 0x1f) << 6) | (readByte() & 0x3f));
+			} else {
+				return (char) (((b & 0x0f) << 12) | ((readByte() & 0x3f) << 6) | (readByte() & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Lets SpannableStringBuilder copy decoded chars without making a String first.
+	 */
+	private static class CharArraySequence implements CharSequence {
+		private final char[] mChars;
+
+		CharArraySequence(char[] chars) {
+			mChars = chars;
+		}
+
+		@Override
+		public int length() {
+			return mChars.length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return mChars[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(mChars, start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(mChars);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+/**
+ * One stroke of a drawing, as drawn: the points the finger went through,
+ * and the brush.  Kept so drawings can be stored as strokes (see
+ * StrokeCodec) and drawn again at any size.
+ *
+ * Immutable.
+ */
+public class Stroke {
+	private final float[] mPoints;
+	private final int mColor;
+	private final float mWidth;
+	private final boolean mErase;
+
+	/**
+	 * @param points x and y of each point, after each other; copied
+	 * @param pointCount number of floats of points used
+	 */
+	public Stroke(float[] points, int pointCount, int color, float width, boolean erase) {
+		mPoints = new float[pointCount & ~1];
+		System.arraycopy(points, 0, mPoints, 0, mPoints.length);
+		mColor = color;
+		mWidth = width;
+		mErase = erase;
+	}
+
+	/**
+	 * Returns the number of floats in getPoint(); twice the number of points.
+	 */
+	public int getPointCount() {
+		return mPoints.length;
+	}
+
+	/**
+	 * Returns x (even index) or y (odd index) of a point.
+	 */
+	public float getPoint(int index) {
+		return mPoints[index];
+	}
+
+	public int getColor() {
+		return mColor;
+	}
+
+	public float getWidth() {
+		return mWidth;
+	}
+
+	public boolean isErase() {
+		return mErase;
+	}
+
+	/**
+	 * Draws the stroke onto a drawing the way DrawingView does.
+	 */
+	public void drawOn(TiledCanvas drawing) {
+		drawing.drawPath(toPath(), toPaint(), mErase);
+	}
+
+	/**
+	 * Returns the line through the points, smoothed the way DrawingView
+	 * draws it: straight to the middle of the first two points, then
+	 * curves from middle to middle bent towards the points between, then
+	 * straight to the last point.
+	 */
+	public Path toPath() {
+		Path path = new Path();
+		int count = mPoints.length;
+		if (count < 4) {
+			return path;
+		}
+		path.moveTo(mPoints[0], mPoints[1]);
+		path.lineTo((mPoints[0] + mPoints[2]) / 2, (mPoints[1] + mPoints[3]) / 2);
+		for (int i = 4; i < count; i += 2) {
+			path.quadTo(mPoints[i - 2], mPoints[i - 1],
+					(mPoints[i - 2] + mPoints[i]) / 2, (mPoints[i - 1] + mPoints[i + 1]) / 2);
+		}
+		path.lineTo(mPoints[count - 2], mPoints[count - 1]);
+		return path;
+	}
+
+	/**
+	 * Returns a paint for the brush, as set up by DrawingView.
+	 */
+	public Paint toPaint() {
+		Paint paint = new Paint();
+		paint.setAntiAlias(true);
+		paint.setStyle(Paint.Style.STROKE);
+		paint.setStrokeJoin(Paint.Join.ROUND);
+		paint.setStrokeCap(Paint.Cap.ROUND);
+		paint.setColor(mColor);
+		paint.setStrokeWidth(mWidth);
+		if (mErase) {
+			paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+		}
+		return paint;
+	}
+}
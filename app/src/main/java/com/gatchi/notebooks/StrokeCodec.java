@@ -0,0 +1,130 @@
+package com.gatchi.notebooks;
+
+import java.util.List;
+
+/**
+ * Converts the strokes of a drawing to and from a compact binary form.
+ * Should not be instantiated.
+ *
+ * Layout (version 1), numbers as unsigned LEB128 varints unless noted:
+ * - version byte
+ * - width and height of the drawing in pixels
+ * - stroke count, then per stroke: 4-byte big-endian color, width in
+ *   1/QUANTUM pixels, flags (FLAG_ERASE), point count, then each point's
+ *   x and y in 1/QUANTUM pixels as zigzag varints, relative to the point
+ *   before (the first to 0, 0)
+ *
+ * Points a finger makes are close together, so most take two bytes.
+ * Coordinates are rounded to 1/QUANTUM pixels, well below what shows.
+ */
+public final class StrokeCodec {
+	public static final int VERSION = 1;
+
+	private static final int QUANTUM = 8;
+	private static final int FLAG_ERASE = 1;
+
+	private StrokeCodec() throws InstantiationException {
+		throw new InstantiationException("This class is not for instantiation");
+	}
+
+	/** Converts the strokes of a drawing of given size to bytes */
+	public static byte[] encode(int width, int height, List<Stroke> strokes) {
+		SpanCodec.Writer out = new SpanCodec.Writer(16 + strokes.size() * 64);
+		out.writeByte(VERSION);
+		out.writeVarint(width);
+		out.writeVarint(height);
+		out.writeVarint(strokes.size());
+		for (Stroke stroke : strokes) {
+			out.writeInt(stroke.getColor());
+			out.writeVarint(quantize(stroke.getWidth()));
+			out.writeVarint(stroke.isErase() ? FLAG_ERASE : 0);
+			int count = stroke.getPointCount();
+			out.writeVarint(count / 2);
+			int lastX = 0;
+			int lastY = 0;
+			for (int i = 0; i < count; i += 2) {
+				int x = quantize(stroke.getPoint(i));
+				int y = quantize(stroke.getPoint(i + 1));
+				writeZigzag(out, x - lastX);
+				writeZigzag(out, y - lastY);
+				lastX = x;
+				lastY = y;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Converts bytes made by encode() back to strokes, and draws them.
+	 * @param strokes list to add the strokes to
+	 * @return the strokes drawn on a drawing of the size they were made on
+	 * @throws IllegalArgumentException if the data is of an unknown version
+	 */
+	public static TiledCanvas decode(byte[] data, List<Stroke> strokes) {
+		return decode(data, strokes, null, 0);
+	}
+
+	/**
+	 * Like decode(byte[], List), paging the drawing out to a store while
+	 * drawing it, so it never takes more memory than maxResidentBytes;
+	 * see TiledCanvas.setPaging().
+	 * @param store may be null, for no paging
+	 */
+	public static TiledCanvas decode(byte[] data, List<Stroke> strokes, TileStore store, int maxResidentBytes) {
+		SpanCodec.Reader in = new SpanCodec.Reader(data);
+		int version = in.readByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unknown stroke format version " + version);
+		}
+		TiledCanvas drawing = new TiledCanvas(in.readVarint(), in.readVarint());
+		if (store != null) {
+			drawing.setPaging(store, maxResidentBytes, null);
+		}
+		try {
+			drawStrokes(in, drawing, strokes);
+		} catch (RuntimeException e) {
+			drawing.clear();  // gives back what was paged out
+			throw e;
+		}
+		return drawing;
+	}
+
+	private static void drawStrokes(SpanCodec.Reader in, TiledCanvas drawing, List<Stroke> strokes) {
+
+		int count = in.readVarint();
+		float[] points = new float[64];
+		for (int i = 0; i < count; i++) {
+			int color = in.readInt();
+			float width = (float) in.readVarint() / QUANTUM;
+			boolean erase = (in.readVarint() & FLAG_ERASE) != 0;
+			int pointCount = in.readVarint() * 2;
+			if (points.length < pointCount) {
+				points = new float[pointCount];
+			}
+			int x = 0;
+			int y = 0;
+			for (int j = 0; j < pointCount; j += 2) {
+				x += readZigzag(in);
+				y += readZigzag(in);
+				points[j] = (float) x / QUANTUM;
+				points[j + 1] = (float) y / QUANTUM;
+			}
+			Stroke stroke = new Stroke(points, pointCount, color, width, erase);
+			stroke.drawOn(drawing);
+			strokes.add(stroke);
+		}
+	}
+
+	private static int quantize(float value) {
+		return Math.round(value * QUANTUM);
+	}
+
+	private static void writeZigzag(SpanCodec.Writer out, int value) {
+		out.writeVarint((value << 1) ^ (value >> 31));
+	}
+
+	private static int readZigzag(SpanCodec.Reader in) {
+		int value = in.readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,132 @@
+package com.gatchi.notebooks;
+
+/**
+ * Collects the touch samples of the stroke being drawn and turns them into
+ * smoothed segments, the way Stroke.toPath() draws them: straight to the
+ * middle of the first two points, then curves from middle to middle bent
+ * towards the points between, then straight to the last point.
+ *
+ * Samples are queued as they come and drawn in a batch, once per frame.
+ * Both buffers only grow by doubling, so once they fit a stroke nothing
+ * is allocated per sample.  Uses no Android classes, so that can be
+ * checked by a plain unit test.
+ */
+public class StrokeInput {
+	/**
+	 * Gets the segments to draw, in drawing coordinates.
+	 */
+	public interface SegmentSink {
+		void line(float startX, float startY, float stopX, float stopY);
+
+		void quad(float startX, float startY, float controlX, float controlY, float stopX, float stopY);
+	}
+
+	// Points of the stroke, x and y after each other
+	private float[] mPoints = new float[256];
+	private int mPointCount;
+	// Samples not drawn yet, x and y after each other
+	private float[] mPending = new float[256];
+	private int mPendingCount;
+
+	/**
+	 * Starts a new stroke at the given point, dropping the previous one.
+	 */
+	public void begin(float x, float y) {
+		mPointCount = 0;
+		mPendingCount = 0;
+		addPoint(x, y);
+	}
+
+	/**
+	 * Makes room for the given number of samples to be queued, so that
+	 * queueing an event's samples grows the buffer at most once.
+	 */
+	public void ensurePendingCapacity(int samples) {
+		int needed = mPendingCount + samples * 2;
+		if (needed > mPending.length) {
+			float[] bigger = new float[Math.max(mPending.length * 2, needed)];
+			System.arraycopy(mPending, 0, bigger, 0, mPendingCount);
+			mPending = bigger;
+		}
+	}
+
+	/**
+	 * Queues a sample to be drawn by drawPending().
+	 */
+	public void queue(float x, float y) {
+		ensurePendingCapacity(1);
+		mPending[mPendingCount++] = x;
+		mPending[mPendingCount++] = y;
+	}
+
+	/**
+	 * Adds the queued samples to the stroke and gives the segments they
+	 * complete to the sink.  Samples that didn't move are skipped.
+	 */
+	public void drawPending(SegmentSink sink) {
+		for (int i = 0; i < mPendingCount; i += 2) {
+			float x = mPending[i];
+			float y = mPending[i + 1];
+			if (x == mPoints[mPointCount - 2] && y == mPoints[mPointCount - 1]) {
+				continue;  // didn't move
+			}
+			addPoint(x, y);
+			drawSegment(sink);
+		}
+		mPendingCount = 0;
+	}
+
+	/**
+	 * Gives the sink the straight end of the stroke, from the middle of the
+	 * last two points to the last one.  Call after the last drawPending().
+	 */
+	public void drawEnd(SegmentSink sink) {
+		float[] p = mPoints;
+		int n = mPointCount;
+		if (n < 4) {
+			return;
+		}
+		sink.line((p[n - 4] + p[n - 2]) / 2, (p[n - 3] + p[n - 1]) / 2, p[n - 2], p[n - 1]);
+	}
+
+	/**
+	 * Returns the points of the stroke, x and y after each other; only
+	 * valid until the next sample is drawn or stroke begun.
+	 */
+	public float[] getPoints() {
+		return mPoints;
+	}
+
+	/**
+	 * Returns the number of floats of getPoints() used.
+	 */
+	public int getPointCount() {
+		return mPointCount;
+	}
+
+	/**
+	 * Gives the sink the segment the latest point completes.  The first
+	 * segment is straight from the first point.
+	 */
+	private void drawSegment(SegmentSink sink) {
+		float[] p = mPoints;
+		int n = mPointCount;
+		float midX = (p[n - 4] + p[n - 2]) / 2;
+		float midY = (p[n - 3] + p[n - 1]) / 2;
+		if (n == 4) {
+			sink.line(p[0], p[1], midX, midY);
+		} else {
+			sink.quad((p[n - 6] + p[n - 4]) / 2, (p[n - 5] + p[n - 3]) / 2, p[n - 4], p[n - 3], midX, midY);
+		}
+	}
+
+	private void addPoint(float x, float y) {
+		if (mPointCount + 2 > mPoints.length) {
+			float[] bigger = new float[mPoints.length * 2];
+			System.arraycopy(mPoints, 0, bigger, 0, mPointCount);
+			mPoints = bigger;
+		}
+		mPoints[mPointCount++] = x;
+		mPoints[mPointCount++] = y;
+	}
+}
@@ -0,0 +1,149 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.widget.ImageView;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Shows sketch thumbnails in list rows.
+ *
+ * Thumbnails are read and decoded on background threads and kept in a
+ * small LRU cache.  Bitmaps dropped from the cache go to a BitmapPool and
+ * later decodes reuse their memory.  When a row view is reused for
+ * another note, the decode started for its old note is cancelled.
+ *
+ * All methods must be called on the main thread.
+ */
+public class ThumbnailLoader {
+	private static final int THREADS = 2;
+	// Enough for a few screens of rows
+	private static final int CACHE_ENTRIES = 48;
+
+	private final NoteRepository mRepository;
+	private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final BitmapPool mPool;
+	private final LruCache<String, Bitmap> mCache;
+
+	// What each view shows or is waiting for
+	private final Map<ImageView, String> mViewKeys = new HashMap<>();
+	private final Map<ImageView, Future<?>> mLoads = new HashMap<>();
+
+	public ThumbnailLoader(NoteRepository repository) {
+		mRepository = repository;
+		int size = DatabaseHandler.THUMBNAIL_SIZE;
+		int bytes = size * size * 2;  // RGB_565
+		mPool = new BitmapPool(bytes * CACHE_ENTRIES / 4);
+		mCache = new LruCache<String, Bitmap>(CACHE_ENTRIES) {
+			@Override
+			protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+				// A bitmap still on screen can't be decoded over
+				if (evicted && !mViewKeys.containsValue(key)) {
+					mPool.put(oldValue);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Key of a note's thumbnail; changes whenever the note is saved, so
+	 * an outdated thumbnail is never found.
+	 */
+	private static String key(NoteSummary note) {
+		return note.getId() + ":" + note.getUpdatedAt();
+	}
+
+	/**
+	 * Shows the thumbnail of a note in a view, loading it if needed.
+	 * Whatever the view was loading before is cancelled.
+	 */
+	public void load(final NoteSummary note, final ImageView view) {
+		final String key = key(note);
+		if (key.equals(mViewKeys.get(view))) {
+			return;  // already showing or loading it
+		}
+		cancel(view);
+		mViewKeys.put(view, key);
+
+		Bitmap cached = mCache.get(key);
+		if (cached != null) {
+			view.setImageBitmap(cached);
+			return;
+		}
+
+		mLoads.put(view, mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (Thread.interrupted()) {
+					return;
+				}
+				final Bitmap bitmap = decode(mRepository.getThumbnail(note.getId()));
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (bitmap == null) {
+							return;
+						}
+						mCache.put(key, bitmap);
+						if (key.equals(mViewKeys.get(view))) {
+							mLoads.remove(view);
+							view.setImageBitmap(bitmap);
+						}
+					}
+				});
+			}
+		}));
+	}
+
+	/**
+	 * Stops loading into a view and clears it.
+	 */
+	public void cancel(ImageView view) {
+		Future<?> load = mLoads.remove(view);
+		if (load != null) {
+			load.cancel(true);
+		}
+		// Once forgotten here its bitmap may be pooled, so it mustn't stay on screen
+		mViewKeys.remove(view);
+		view.setImageDrawable(null);
+	}
+
+	/**
+	 * Decodes a stored thumbnail, into a pooled bitmap if one is free.
+	 */
+	private Bitmap decode(byte[] data) {
+		if (data == null) {
+			return null;
+		}
+		int size = DatabaseHandler.THUMBNAIL_SIZE;
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		mPool.prepare(options, size, size, Bitmap.Config.RGB_565);
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		} catch (IllegalArgumentException e) {
+			// Didn't fit the pooled bitmap after all
+			options.inBitmap = null;
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		}
+	}
+
+	/**
+	 * Stops loading and drops every thumbnail. The loader can't be used afterwards.
+	 */
+	public void close() {
+		mExecutor.shutdownNow();
+		mViewKeys.clear();
+		mLoads.clear();
+		mCache.evictAll();
+		mPool.clear();
+	}
+}
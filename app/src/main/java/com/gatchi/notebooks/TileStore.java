@@ -0,0 +1,275 @@
+package com.gatchi.notebooks;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Holds drawing tiles paged out of memory, in an app-private file that
+ * is memory-mapped a region at a time, so they take no heap; see
+ * TiledCanvas.setPaging().
+ *
+ * The file is a row of slots, one tile's raw pixels each.  A slot is
+ * written once and never changed, so drawings copied from one another
+ * share slots, counted by retain() and release(); a tile paged out again
+ * gets a new slot.  All reading and writing happens in order on one I/O
+ * thread, so a read sees every write queued before it and the UI thread
+ * never waits for the disk unless it asks to (readNow()).
+ *
+ * The file is started afresh in each process, on the I/O thread the
+ * first time it's needed, so making the store touches no disk.  A
+ * drawing that is let go of must give its slots back (TiledCanvas.clear()
+ * or releasePaged()); otherwise they stay taken until the process ends.
+ * A slot that couldn't be written fails to be read, rather than coming
+ * back blank.
+ *
+ * Page-ins and page-outs are counted and timed as "pageIn" and "pageOut"
+ * by getLatencyRecorder().  Thread-safe.
+ */
+public class TileStore {
+	private static final String TAG = "TileStore";
+	private static final String FILE_NAME = "tiles.map";
+	private static final int SLOT_BYTES = TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE * 4;
+	// Slots mapped at a time; 8 MB
+	private static final int REGION_SLOTS = 32;
+
+	private static TileStore sInstance;
+
+	private final Context mContext;
+	// Opened by getSlot()
+	private RandomAccessFile mFile;
+	private final List<MappedByteBuffer> mRegions = new ArrayList<>();
+	private final ExecutorService mIo = Executors.newSingleThreadExecutor();
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final LatencyRecorder mLatency = new LatencyRecorder(TAG);
+
+	// Slots taken and their references; guarded by this
+	private final SlotTable mSlots = new SlotTable(REGION_SLOTS);
+
+	// Counters, for tuning
+	private long mPageIns;
+	private long mPageOuts;
+
+	/**
+	 * Gets told when a tile asked for by readLater() has been read.
+	 * Called on the main thread.
+	 */
+	public interface OnReadListener {
+		/**
+		 * @param tile the tile's pixels in a tile of its own, or null if it couldn't be read
+		 */
+		void onRead(Bitmap tile);
+	}
+
+	private TileStore(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	/**
+	 * Returns the store of this process, making it if need be.  Cheap
+	 * enough for the UI thread.
+	 */
+	public static synchronized TileStore getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new TileStore(context);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Queues a tile to be written to a new slot, taken with one reference.
+	 * The tile must not change until it's written; after that it's handed
+	 * to the tile pool if recycle is true.
+	 * @return the slot
+	 */
+	public int write(final Bitmap tile, final boolean recycle) {
+		final int slot = allocate();
+		mIo.execute(new Runnable() {
+			@Override
+			public void run() {
+				long start = LatencyRecorder.start();
+				try {
+					tile.copyPixelsToBuffer(getSlot(slot));
+				} catch (IOException | RuntimeException e) {
+					Log.e(TAG, "Can't write slot " + slot, e);
+					synchronized (TileStore.this) {
+						mSlots.setBroken(slot);  // reads of it fail
+					}
+				}
+				mLatency.record("pageOut", start);
+				synchronized (TileStore.this) {
+					mPageOuts++;
+				}
+				if (recycle) {
+					TiledCanvas.recycleTile(tile);
+				}
+			}
+		});
+		return slot;
+	}
+
+	/**
+	 * Reads a slot in the background into a tile of its own.
+	 */
+	public void readLater(final int slot, final OnReadListener listener) {
+		final Future<Bitmap> read = read(slot);
+		mIo.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap result = null;
+				try {
+					result = get(read);
+				} catch (IOException e) {
+					Log.e(TAG, "Can't read slot " + slot, e);
+				}
+				final Bitmap tile = result;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						listener.onRead(tile);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Reads a slot into a tile of its own, waiting for it.  For threads
+	 * other than the UI one, and for drawing on tiles that are paged out.
+	 * @throws IOException if the slot couldn't be written or read
+	 */
+	public Bitmap readNow(int slot) throws IOException {
+		return get(read(slot));
+	}
+
+	/**
+	 * Takes another reference to a slot, for a drawing copied from one that has it.
+	 */
+	public synchronized void retain(int slot) {
+		mSlots.retain(slot);
+	}
+
+	/**
+	 * Drops a reference to a slot; one no drawing has is reused.
+	 */
+	public synchronized void release(int slot) {
+		mSlots.release(slot);
+	}
+
+	/**
+	 * Returns true if more than one drawing has a slot.
+	 */
+	public synchronized boolean isShared(int slot) {
+		return mSlots.isShared(slot);
+	}
+
+	/**
+	 * Returns the number of tiles stored.
+	 */
+	public synchronized int getSlotsInUse() {
+		return mSlots.getSlotsInUse();
+	}
+
+	/**
+	 * Returns the size of the file, all of which is mapped.
+	 */
+	public synchronized long getMappedBytes() {
+		return (long) mRegions.size() * REGION_SLOTS * SLOT_BYTES;
+	}
+
+	/**
+	 * Returns the timings of page-ins ("pageIn") and page-outs ("pageOut").
+	 */
+	public LatencyRecorder getLatencyRecorder() {
+		return mLatency;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TileStore slots=" + mSlots.getSlotsInUse() + "/" + mSlots.getSlotCount() + " mapped=" + getMappedBytes()
+				+ " pageIns=" + mPageIns + " pageOuts=" + mPageOuts;
+	}
+
+	private synchronized int allocate() {
+		return mSlots.allocate();
+	}
+
+	private Future<Bitmap> read(final int slot) {
+		return mIo.submit(new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() throws IOException {
+				synchronized (TileStore.this) {
+					if (mSlots.isBroken(slot)) {
+						throw new IOException("Slot " + slot + " couldn't be written");
+					}
+				}
+				long start = LatencyRecorder.start();
+				Bitmap tile = TiledCanvas.obtainTile(false);
+				tile.copyPixelsFromBuffer(getSlot(slot));
+				mLatency.record("pageIn", start);
+				synchronized (TileStore.this) {
+					mPageIns++;
+				}
+				return tile;
+			}
+		});
+	}
+
+	private static Bitmap get(Future<Bitmap> read) throws IOException {
+		try {
+			return read.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException("Can't read tile", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns a buffer over a slot, opening the file and mapping the
+	 * slot's region first if need be.
+	 * Only called on the I/O thread.
+	 */
+	private ByteBuffer getSlot(int slot) throws IOException {
+		int region = slot / REGION_SLOTS;
+		MappedByteBuffer mapped;
+		synchronized (this) {
+			if (mFile == null) {
+				File file = new File(mContext.getCacheDir(), FILE_NAME);
+				if (file.exists() && !file.delete()) {
+					throw new IOException("Can't start over " + file);
+				}
+				mFile = new RandomAccessFile(file, "rw");
+			}
+			while (mRegions.size() <= region) {
+				long offset = (long) mRegions.size() * REGION_SLOTS * SLOT_BYTES;
+				mRegions.add(mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, offset,
+						(long) REGION_SLOTS * SLOT_BYTES));
+			}
+			mapped = mRegions.get(region);
+		}
+		ByteBuffer buffer = mapped.duplicate();
+		int offset = (slot % REGION_SLOTS) * SLOT_BYTES;
+		buffer.position(offset);
+		buffer.limit(offset + SLOT_BYTES);
+		return buffer;
+	}
+}
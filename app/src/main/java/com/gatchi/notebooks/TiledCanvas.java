@@ -0,0 +1,987 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Looper;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A drawing kept as square tiles, of which only those with something on
+ * them exist.
+ *
+ * A blank drawing holds no pixels at all, and one with a few strokes
+ * holds only the tiles they cross, so memory and storage follow how much
+ * is drawn rather than the size of the screen.  Tiles are ARGB_8888 and
+ * TILE_SIZE pixels square; those on the right and bottom edges may reach
+ * past the drawing, but nothing is ever drawn there.
+ *
+ * Tiles all being the same size, dropped ones go to a pool shared by all
+ * drawings and are drawn and decoded into again (see obtainTile()), so
+ * wiping, undoing and loading don't churn the garbage collector.
+ *
+ * Tiles may also be kept compact, as PaletteImages: a byte per pixel per
+ * ink color instead of four bytes.  Stored drawings load that way, and
+ * in compact mode (setCompact()) every tile is kept that way but the few
+ * last drawn on, which are expanded to ARGB while being drawn on.
+ *
+ * snapshot() makes a copy that shares the tiles, copy-on-write, for
+ * saving on another thread while drawing goes on.  Shared tiles are
+ * counted, so once the snapshot is cleared the drawing has them to
+ * itself again, and whichever lets go of a tile last pools it.
+ *
+ * With paging on (setPaging()), tiles beyond a memory budget are paged
+ * out to a TileStore, least recently drawn first, so a drawing can be
+ * far bigger than the screen for the same heap.  On the UI thread,
+ * drawing pages visible ones back in the background, showing them once
+ * they're in, and what's drawn on one meanwhile is kept and drawn onto
+ * it once it's in; other threads read them there and then.
+ *
+ * Not thread safe.
+ */
+public class TiledCanvas {
+	public static final int TILE_SIZE = 256;
+	// In compact mode, tiles drawn on kept expanded
+	public static final int MAX_HOT_TILES = 8;
+	// Tiles of more colors than this are kept expanded even in compact mode
+	public static final int MAX_COMPACT_COLORS = 3;
+
+	// Room for 16 spare tiles
+	private static final BitmapPool sTilePool = new BitmapPool(16 * TILE_SIZE * TILE_SIZE * 4);
+	// Copies tiles exactly, transparency included
+	private static final Paint sCopyPaint = new Paint();
+	// Drawings holding each expanded tile shared by snapshot() or copy(); copied before being drawn on
+	private static final ShareCounter<Bitmap> sSharedTiles = new ShareCounter<>();
+
+	static {
+		sCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+	}
+
+	private int mWidth;
+	private int mHeight;
+	// Tiles by key(column, row); sorted, so row by row
+	private final SparseArray<Bitmap> mTiles = new SparseArray<>();
+	// Compact tiles, by key too; no key is in both
+	private final SparseArray<PaletteImage> mCompactTiles = new SparseArray<>();
+	private boolean mCompact;
+	// In compact mode, keys of expanded tiles by when last drawn on, oldest first
+	private final List<Integer> mHotTiles = new ArrayList<>();
+
+	// Paging; see setPaging().  Copies and snapshots share the store
+	private TileStore mStore;
+	private int mMaxResidentBytes;
+	private Runnable mOnPagedIn;
+	// Paged out tiles: slots in mStore by key; no key is also in the above
+	private final SparseIntArray mPagedTiles = new SparseIntArray();
+	// Keys of paged out tiles being read back
+	private final SparseBooleanArray mPagingIn = new SparseBooleanArray();
+	// Resident tiles by when last drawn or drawn on, in uses
+	private final SparseIntArray mLastUse = new SparseIntArray();
+	private int mUses;
+	// What was drawn on paged out tiles on the UI thread, by key, oldest first
+	private final SparseArray<List<DeferredDraw>> mDeferred = new SparseArray<>();
+
+	// Reused when drawing into tiles and compositing them
+	private Canvas mTileCanvas;
+	private Paint mLayerPaint;
+	// Draws compact tiles in draw(); apart from mLayerPaint, as that may run
+	// on a thread other than the one drawing on the tiles
+	private Paint mCompactPaint;
+	private final Path mLine = new Path();
+	private final RectF mBounds = new RectF();
+	private final Rect mClip = new Rect();
+	private final Rect mTileRect = new Rect();
+
+	public TiledCanvas(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * Splits a bitmap into tiles, leaving out those with nothing on them.
+	 * Used for drawings stored whole by older versions.
+	 */
+	public static TiledCanvas fromBitmap(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		TiledCanvas drawing = new TiledCanvas(width, height);
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		for (int top = 0; top < height; top += TILE_SIZE) {
+			for (int left = 0; left < width; left += TILE_SIZE) {
+				int w = Math.min(TILE_SIZE, width - left);
+				int h = Math.min(TILE_SIZE, height - top);
+				bitmap.getPixels(pixels, 0, TILE_SIZE, left, top, w, h);
+				if (hasContent(pixels, w, h)) {
+					Bitmap tile = obtainTile(true);
+					tile.setPixels(pixels, 0, TILE_SIZE, 0, 0, w, h);
+					drawing.mTiles.put(key(left / TILE_SIZE, top / TILE_SIZE), tile);
+				}
+			}
+		}
+		return drawing;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Changes the size of the drawing; what falls outside is dropped.
+	 */
+	public void setSize(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		for (int i = mTiles.size() - 1; i >= 0; i--) {
+			if (isOutside(mTiles.keyAt(i))) {
+				releaseTile(mTiles.valueAt(i));
+				mTiles.removeAt(i);
+			}
+		}
+		for (int i = mCompactTiles.size() - 1; i >= 0; i--) {
+			if (isOutside(mCompactTiles.keyAt(i))) {
+				mCompactTiles.removeAt(i);
+			}
+		}
+		for (int i = mPagedTiles.size() - 1; i >= 0; i--) {
+			if (isOutside(mPagedTiles.keyAt(i))) {
+				dropPagedTile(mPagedTiles.keyAt(i));
+			}
+		}
+	}
+
+	/**
+	 * Sets whether to keep tiles compact, at the cost of expanding one each
+	 * time it's drawn on after a while and of colors being near rather than
+	 * exact where inks blend.  For devices short of memory.
+	 * Turning it on compacts every tile now.
+	 */
+	public void setCompact(boolean compact) {
+		mCompact = compact;
+		mHotTiles.clear();
+		if (compact) {
+			for (int i = mTiles.size() - 1; i >= 0; i--) {
+				compactTile(mTiles.keyAt(i));
+			}
+		}
+	}
+
+	public boolean isCompact() {
+		return mCompact;
+	}
+
+	/**
+	 * Turns on paging: while the tiles in memory take more than
+	 * maxResidentBytes, those drawn least recently go to the store.  A
+	 * drawing may be made on another thread, then handed to the UI thread
+	 * and only used there.  A null store turns paging off, if nothing is
+	 * paged out.
+	 * @param onPagedIn run on the UI thread when a tile drawn while paged out is back in;
+	 *                  may be null
+	 */
+	public void setPaging(TileStore store, int maxResidentBytes, Runnable onPagedIn) {
+		if (mPagedTiles.size() > 0 && mStore != store) {
+			throw new IllegalStateException("Tiles already paged to another store");
+		}
+		mStore = store;
+		mMaxResidentBytes = maxResidentBytes;
+		mOnPagedIn = onPagedIn;
+		trimResident();
+	}
+
+	/**
+	 * Returns a blank drawing of the same size and settings.
+	 */
+	public TiledCanvas blank() {
+		TiledCanvas blank = new TiledCanvas(mWidth, mHeight);
+		blank.mCompact = mCompact;
+		blank.mStore = mStore;
+		blank.mMaxResidentBytes = mMaxResidentBytes;
+		blank.mOnPagedIn = mOnPagedIn;
+		return blank;
+	}
+
+	/**
+	 * Returns true if nothing is drawn.
+	 */
+	public boolean isEmpty() {
+		return mTiles.size() == 0 && mCompactTiles.size() == 0 && mPagedTiles.size() == 0;
+	}
+
+	/**
+	 * Returns the number of bytes the tiles in memory take up.
+	 */
+	public int getByteCount() {
+		int size = 0;
+		for (int i = 0; i < mTiles.size(); i++) {
+			size += mTiles.valueAt(i).getByteCount();
+		}
+		for (int i = 0; i < mCompactTiles.size(); i++) {
+			size += mCompactTiles.valueAt(i).getByteCount();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes, in memory and paged out, of the tiles
+	 * no snapshot or copy shares: what clearing the drawing would free.
+	 * Compact tiles, being small, are counted whether shared or not.
+	 */
+	public int getOwnedByteCount() {
+		int size = 0;
+		for (int i = 0; i < mTiles.size(); i++) {
+			if (!sSharedTiles.isShared(mTiles.valueAt(i))) {
+				size += mTiles.valueAt(i).getByteCount();
+			}
+		}
+		for (int i = 0; i < mCompactTiles.size(); i++) {
+			size += mCompactTiles.valueAt(i).getByteCount();
+		}
+		for (int i = 0; i < mPagedTiles.size(); i++) {
+			if (!mStore.isShared(mPagedTiles.valueAt(i))) {
+				size += TILE_SIZE * TILE_SIZE * 4;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of tiles paged out.
+	 */
+	public int getPagedTileCount() {
+		return mPagedTiles.size();
+	}
+
+	/**
+	 * Returns the number of bytes paged out tiles take up in the store.
+	 */
+	public int getPagedByteCount() {
+		return mPagedTiles.size() * TILE_SIZE * TILE_SIZE * 4;
+	}
+
+	/**
+	 * Draws a path onto the tiles it crosses, creating them as needed.
+	 * @param erase true if the paint clears rather than draws; no tiles are
+	 *              created for it, and tiles left empty are dropped
+	 */
+	public void drawPath(Path path, Paint paint, boolean erase) {
+		path.computeBounds(mBounds, false);
+		drawPath(path, paint, erase, erase);
+	}
+
+	/**
+	 * Draws one segment of a stroke onto the tiles it crosses, creating
+	 * them as needed.  For drawing a stroke a bit at a time as it's made;
+	 * erasing doesn't drop tiles it leaves empty, pruneEmptyTiles() does.
+	 */
+	public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint, boolean erase) {
+		mLine.rewind();
+		mLine.moveTo(startX, startY);
+		mLine.lineTo(stopX, stopY);
+		mBounds.set(Math.min(startX, stopX), Math.min(startY, stopY), Math.max(startX, stopX), Math.max(startY, stopY));
+		drawPath(mLine, paint, erase, false);
+	}
+
+	/**
+	 * Draws one smoothed segment of a stroke, a quadratic curve, like
+	 * drawLine() does a straight one.
+	 */
+	public void drawQuad(float startX, float startY, float controlX, float controlY, float stopX, float stopY,
+			Paint paint, boolean erase) {
+		mLine.rewind();
+		mLine.moveTo(startX, startY);
+		mLine.quadTo(controlX, controlY, stopX, stopY);
+		// The curve stays within the triangle of its points
+		mBounds.set(Math.min(startX, Math.min(controlX, stopX)), Math.min(startY, Math.min(controlY, stopY)),
+				Math.max(startX, Math.max(controlX, stopX)), Math.max(startY, Math.max(controlY, stopY)));
+		drawPath(mLine, paint, erase, false);
+	}
+
+	/**
+	 * Drops the tiles with nothing left on them.  Compact tiles are never
+	 * empty, being expanded before anything is erased from them.
+	 */
+	public void pruneEmptyTiles() {
+		for (int i = mTiles.size() - 1; i >= 0; i--) {
+			if (!BitmapConverter.hasContent(mTiles.valueAt(i))) {
+				releaseTile(mTiles.valueAt(i));
+				mTiles.removeAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Draws a path with bounds mBounds onto the tiles.
+	 */
+	private void drawPath(Path path, Paint paint, boolean erase, boolean prune) {
+		float pad = paint.getStrokeWidth() / 2 + 1;  // the stroke and its anti-aliasing
+		int firstColumn = Math.max(0, (int) Math.floor((mBounds.left - pad) / TILE_SIZE));
+		int lastColumn = Math.min(getColumnCount() - 1, (int) Math.floor((mBounds.right + pad) / TILE_SIZE));
+		int firstRow = Math.max(0, (int) Math.floor((mBounds.top - pad) / TILE_SIZE));
+		int lastRow = Math.min(getRowCount() - 1, (int) Math.floor((mBounds.bottom + pad) / TILE_SIZE));
+
+		mUses++;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int key = key(column, row);
+				if (mPagedTiles.indexOfKey(key) >= 0) {
+					if (Looper.myLooper() == Looper.getMainLooper()) {
+						deferDraw(key, path, paint, erase);
+						continue;
+					}
+					pageInNow(key);
+				}
+				Bitmap tile = mTiles.get(key);
+				if (tile != null && sSharedTiles.isShared(tile)) {
+					// Draw on a copy, leaving the snapshot as it was
+					Bitmap copy = copyTile(tile);
+					releaseTile(tile);
+					tile = copy;
+					mTiles.put(key, tile);
+				}
+				if (tile == null) {
+					PaletteImage compact = mCompactTiles.get(key);
+					if (compact != null) {
+						tile = expandTile(key, compact);
+					} else if (erase) {
+						continue;
+					} else {
+						tile = obtainTile(true);
+						mTiles.put(key, tile);
+					}
+				}
+				if (mCompact) {
+					mHotTiles.remove(Integer.valueOf(key));
+					mHotTiles.add(key);
+				}
+				mLastUse.put(key, mUses);
+				Canvas canvas = getTileCanvas(tile);
+				int left = column * TILE_SIZE;
+				int top = row * TILE_SIZE;
+				canvas.save();
+				canvas.clipRect(0, 0, mWidth - left, mHeight - top);
+				canvas.translate(-left, -top);
+				canvas.drawPath(path, paint);
+				canvas.restore();
+				if (prune && !BitmapConverter.hasContent(tile)) {
+					releaseTile(tile);
+					mTiles.remove(key);
+				}
+			}
+		}
+		while (mHotTiles.size() > MAX_HOT_TILES) {
+			compactTile(mHotTiles.remove(0));
+		}
+		trimResident();
+	}
+
+	/**
+	 * Pages tiles out, least recently used first, until those in memory
+	 * fit the budget.  Tiles used by the latest draw or drawPath stay.
+	 */
+	private void trimResident() {
+		if (mStore == null || mMaxResidentBytes <= 0) {
+			return;
+		}
+		int bytes = getByteCount();
+		while (bytes > mMaxResidentBytes) {
+			int oldest = -1;
+			int oldestUse = mUses;
+			for (int i = 0; i < mTiles.size(); i++) {
+				int use = mLastUse.get(mTiles.keyAt(i));
+				if (use < oldestUse) {
+					oldest = mTiles.keyAt(i);
+					oldestUse = use;
+				}
+			}
+			for (int i = 0; i < mCompactTiles.size(); i++) {
+				int use = mLastUse.get(mCompactTiles.keyAt(i));
+				if (use < oldestUse) {
+					oldest = mCompactTiles.keyAt(i);
+					oldestUse = use;
+				}
+			}
+			if (oldest < 0) {
+				return;
+			}
+			bytes -= pageOut(oldest);
+		}
+	}
+
+	/**
+	 * Writes a resident tile to the store and drops it from memory.
+	 * @return the bytes it took
+	 */
+	private int pageOut(int key) {
+		int bytes;
+		int slot;
+		Bitmap tile = mTiles.get(key);
+		if (tile != null) {
+			bytes = tile.getByteCount();
+			mTiles.remove(key);
+			// A snapshot may still draw it, so it's only pooled if not shared
+			slot = mStore.write(tile, sSharedTiles.release(tile));
+		} else {
+			PaletteImage compact = mCompactTiles.get(key);
+			bytes = compact.getByteCount();
+			mCompactTiles.remove(key);
+			Bitmap expanded = obtainTile(true);
+			compact.draw(getTileCanvas(expanded), 0, 0, getLayerPaint());
+			slot = mStore.write(expanded, true);
+		}
+		mHotTiles.remove(Integer.valueOf(key));
+		mLastUse.delete(key);
+		mPagedTiles.put(key, slot);
+		mPagingIn.delete(key);  // a read of an earlier slot, if any, is let go of
+		return bytes;
+	}
+
+	/**
+	 * Reads a paged out tile back, waiting for it, to draw on.  Not on
+	 * the UI thread, which defers drawing instead (see deferDraw()).
+	 * @throws IllegalStateException if it can't be read; it stays paged out
+	 */
+	private void pageInNow(int key) {
+		Bitmap tile = readPaged(key);
+		dropPagedTile(key);
+		mTiles.put(key, tile);
+		mLastUse.put(key, mUses);
+	}
+
+	/**
+	 * Reads a paged out tile, waiting for it, into a tile of its own,
+	 * with what was drawn on it since drawn on.  Failing to is an error
+	 * rather than a blank tile, which would be saved over what was drawn.
+	 * @throws IllegalStateException if it can't be read
+	 */
+	private Bitmap readPaged(int key) {
+		Bitmap tile;
+		try {
+			tile = mStore.readNow(mPagedTiles.get(key));
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't page in tile", e);
+		}
+		drawDeferred(key, tile);
+		return tile;
+	}
+
+	/**
+	 * Keeps a path drawn on a paged out tile to draw once it's in, rather
+	 * than waiting for it on the UI thread, and starts paging it in.
+	 */
+	private void deferDraw(int key, Path path, Paint paint, boolean erase) {
+		List<DeferredDraw> draws = mDeferred.get(key);
+		if (draws == null) {
+			draws = new ArrayList<>();
+			mDeferred.put(key, draws);
+		}
+		draws.add(new DeferredDraw(new Path(path), new Paint(paint), erase));
+		if (!mPagingIn.get(key)) {
+			pageInLater(key);
+		}
+	}
+
+	/**
+	 * Draws the paths deferred for a tile onto it, as read from the store.
+	 * @return false if they erased everything on it
+	 */
+	private boolean drawDeferred(int key, Bitmap tile) {
+		List<DeferredDraw> draws = mDeferred.get(key);
+		if (draws == null) {
+			return true;
+		}
+		int left = getColumn(key) * TILE_SIZE;
+		int top = getRow(key) * TILE_SIZE;
+		Canvas canvas = getTileCanvas(tile);
+		canvas.save();
+		canvas.clipRect(0, 0, mWidth - left, mHeight - top);
+		canvas.translate(-left, -top);
+		boolean erased = false;
+		for (DeferredDraw draw : draws) {
+			canvas.drawPath(draw.mPath, draw.mPaint);
+			erased |= draw.mErase;
+		}
+		canvas.restore();
+		return !erased || BitmapConverter.hasContent(tile);
+	}
+
+	/**
+	 * Reads a paged out tile back in the background; see mOnPagedIn.
+	 */
+	private void pageInLater(final int key) {
+		final int slot = mPagedTiles.get(key);
+		mPagingIn.put(key, true);
+		mStore.readLater(slot, new TileStore.OnReadListener() {
+			@Override
+			public void onRead(Bitmap tile) {
+				if (tile == null) {
+					return;  // stays paged out and left out, not retried every frame
+				}
+				mPagingIn.delete(key);
+				if (mPagedTiles.get(key, -1) != slot) {
+					recycleTile(tile);  // dropped or paged out again meanwhile
+					return;
+				}
+				boolean empty = !drawDeferred(key, tile);
+				dropPagedTile(key);
+				if (empty) {
+					recycleTile(tile);
+					return;
+				}
+				mTiles.put(key, tile);
+				mLastUse.put(key, mUses);
+				if (mOnPagedIn != null) {
+					mOnPagedIn.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replaces a compact tile by an expanded one to draw on.
+	 */
+	private Bitmap expandTile(int key, PaletteImage compact) {
+		Bitmap tile = obtainTile(true);
+		Canvas canvas = getTileCanvas(tile);
+		compact.draw(canvas, 0, 0, getLayerPaint());
+		mCompactTiles.remove(key);
+		mTiles.put(key, tile);
+		return tile;
+	}
+
+	/**
+	 * Replaces an expanded tile by a compact one, unless it has too many
+	 * colors.  A tile left empty is dropped.
+	 */
+	private void compactTile(int key) {
+		Bitmap tile = mTiles.get(key);
+		if (tile == null) {
+			return;
+		}
+		PaletteImage compact = PaletteImage.fromBitmap(tile, MAX_COMPACT_COLORS);
+		if (compact == null || compact.getByteCount() >= tile.getByteCount()) {
+			return;
+		}
+		mTiles.remove(key);
+		releaseTile(tile);
+		if (!compact.isEmpty()) {
+			mCompactTiles.put(key, compact);
+		}
+	}
+
+	/**
+	 * Wipes the drawing, dropping every tile.
+	 */
+	public void clear() {
+		for (int i = 0; i < mTiles.size(); i++) {
+			releaseTile(mTiles.valueAt(i));
+		}
+		mTiles.clear();
+		mCompactTiles.clear();
+		mHotTiles.clear();
+		releasePaged();
+		mLastUse.clear();
+	}
+
+	/**
+	 * Gives back the store slots of the paged out tiles, and its share of
+	 * tiles shared with snapshots and copies, for a drawing being let go
+	 * of; it's not to be drawn on afterwards.  Its tiles in memory are left
+	 * to the garbage collector rather than pooled, as the screen may still
+	 * have them.  Snapshots and copies hold slots of their own.
+	 */
+	public void releasePaged() {
+		for (int i = 0; i < mTiles.size(); i++) {
+			sSharedTiles.release(mTiles.valueAt(i));
+		}
+		for (int i = 0; i < mPagedTiles.size(); i++) {
+			mStore.release(mPagedTiles.valueAt(i));
+		}
+		mPagedTiles.clear();
+		mDeferred.clear();
+	}
+
+	/**
+	 * Hands a tile taken out of the drawing to the pool, unless a
+	 * snapshot or copy still has it.
+	 */
+	private static void releaseTile(Bitmap tile) {
+		if (sSharedTiles.release(tile)) {
+			sTilePool.put(tile);
+		}
+	}
+
+	/**
+	 * Draws the drawing onto a canvas, at its origin.  Only tiles within
+	 * the canvas clip are drawn.  With paging on, on the UI thread, paged
+	 * out tiles are left out and paged in for next time; anywhere else
+	 * they're read there and then.
+	 * @param paint may be null
+	 * @throws IllegalStateException if a paged out tile can't be read
+	 */
+	public void draw(Canvas canvas, Paint paint) {
+		if (!canvas.getClipBounds(mClip)) {
+			return;
+		}
+		boolean paging = mMaxResidentBytes > 0 && Looper.myLooper() == Looper.getMainLooper();
+		if (paging) {
+			mUses++;
+		}
+		for (int i = 0; i < mTiles.size(); i++) {
+			int left = getTileColumn(i) * TILE_SIZE;
+			int top = getTileRow(i) * TILE_SIZE;
+			mTileRect.set(left, top, left + TILE_SIZE, top + TILE_SIZE);
+			if (Rect.intersects(mClip, mTileRect)) {
+				canvas.drawBitmap(mTiles.valueAt(i), left, top, paint);
+				if (paging) {
+					mLastUse.put(mTiles.keyAt(i), mUses);
+				}
+			}
+		}
+		// Compact tiles are drawn layer by layer, with a paint of their own
+		for (int i = 0; i < mCompactTiles.size(); i++) {
+			int key = mCompactTiles.keyAt(i);
+			int left = getColumn(key) * TILE_SIZE;
+			int top = getRow(key) * TILE_SIZE;
+			mTileRect.set(left, top, left + TILE_SIZE, top + TILE_SIZE);
+			if (Rect.intersects(mClip, mTileRect)) {
+				if (mCompactPaint == null) {
+					mCompactPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+				}
+				mCompactTiles.valueAt(i).draw(canvas, left, top, mCompactPaint);
+				if (paging) {
+					mLastUse.put(key, mUses);
+				}
+			}
+		}
+		for (int i = 0; i < mPagedTiles.size(); i++) {
+			int key = mPagedTiles.keyAt(i);
+			int left = getColumn(key) * TILE_SIZE;
+			int top = getRow(key) * TILE_SIZE;
+			mTileRect.set(left, top, left + TILE_SIZE, top + TILE_SIZE);
+			if (!Rect.intersects(mClip, mTileRect)) {
+				continue;
+			}
+			if (paging) {
+				if (!mPagingIn.get(key)) {
+					pageInLater(key);
+				}
+			} else {
+				Bitmap tile = readPaged(key);
+				canvas.drawBitmap(tile, left, top, paint);
+				recycleTile(tile);
+			}
+		}
+		if (paging) {
+			trimResident();
+		}
+	}
+
+	/**
+	 * Returns a copy with tiles of its own, to draw on independently.
+	 * Compact tiles are shared, being immutable; in compact mode the copy
+	 * gets expanded tiles compacted.  With paging on, the copy shares
+	 * them instead, copy-on-write like a snapshot, so it costs no memory
+	 * until drawn on and keeps in memory the tiles in view; paged out
+	 * ones are shared too.
+	 */
+	public TiledCanvas copy() {
+		TiledCanvas copy = blank();
+		sharePagedTiles(copy);
+		for (int i = 0; i < mTiles.size(); i++) {
+			Bitmap tile = mTiles.valueAt(i);
+			if (mMaxResidentBytes > 0) {
+				int key = mTiles.keyAt(i);
+				copy.mTiles.append(key, tile);
+				sSharedTiles.share(tile);
+				copy.mLastUse.append(key, mLastUse.get(key));
+				continue;
+			}
+			PaletteImage compact = mCompact ? PaletteImage.fromBitmap(tile, MAX_COMPACT_COLORS) : null;
+			if (compact != null && compact.getByteCount() < tile.getByteCount()) {
+				if (!compact.isEmpty()) {
+					copy.mCompactTiles.put(mTiles.keyAt(i), compact);
+				}
+				continue;
+			}
+			copy.mTiles.append(mTiles.keyAt(i), copyTile(tile));
+		}
+		for (int i = 0; i < mCompactTiles.size(); i++) {
+			copy.mCompactTiles.put(mCompactTiles.keyAt(i), mCompactTiles.valueAt(i));
+		}
+		copy.mUses = mUses;
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of the drawing as it is now that shares its tiles;
+	 * whichever of the two is drawn on first copies the tile it draws on.
+	 * Cheap whatever the size of the drawing, so the UI thread can take one
+	 * to hand to a thread saving it.  The snapshot itself isn't meant to be
+	 * drawn on (it could, but would copy every tile it touches).
+	 */
+	public TiledCanvas snapshot() {
+		TiledCanvas snapshot = new TiledCanvas(mWidth, mHeight);
+		snapshot.mStore = mStore;
+		sharePagedTiles(snapshot);
+		for (int i = 0; i < mTiles.size(); i++) {
+			int key = mTiles.keyAt(i);
+			snapshot.mTiles.append(key, mTiles.valueAt(i));
+			sSharedTiles.share(mTiles.valueAt(i));
+		}
+		for (int i = 0; i < mCompactTiles.size(); i++) {
+			snapshot.mCompactTiles.append(mCompactTiles.keyAt(i), mCompactTiles.valueAt(i));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Gives a copy the paged out tiles, and what's deferred for them.
+	 */
+	private void sharePagedTiles(TiledCanvas copy) {
+		for (int i = 0; i < mPagedTiles.size(); i++) {
+			mStore.retain(mPagedTiles.valueAt(i));
+			copy.mPagedTiles.append(mPagedTiles.keyAt(i), mPagedTiles.valueAt(i));
+		}
+		for (int i = 0; i < mDeferred.size(); i++) {
+			copy.mDeferred.append(mDeferred.keyAt(i), new ArrayList<>(mDeferred.valueAt(i)));
+		}
+	}
+
+	private Bitmap copyTile(Bitmap tile) {
+		Bitmap copy = obtainTile(false);
+		getTileCanvas(copy).drawBitmap(tile, 0, 0, sCopyPaint);
+		return copy;
+	}
+
+	/**
+	 * Draws the whole drawing onto a new bitmap of its size.
+	 */
+	public Bitmap toBitmap() {
+		Bitmap bitmap = Bitmap.createBitmap(Math.max(1, mWidth), Math.max(1, mHeight), Bitmap.Config.ARGB_8888);
+		draw(new Canvas(bitmap), null);
+		return bitmap;
+	}
+
+	/**
+	 * Returns a tile to draw on, from the pool if it has one.
+	 * @param erase whether it must be transparent; if not, its pixels are undefined
+	 */
+	static Bitmap obtainTile(boolean erase) {
+		Bitmap tile = sTilePool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+		if (tile == null) {
+			return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+		}
+		if (erase) {
+			tile.eraseColor(Color.TRANSPARENT);
+		}
+		return tile;
+	}
+
+	/**
+	 * Sets up options to decode a tile into a pooled one, if there is one.
+	 * See BitmapPool.prepare().
+	 */
+	static void prepareTileDecode(BitmapFactory.Options options) {
+		sTilePool.prepare(options, TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Hands a tile nobody uses anymore to the pool.
+	 */
+	static void recycleTile(Bitmap tile) {
+		sTilePool.put(tile);
+	}
+
+	// For TiledCodec: the expanded tiles in row order, then the compact
+	// ones, then the paged out ones
+
+	int getTileCount() {
+		return mTiles.size() + mCompactTiles.size() + mPagedTiles.size();
+	}
+
+	int getTileColumn(int index) {
+		return getColumn(getTileKey(index));
+	}
+
+	int getTileRow(int index) {
+		return getRow(getTileKey(index));
+	}
+
+	/**
+	 * Returns an expanded tile, or null if the tile is compact.  A paged
+	 * out one is read back, waiting for it, into a tile the caller may
+	 * recycleTile() once done.
+	 * @throws IllegalStateException if a paged out tile can't be read
+	 */
+	Bitmap getTile(int index) {
+		if (index < mTiles.size()) {
+			return mTiles.valueAt(index);
+		}
+		int paged = index - mTiles.size() - mCompactTiles.size();
+		if (paged < 0) {
+			return null;
+		}
+		return readPaged(mPagedTiles.keyAt(paged));
+	}
+
+	/**
+	 * Returns true if getTile() reads the tile back rather than returning the drawing's own.
+	 */
+	boolean isTilePaged(int index) {
+		return index >= mTiles.size() + mCompactTiles.size();
+	}
+
+	/**
+	 * Returns a compact tile, or null if the tile is expanded.
+	 */
+	PaletteImage getCompactTile(int index) {
+		int compact = index - mTiles.size();
+		return compact < 0 || compact >= mCompactTiles.size() ? null : mCompactTiles.valueAt(compact);
+	}
+
+	/**
+	 * Sets a tile; it must be mutable, ARGB_8888 and TILE_SIZE square.
+	 */
+	void putTile(int column, int row, Bitmap tile) {
+		int key = key(column, row);
+		dropPagedTile(key);
+		mCompactTiles.remove(key);
+		if (isOverBudget(tile.getByteCount())) {
+			mPagedTiles.put(key, mStore.write(tile, true));  // paged out as it's decoded
+		} else {
+			mTiles.put(key, tile);
+		}
+	}
+
+	/**
+	 * Sets a compact tile; it must be TILE_SIZE square.
+	 */
+	void putCompactTile(int column, int row, PaletteImage tile) {
+		Bitmap expanded = mTiles.get(key(column, row));
+		if (expanded != null) {
+			mTiles.remove(key(column, row));
+			releaseTile(expanded);
+		}
+		dropPagedTile(key(column, row));
+		if (isOverBudget(tile.getByteCount())) {
+			Bitmap paged = obtainTile(true);
+			tile.draw(getTileCanvas(paged), 0, 0, getLayerPaint());
+			mPagedTiles.put(key(column, row), mStore.write(paged, true));
+		} else {
+			mCompactTiles.put(key(column, row), tile);
+		}
+	}
+
+	/**
+	 * Tells if a tile of given size put in memory would take the tiles
+	 * there past the paging budget.
+	 */
+	private boolean isOverBudget(int bytes) {
+		return mMaxResidentBytes > 0 && getByteCount() + bytes > mMaxResidentBytes;
+	}
+
+	/**
+	 * Forgets a paged out tile, giving back its slot, and what's deferred for it.
+	 */
+	private void dropPagedTile(int key) {
+		int index = mPagedTiles.indexOfKey(key);
+		if (index >= 0) {
+			mStore.release(mPagedTiles.valueAt(index));
+			mPagedTiles.removeAt(index);
+		}
+		mDeferred.remove(key);
+	}
+
+	private int getTileKey(int index) {
+		if (index < mTiles.size()) {
+			return mTiles.keyAt(index);
+		}
+		index -= mTiles.size();
+		if (index < mCompactTiles.size()) {
+			return mCompactTiles.keyAt(index);
+		}
+		return mPagedTiles.keyAt(index - mCompactTiles.size());
+	}
+
+	private boolean isOutside(int key) {
+		return getColumn(key) * TILE_SIZE >= mWidth || getRow(key) * TILE_SIZE >= mHeight;
+	}
+
+	private int getColumnCount() {
+		return (mWidth + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	private int getRowCount() {
+		return (mHeight + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	private Canvas getTileCanvas(Bitmap tile) {
+		if (mTileCanvas == null) {
+			mTileCanvas = new Canvas();
+		}
+		mTileCanvas.setBitmap(tile);
+		return mTileCanvas;
+	}
+
+	private Paint getLayerPaint() {
+		if (mLayerPaint == null) {
+			mLayerPaint = new Paint();
+		}
+		return mLayerPaint;
+	}
+
+	private static int key(int column, int row) {
+		return (row << 16) | column;
+	}
+
+	private static int getColumn(int key) {
+		return key & 0xffff;
+	}
+
+	private static int getRow(int key) {
+		return key >>> 16;
+	}
+
+	private static boolean hasContent(int[] pixels, int width, int height) {
+		for (int y = 0; y < height; y++) {
+			for (int x = y * TILE_SIZE, end = x + width; x < end; x++) {
+				if ((pixels[x] >>> 24) != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A path drawn on a tile while it was paged out.
+	 */
+	private static class DeferredDraw {
+		private final Path mPath;
+		private final Paint mPaint;
+		private final boolean mErase;
+
+		DeferredDraw(Path path, Paint paint, boolean erase) {
+			mPath = path;
+			mPaint = paint;
+			mErase = erase;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores a TiledCanvas: only the tiles with something on them, each
+ * encoded with the default codec, or as they are if compact.
+ *
+ * Layout: magic "TC", version byte, width, height and tile count as
+ * big-endian ints, then for each tile its column and row as shorts, the
+ * ID of the codec it's in as a byte (PALETTE_TILE for a compact tile,
+ * see PaletteImage.write()), its length as an int and its data.
+ *
+ * Also works as a plain ImageCodec, splitting a bitmap into tiles on
+ * encoding and putting them back together on decoding.
+ */
+public class TiledCodec implements ImageCodec {
+	private static final int MAGIC_1 = 'T';
+	private static final int MAGIC_2 = 'C';
+	private static final int VERSION = 1;
+	// Codec ID of compact tiles; no ImageCodec may take it
+	static final int PALETTE_TILE = 4;
+
+	@Override
+	public int getId() {
+		return 3;
+	}
+
+	@Override
+	public String getName() {
+		return "tiled";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public byte[] encode(Bitmap bitmap) {
+		return encode(TiledCanvas.fromBitmap(bitmap));
+	}
+
+	/**
+	 * Encodes the tiles of a drawing.
+	 */
+	public byte[] encode(TiledCanvas drawing) {
+		ImageCodec tileCodec = ImageCodecs.getDefault();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(MAGIC_1);
+			out.writeByte(MAGIC_2);
+			out.writeByte(VERSION);
+			out.writeInt(drawing.getWidth());
+			out.writeInt(drawing.getHeight());
+			out.writeInt(drawing.getTileCount());
+			for (int i = 0; i < drawing.getTileCount(); i++) {
+				PaletteImage compact = drawing.getCompactTile(i);
+				byte[] data;
+				if (compact != null) {
+					ByteArrayOutputStream tile = new ByteArrayOutputStream();
+					compact.write(tile);
+					data = tile.toByteArray();
+				} else {
+					Bitmap tile = drawing.getTile(i);
+					data = tileCodec.encode(tile);
+					if (drawing.isTilePaged(i)) {
+						TiledCanvas.recycleTile(tile);
+					}
+				}
+				out.writeShort(drawing.getTileColumn(i));
+				out.writeShort(drawing.getTileRow(i));
+				out.writeByte(compact != null ? PALETTE_TILE : tileCodec.getId());
+				out.writeInt(data.length);
+				out.write(data);
+			}
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);  // memory only, can't happen
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes the tiles of a drawing encoded by encode(TiledCanvas).
+	 * Compact tiles stay compact.
+	 * @throws IOException if the data can't be read or is damaged
+	 */
+	public TiledCanvas decodeTiles(InputStream in) throws IOException {
+		return decodeTiles(in, null, 0);
+	}
+
+	/**
+	 * Like decodeTiles(InputStream), paging tiles out to a store as they're
+	 * decoded once those in memory take maxResidentBytes, so the drawing
+	 * never takes more; see TiledCanvas.setPaging().
+	 * @param store may be null, for no paging
+	 */
+	public TiledCanvas decodeTiles(InputStream in, TileStore store, int maxResidentBytes) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		TiledCanvas drawing = readHeader(data);
+		if (store != null) {
+			drawing.setPaging(store, maxResidentBytes, null);
+		}
+		try {
+			readTiles(data, drawing);
+		} catch (IOException | RuntimeException e) {
+			drawing.clear();  // gives back what was paged out
+			throw e;
+		}
+		return drawing;
+	}
+
+	private static void readTiles(DataInputStream data, TiledCanvas drawing) throws IOException {
+		int count = data.readInt();
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		for (int i = 0; i < count; i++) {
+			int column = data.readUnsignedShort();
+			int row = data.readUnsignedShort();
+			int codecId = data.readUnsignedByte();
+			byte[] bytes = new byte[data.readInt()];
+			data.readFully(bytes);
+			if (codecId == PALETTE_TILE) {
+				drawing.putCompactTile(column, row, PaletteImage.read(new ByteArrayInputStream(bytes)));
+				continue;
+			}
+			ImageCodec codec = getCodec(codecId);
+			// Decode into a spare tile if there is one
+			TiledCanvas.prepareTileDecode(options);
+			Bitmap tile;
+			try {
+				tile = decodeTile(codec, bytes, options);
+			} catch (IllegalArgumentException e) {
+				options.inBitmap = null;  // didn't fit it after all
+				tile = decodeTile(codec, bytes, options);
+			}
+			if (!tile.isMutable() || tile.getConfig() != Bitmap.Config.ARGB_8888) {
+				tile = tile.copy(Bitmap.Config.ARGB_8888, true);
+			}
+			drawing.putTile(column, row, tile);
+		}
+	}
+
+	@Override
+	public Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		TiledCanvas header = readHeader(data);
+		int width = header.getWidth();
+		int height = header.getHeight();
+		int sampleSize = 1;
+		if (options != null) {
+			options.outWidth = width;
+			options.outHeight = height;
+			if (options.inJustDecodeBounds) {
+				return null;
+			}
+			sampleSize = Math.max(1, options.inSampleSize);
+		}
+
+		Bitmap bitmap = Bitmap.createBitmap((width + sampleSize - 1) / sampleSize,
+				(height + sampleSize - 1) / sampleSize, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		float tileSize = (float) TiledCanvas.TILE_SIZE / sampleSize;
+		BitmapFactory.Options tileOptions = new BitmapFactory.Options();
+		tileOptions.inSampleSize = sampleSize;
+		int count = data.readInt();
+		for (int i = 0; i < count; i++) {
+			float left = data.readUnsignedShort() * tileSize;
+			float top = data.readUnsignedShort() * tileSize;
+			int codecId = data.readUnsignedByte();
+			byte[] bytes = new byte[data.readInt()];
+			data.readFully(bytes);
+			if (codecId == PALETTE_TILE) {
+				canvas.save();
+				canvas.translate(left, top);
+				canvas.scale(1f / sampleSize, 1f / sampleSize);
+				PaletteImage.read(new ByteArrayInputStream(bytes)).draw(canvas, 0, 0, paint);
+				canvas.restore();
+				continue;
+			}
+			Bitmap tile = decodeTile(getCodec(codecId), bytes, tileOptions);
+			canvas.drawBitmap(tile, null, new RectF(left, top, left + tileSize, top + tileSize), paint);
+			tile.recycle();
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Reads the header, returning an empty drawing of its size.
+	 */
+	private static TiledCanvas readHeader(DataInputStream data) throws IOException {
+		if (data.readUnsignedByte() != MAGIC_1 || data.readUnsignedByte() != MAGIC_2
+				|| data.readUnsignedByte() != VERSION) {
+			throw new IOException("Not a tiled image");
+		}
+		return new TiledCanvas(data.readInt(), data.readInt());
+	}
+
+	private static ImageCodec getCodec(int id) throws IOException {
+		try {
+			return ImageCodecs.get(id);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Damaged tiled image", e);
+		}
+	}
+
+	private static Bitmap decodeTile(ImageCodec codec, byte[] tile, BitmapFactory.Options options) throws IOException {
+		Bitmap bitmap = codec.decode(new ByteArrayInputStream(tile), options);
+		if (bitmap == null) {
+			throw new IOException("Damaged tile");
+		}
+		return bitmap;
+	}
+}
@@ -0,0 +1,50 @@
+package com.gatchi.notebooks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores images as WebP at quality 100.
+ *
+ * Decoding WebP with transparency needs Android 4.3, so it's unavailable
+ * before that.  Only Android 10 writes truly lossless WebP at quality 100;
+ * older versions write lossy WebP at its best quality, which can shift
+ * anti-aliased edges slightly.
+ */
+public class WebpCodec implements ImageCodec {
+	@Override
+	public int getId() {
+		return 1;
+	}
+
+	@Override
+	public String getName() {
+		return "webp";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+	}
+
+	@Override
+	public byte[] encode(Bitmap bitmap) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.WEBP, 100, stream);
+		return stream.toByteArray();
+	}
+
+	@Override
+	public Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException {
+		Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+		if (bitmap == null && (options == null || !options.inJustDecodeBounds)) {
+			throw new IOException("Can't decode WebP");
+		}
+		return bitmap;
+	}
+}
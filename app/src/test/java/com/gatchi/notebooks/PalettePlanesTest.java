@@ -0,0 +1,99 @@
+package com.gatchi.notebooks;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PalettePlanesTest {
+	private static final int SIZE = 16;
+	private static final int RED = 0xffff0000;
+	private static final int BLUE = 0xff0000ff;
+
+	@Test
+	public void roundTripsTwoInks() throws IOException {
+		int[] pixels = new int[SIZE * SIZE];
+		for (int x = 0; x < SIZE; x++) {
+			pixels[2 * SIZE + x] = RED;
+			pixels[3 * SIZE + x] = 0x40000000 | (RED & 0xffffff);  // anti-aliased edge
+		}
+		for (int x = 0; x < SIZE / 2; x++) {
+			pixels[10 * SIZE + x] = BLUE;
+		}
+		pixels[0] = 0x80000000 | (BLUE & 0xffffff);
+
+		PalettePlanes split = PalettePlanes.split(pixels, SIZE, SIZE, 3);
+		PalettePlanes read = roundTrip(split);
+
+		assertEquals(SIZE, read.getWidth());
+		assertEquals(SIZE, read.getHeight());
+		// Most used first: red covers a row, blue half of one
+		assertArrayEquals(new int[]{RED, BLUE}, read.getColors());
+		assertArrayEquals(split.getPlanes()[0], read.getPlanes()[0]);
+		assertArrayEquals(split.getPlanes()[1], read.getPlanes()[1]);
+		assertArrayEquals(pixels, toPixels(read));
+	}
+
+	@Test
+	public void roundTripsNothingDrawn() throws IOException {
+		PalettePlanes read = roundTrip(PalettePlanes.split(new int[SIZE * SIZE], SIZE, SIZE, 3));
+
+		assertEquals(0, read.getColors().length);
+		assertArrayEquals(new int[SIZE * SIZE], toPixels(read));
+	}
+
+	@Test
+	public void givesColorsPastTheMostToTheNearest() {
+		int[] pixels = new int[SIZE * SIZE];
+		for (int i = 0; i < 3 * SIZE; i++) {
+			pixels[i] = RED;
+		}
+		pixels[3 * SIZE] = 0xffee1111;  // nearer red than blue
+		for (int i = 4 * SIZE; i < 5 * SIZE; i++) {
+			pixels[i] = BLUE;
+		}
+
+		PalettePlanes split = PalettePlanes.split(pixels, SIZE, SIZE, 2);
+
+		assertArrayEquals(new int[]{RED, BLUE}, split.getColors());
+		assertEquals(0xff, split.getPlanes()[0][3 * SIZE] & 0xff);
+	}
+
+	@Test
+	public void turnsDownPhotos() {
+		int[] pixels = new int[SIZE * SIZE];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xff000000 | (i * 0x010305);  // every pixel its own color
+		}
+
+		assertNull(PalettePlanes.split(pixels, SIZE, SIZE, 3));
+	}
+
+	private static PalettePlanes roundTrip(PalettePlanes planes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		planes.write(out);
+		return PalettePlanes.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	/**
+	 * Puts the planes back together the way PaletteImage draws them, over transparency.
+	 */
+	private static int[] toPixels(PalettePlanes planes) {
+		int[] pixels = new int[planes.getWidth() * planes.getHeight()];
+		for (int plane = 0; plane < planes.getPlanes().length; plane++) {
+			int color = planes.getColors()[plane] & 0xffffff;
+			byte[] coverage = planes.getPlanes()[plane];
+			for (int i = 0; i < pixels.length; i++) {
+				if (coverage[i] != 0) {
+					pixels[i] = (coverage[i] & 0xff) << 24 | color;
+				}
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,45 @@
+package com.gatchi.notebooks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShareCounterTest {
+	@Test
+	public void objectHeldOnceIsNotShared() {
+		ShareCounter<Object> counter = new ShareCounter<>();
+		Object tile = new Object();
+
+		assertFalse(counter.isShared(tile));
+		assertTrue("the only holder reuses it", counter.release(tile));
+	}
+
+	@Test
+	public void lastHolderToLetGoReusesIt() {
+		ShareCounter<Object> counter = new ShareCounter<>();
+		Object tile = new Object();
+		counter.share(tile);  // a snapshot
+		counter.share(tile);  // and a copy
+
+		assertTrue(counter.isShared(tile));
+		assertFalse(counter.release(tile));
+		assertTrue("still held twice", counter.isShared(tile));
+		assertFalse(counter.release(tile));
+		assertFalse("held by one again", counter.isShared(tile));
+		assertTrue(counter.release(tile));
+	}
+
+	@Test
+	public void countsEachObjectApart() {
+		ShareCounter<Object> counter = new ShareCounter<>();
+		Object shared = new Object();
+		Object own = new Object();
+		counter.share(shared);
+
+		assertTrue(counter.isShared(shared));
+		assertFalse(counter.isShared(own));
+		assertTrue(counter.release(own));
+		assertTrue(counter.isShared(shared));
+	}
+}
@@ -0,0 +1,72 @@
+package com.gatchi.notebooks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SizedPoolTest {
+	private static final String TILE = "256x256:ARGB_8888";
+	private static final int TILE_BYTES = 256 * 256 * 4;
+	private static final String THUMBNAIL = "96x96:ARGB_8888";
+	private static final int THUMBNAIL_BYTES = 96 * 96 * 4;
+
+	@Test
+	public void handsOutOnlyForTheSameSize() {
+		SizedPool<Object> pool = new SizedPool<>(4 * TILE_BYTES);
+		Object tile = new Object();
+		pool.put(TILE, tile, TILE_BYTES);
+
+		assertNull(pool.get(THUMBNAIL));
+		assertSame(tile, pool.get(TILE));
+		assertNull("taken out", pool.get(TILE));
+	}
+
+	@Test
+	public void handsOutTheLatestFirst() {
+		SizedPool<Object> pool = new SizedPool<>(4 * TILE_BYTES);
+		Object older = new Object();
+		Object newer = new Object();
+		pool.put(TILE, older, TILE_BYTES);
+		pool.put(TILE, newer, TILE_BYTES);
+
+		assertSame(newer, pool.get(TILE));
+		assertSame(older, pool.get(TILE));
+	}
+
+	@Test
+	public void letsGoOfWhatDoesNotFit() {
+		SizedPool<Object> pool = new SizedPool<>(2 * TILE_BYTES + THUMBNAIL_BYTES);
+
+		assertTrue(pool.put(TILE, new Object(), TILE_BYTES));
+		assertTrue(pool.put(TILE, new Object(), TILE_BYTES));
+		assertFalse(pool.put(TILE, new Object(), TILE_BYTES));
+		assertTrue("smaller ones still fit", pool.put(THUMBNAIL, new Object(), THUMBNAIL_BYTES));
+		assertEquals(2 * TILE_BYTES + THUMBNAIL_BYTES, pool.getByteCount());
+	}
+
+	@Test
+	public void takingOutMakesRoom() {
+		SizedPool<Object> pool = new SizedPool<>(TILE_BYTES);
+		pool.put(TILE, new Object(), TILE_BYTES);
+		pool.get(TILE);
+
+		assertEquals(0, pool.getByteCount());
+		assertTrue(pool.put(TILE, new Object(), TILE_BYTES));
+	}
+
+	@Test
+	public void clearLetsGoOfEverything() {
+		SizedPool<Object> pool = new SizedPool<>(4 * TILE_BYTES);
+		pool.put(TILE, new Object(), TILE_BYTES);
+		pool.put(THUMBNAIL, new Object(), THUMBNAIL_BYTES);
+		pool.clear();
+
+		assertEquals(0, pool.getByteCount());
+		assertNull(pool.get(TILE));
+		assertNull(pool.get(THUMBNAIL));
+	}
+}
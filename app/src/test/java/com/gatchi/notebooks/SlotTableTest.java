@@ -0,0 +1,62 @@
+package com.gatchi.notebooks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlotTableTest {
+	@Test
+	public void sharedSlotIsFreedByTheLastReference() {
+		SlotTable slots = new SlotTable(4);
+		int slot = slots.allocate();
+		assertFalse(slots.isShared(slot));
+
+		slots.retain(slot);  // a snapshot of the drawing
+		assertTrue(slots.isShared(slot));
+		assertFalse(slots.release(slot));
+		assertFalse("back to one drawing", slots.isShared(slot));
+		assertEquals(1, slots.getSlotsInUse());
+
+		assertTrue(slots.release(slot));
+		assertEquals(0, slots.getSlotsInUse());
+	}
+
+	@Test
+	public void reusesFreedSlots() {
+		SlotTable slots = new SlotTable(4);
+		int first = slots.allocate();
+		int second = slots.allocate();
+		slots.release(first);
+
+		assertEquals(first, slots.allocate());
+		assertEquals(2, slots.getSlotCount());
+		assertEquals(2, slots.getSlotsInUse());
+		assertTrue(second != first);
+	}
+
+	@Test
+	public void growsPastItsCapacity() {
+		SlotTable slots = new SlotTable(2);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, slots.allocate());
+		}
+		slots.retain(9);
+
+		assertTrue(slots.isShared(9));
+		assertEquals(10, slots.getSlotsInUse());
+	}
+
+	@Test
+	public void reusedSlotIsNoLongerBroken() {
+		SlotTable slots = new SlotTable(4);
+		int slot = slots.allocate();
+		slots.setBroken(slot);
+		assertTrue(slots.isBroken(slot));
+
+		slots.release(slot);
+		assertEquals(slot, slots.allocate());
+		assertFalse(slots.isBroken(slot));
+	}
+}
@@ -0,0 +1,140 @@
+package com.gatchi.notebooks;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StrokeInputTest {
+	private static final int SAMPLES = 20000;
+	// Samples per move event, as a fast finger gives them
+	private static final int BATCH = 8;
+
+	/**
+	 * Keeps the segments given to it, in a preallocated buffer.
+	 */
+	private static class RecordingSink implements StrokeInput.SegmentSink {
+		final float[] values = new float[SAMPLES * 8];
+		int count;
+		int lines;
+		int quads;
+
+		@Override
+		public void line(float startX, float startY, float stopX, float stopY) {
+			lines++;
+			add(startX, startY);
+			add(stopX, stopY);
+		}
+
+		@Override
+		public void quad(float startX, float startY, float controlX, float controlY, float stopX, float stopY) {
+			quads++;
+			add(startX, startY);
+			add(controlX, controlY);
+			add(stopX, stopY);
+		}
+
+		private void add(float x, float y) {
+			values[count++] = x;
+			values[count++] = y;
+		}
+	}
+
+	@Test
+	public void smoothsFromMiddleToMiddle() {
+		StrokeInput input = new StrokeInput();
+		RecordingSink sink = new RecordingSink();
+		input.begin(0, 0);
+		input.queue(10, 0);
+		input.queue(10, 10);
+		input.queue(0, 10);
+		input.drawPending(sink);
+		input.drawEnd(sink);
+
+		assertEquals(2, sink.lines);
+		assertEquals(2, sink.quads);
+		float[] expected = {
+				0, 0, 5, 0,             // straight to the middle of the first two points
+				5, 0, 10, 0, 10, 5,     // bent towards the points between
+				10, 5, 10, 10, 5, 10,
+				5, 10, 0, 10            // straight to the last point
+		};
+		float[] actual = new float[sink.count];
+		System.arraycopy(sink.values, 0, actual, 0, sink.count);
+		assertArrayEquals(expected, actual, 0);
+	}
+
+	@Test
+	public void skipsSamplesThatDidNotMove() {
+		StrokeInput input = new StrokeInput();
+		RecordingSink sink = new RecordingSink();
+		input.begin(1, 1);
+		input.queue(1, 1);
+		input.queue(2, 2);
+		input.queue(2, 2);
+		input.drawPending(sink);
+
+		assertEquals(4, input.getPointCount());
+		assertEquals(1, sink.lines);
+		assertEquals(0, sink.quads);
+	}
+
+	@Test
+	public void keepsEverySampleOfALongStroke() {
+		StrokeInput input = new StrokeInput();
+		RecordingSink sink = new RecordingSink();
+		drawStroke(input, sink);
+
+		assertEquals((SAMPLES + 1) * 2, input.getPointCount());
+		assertEquals(SAMPLES - 1, sink.quads);
+		float[] points = input.getPoints();
+		assertEquals(SAMPLES, points[SAMPLES * 2], 0);
+	}
+
+	@Test
+	public void allocatesNothingPerSample() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		StrokeInput input = new StrokeInput();
+		RecordingSink sink = new RecordingSink();
+		drawStroke(input, sink);  // grows the buffers to fit
+
+		// Calls the measurement alone makes, so only the stroke's own are counted
+		long start = threads.getThreadAllocatedBytes(thread);
+		long overhead = threads.getThreadAllocatedBytes(thread) - start;
+
+		sink.count = 0;
+		start = threads.getThreadAllocatedBytes(thread);
+		drawStroke(input, sink);
+		long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+
+		// Less than a byte a sample: nothing per sample, whatever the JVM adds around it
+		assertTrue(allocated + " bytes allocated for " + SAMPLES + " samples", allocated < SAMPLES);
+	}
+
+	/**
+	 * Feeds a stroke of SAMPLES samples in batches, drawing after each like a frame would.
+	 */
+	private static void drawStroke(StrokeInput input, RecordingSink sink) {
+		input.begin(0, 0);
+		for (int i = 1; i <= SAMPLES; i += BATCH) {
+			int end = Math.min(i + BATCH, SAMPLES + 1);
+			input.ensurePendingCapacity(end - i);
+			for (int j = i; j < end; j++) {
+				input.queue(j, j % 7);
+			}
+			input.drawPending(sink);
+		}
+		input.drawEnd(sink);
+	}
+}